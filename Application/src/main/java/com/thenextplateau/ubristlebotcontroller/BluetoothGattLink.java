@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * A GattLink over the Bluetooth stack. Callbacks are delivered on the Connector's Handler.
+ */
+public class BluetoothGattLink implements GattLink {
+    private final static String TAG = BluetoothGattLink.class.getSimpleName();
+
+    public static class Connector implements GattLink.Connector {
+        private final Context mContext;
+        private final BluetoothAdapter mAdapter;
+        private final Handler mHandler;
+
+        // Callbacks are delivered on handler's thread
+        public Connector(Context context, BluetoothAdapter adapter, Handler handler) {
+            mContext = context;
+            mAdapter = adapter;
+            mHandler = handler;
+        }
+
+        @Override
+        public GattLink connect(String address, Callback callback) {
+            BluetoothGattLink link = new BluetoothGattLink(address, callback, mHandler);
+            link.mGatt = mAdapter.getRemoteDevice(address)
+                    .connectGatt(mContext, false, link.mGattCallback);
+            return link;
+        }
+    }
+
+    private final String mAddress;
+    private final Callback mCallback;
+    private final Handler mHandler;
+    private BluetoothGatt mGatt;
+    // Set on the handler's thread, so nothing still queued there is delivered after close()
+    private boolean mClosed;
+
+    private BluetoothGattLink(String address, Callback callback, Handler handler) {
+        mAddress = address;
+        mCallback = callback;
+        mHandler = handler;
+    }
+
+    // BluetoothGatt calls back on a binder thread. Everything the service does with a link runs
+    //  on its main thread, so hop over there before handing anything on.
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, final int status, final int newState) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (! mClosed) {
+                        mCallback.onConnectionStateChange(BluetoothGattLink.this, status, newState);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (! mClosed) {
+                        mCallback.onServicesDiscovered(BluetoothGattLink.this, status);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         final BluetoothGattCharacteristic characteristic,
+                                         final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (! mClosed) {
+                        mCallback.onCharacteristicRead(BluetoothGattLink.this, characteristic, status);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          final BluetoothGattCharacteristic characteristic,
+                                          final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (! mClosed) {
+                        mCallback.onCharacteristicWrite(BluetoothGattLink.this, characteristic, status);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            final BluetoothGattCharacteristic characteristic) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (! mClosed) {
+                        mCallback.onCharacteristicChanged(BluetoothGattLink.this, characteristic);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt,
+                                      final BluetoothGattDescriptor descriptor,
+                                      final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (! mClosed) {
+                        mCallback.onDescriptorWrite(BluetoothGattLink.this, descriptor, status);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onReliableWriteCompleted(BluetoothGatt gatt, final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (! mClosed) {
+                        mCallback.onReliableWriteCompleted(BluetoothGattLink.this, status);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt gatt, final int rssi, final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (! mClosed) {
+                        mCallback.onReadRemoteRssi(BluetoothGattLink.this, rssi, status);
+                    }
+                }
+            });
+        }
+    };
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public List<BluetoothGattService> getServices() {
+        return mGatt.getServices();
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return mGatt.discoverServices();
+    }
+
+    @Override
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return mGatt.readCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return mGatt.writeCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+        return mGatt.writeDescriptor(descriptor);
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                                 boolean enable) {
+        return mGatt.setCharacteristicNotification(characteristic, enable);
+    }
+
+    @Override
+    public boolean readRemoteRssi() {
+        return mGatt.readRemoteRssi();
+    }
+
+    @Override
+    public boolean beginReliableWrite() {
+        return mGatt.beginReliableWrite();
+    }
+
+    @Override
+    public boolean executeReliableWrite() {
+        return mGatt.executeReliableWrite();
+    }
+
+    @Override
+    public void abortReliableWrite() {
+        mGatt.abortReliableWrite();
+    }
+
+    @Override
+    @TargetApi(21)
+    public boolean requestConnectionPriority(int priority) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            return false;
+        return mGatt.requestConnectionPriority(priority);
+    }
+
+    @Override
+    public boolean refresh() {
+        // BluetoothGatt.refresh() is hidden, but it's the only way to flush a stuck stack
+        try {
+            Method refresh = mGatt.getClass().getMethod("refresh");
+            return (Boolean) refresh.invoke(mGatt);
+        } catch (Exception e) {
+            Log.w(TAG, "Could not refresh GATT link", e);
+            return false;
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        mGatt.disconnect();
+    }
+
+    // On the handler's thread
+    @Override
+    public void close() {
+        mClosed = true;
+        mGatt.close();
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything we know about every uBristleBot we've connected to, kept on disk.
+ *
+ * The inventory lives in memory, indexed by address. load() reads it in once, off the main
+ * thread; anything changed before it finishes is kept over what's on disk. Changes mark it dirty;
+ * save() writes a snapshot of the whole thing, which is small, and swaps it in.
+ *
+ * At most MAX_BOTS are kept. Past that, the one connected to longest ago is dropped.
+ */
+public class BotInventoryStore {
+    private final static String TAG = BotInventoryStore.class.getSimpleName();
+
+    private static final int FILE_VERSION = 1;
+
+    public static final int UNKNOWN = Integer.MIN_VALUE;
+
+    public static final int MAX_BOTS = 64;
+
+    public static class Bot {
+        public final String address;
+        public String name;
+        // 0xRRGGBB, or UNKNOWN
+        public int color = UNKNOWN;
+        // Percent, or UNKNOWN
+        public int battery = UNKNOWN;
+        // dBm, or UNKNOWN
+        public int rssi = UNKNOWN;
+        // Wall clock time of the last connection
+        public long lastConnectedMs;
+
+        Bot(String address) {
+            this.address = address;
+        }
+
+        Bot copy() {
+            Bot bot = new Bot(address);
+            bot.name = name;
+            bot.color = color;
+            bot.battery = battery;
+            bot.rssi = rssi;
+            bot.lastConnectedMs = lastConnectedMs;
+            return bot;
+        }
+    }
+
+    private final File mFile;
+    private final Map<String, Bot> mBots = new HashMap<>();
+    private boolean mDirty = false;
+    private boolean mLoaded = false;
+
+    // Call load() before relying on the inventory being complete
+    public BotInventoryStore(File directory) {
+        mFile = new File(directory, "bot_inventory.dat");
+    }
+
+    public synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    public synchronized boolean contains(String address) {
+        return mBots.containsKey(address);
+    }
+
+    // A copy of what's known about a bot, or null
+    public synchronized Bot get(String address) {
+        Bot bot = mBots.get(address);
+        return bot == null ? null : bot.copy();
+    }
+
+    // Copies of every bot, most recently connected first
+    public synchronized List<Bot> getAll() {
+        List<Bot> bots = new ArrayList<>();
+        for (Bot bot : mBots.values()) {
+            bots.add(bot.copy());
+        }
+
+        Collections.sort(bots, new Comparator<Bot>() {
+            @Override
+            public int compare(Bot a, Bot b) {
+                return Long.compare(b.lastConnectedMs, a.lastConnectedMs);
+            }
+        });
+        return bots;
+    }
+
+    public synchronized void onConnected(String address, long nowMs) {
+        edit(address).lastConnectedMs = nowMs;
+    }
+
+    public synchronized void setName(String address, String name) {
+        edit(address).name = name;
+    }
+
+    public synchronized void setColor(String address, int r, int g, int b) {
+        edit(address).color = ((r & 0xFF) << 16) | ((g & 0xFF) << 8) | (b & 0xFF);
+    }
+
+    public synchronized void setBattery(String address, int percent) {
+        edit(address).battery = percent;
+    }
+
+    public synchronized void setRssi(String address, int rssi) {
+        edit(address).rssi = rssi;
+    }
+
+    public synchronized boolean isDirty() {
+        return mDirty;
+    }
+
+    // Write out the inventory, if anything changed since the last save. Does nothing until
+    //  loaded, so a partial inventory never replaces the file.
+    public void save() {
+        List<Bot> bots;
+        synchronized (this) {
+            if (! mDirty || ! mLoaded)
+                return;
+
+            mDirty = false;
+            bots = getAll();
+        }
+
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeByte(FILE_VERSION);
+                out.writeInt(bots.size());
+                for (Bot bot : bots) {
+                    out.writeUTF(bot.address);
+                    out.writeUTF(bot.name == null ? "" : bot.name);
+                    out.writeInt(bot.color);
+                    out.writeInt(bot.battery);
+                    out.writeInt(bot.rssi);
+                    out.writeLong(bot.lastConnectedMs);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save bot inventory", e);
+            synchronized (this) {
+                mDirty = true;
+            }
+            return;
+        }
+
+        if (! tmp.renameTo(mFile)) {
+            Log.e(TAG, "Could not replace bot inventory");
+            synchronized (this) {
+                mDirty = true;
+            }
+        }
+    }
+
+    private Bot edit(String address) {
+        Bot bot = mBots.get(address);
+        if (bot == null) {
+            while (mBots.size() >= MAX_BOTS) {
+                evictOldest();
+            }
+            bot = new Bot(address);
+            mBots.put(address, bot);
+        }
+
+        mDirty = true;
+        return bot;
+    }
+
+    private void evictOldest() {
+        Bot oldest = null;
+        for (Bot bot : mBots.values()) {
+            if (oldest == null || bot.lastConnectedMs < oldest.lastConnectedMs) {
+                oldest = bot;
+            }
+        }
+        mBots.remove(oldest.address);
+        mDirty = true;
+    }
+
+    // Read the inventory from disk. Does file I/O, keep it off the main thread.
+    public void load() {
+        Map<String, Bot> loaded = read();
+
+        synchronized (this) {
+            for (Bot bot : loaded.values()) {
+                Bot edited = mBots.get(bot.address);
+                if (edited == null) {
+                    mBots.put(bot.address, bot);
+                    continue;
+                }
+
+                // Changed since the app started. Only fill in what it hasn't heard yet.
+                if (edited.name == null)
+                    edited.name = bot.name;
+                if (edited.color == UNKNOWN)
+                    edited.color = bot.color;
+                if (edited.battery == UNKNOWN)
+                    edited.battery = bot.battery;
+                if (edited.rssi == UNKNOWN)
+                    edited.rssi = bot.rssi;
+                if (edited.lastConnectedMs == 0)
+                    edited.lastConnectedMs = bot.lastConnectedMs;
+            }
+
+            while (mBots.size() > MAX_BOTS) {
+                evictOldest();
+            }
+            mLoaded = true;
+        }
+    }
+
+    private Map<String, Bot> read() {
+        Map<String, Bot> bots = new HashMap<>();
+        if (! mFile.exists())
+            return bots;
+
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(mFile)));
+            try {
+                int version = in.readByte();
+                if (version != FILE_VERSION) {
+                    throw new IOException("Unknown bot inventory version " + version);
+                }
+
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    Bot bot = new Bot(in.readUTF());
+                    bot.name = in.readUTF();
+                    bot.color = in.readInt();
+                    bot.battery = in.readInt();
+                    bot.rssi = in.readInt();
+                    bot.lastConnectedMs = in.readLong();
+                    bots.put(bot.address, bot);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Only a cache. Start over.
+            Log.e(TAG, "Could not load bot inventory", e);
+            bots.clear();
+        }
+        return bots;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The binary protocol spoken by the local control server, independent of any transport.
+ *
+ * Every frame is a 1 byte type, a 2 byte payload length, then the payload. Multi-byte values are
+ * big endian. Bytes can be fed to a Decoder in pieces of any size; it calls back once per complete
+ * frame, so it can be driven by a socket or by a test feeding canned bytes.
+ *
+ *   MOTORS     count:u8, then count x (holdMs:u16, left%:u8, right%:u8)
+ *              A single command with holdMs 0 sets the motors and leaves them there. Anything
+ *              else runs as a timed sequence, ending with the motors stopped.
+ *   PROGRAM    repeat:u8 (0 is forever), count:u16, then count x (durationMs:u16, left%:u8, right%:u8)
+ *   STOP       (empty)
+ *   SUBSCRIBE  periodMs:u16 (0 unsubscribes)
+ *
+ * The server answers every frame with an ACK, and sends TELEMETRY to subscribers. A frame that's
+ * too large ends the connection, since there's no telling where the next one starts.
+ *
+ *   ACK        type:u8, status:u8
+ *   TELEMETRY  connected:u8, rssi:s8, linkQuality:u8, battery:u8 (0xFF unknown),
+ *              sendRateDeciHz:u16, programRunning:u8
+ */
+public class ControlProtocol {
+
+    // Client to server
+    public static final byte TYPE_MOTORS = 0x01;
+    public static final byte TYPE_PROGRAM = 0x02;
+    public static final byte TYPE_STOP = 0x03;
+    public static final byte TYPE_SUBSCRIBE = 0x04;
+
+    // Server to client
+    public static final byte TYPE_ACK = (byte) 0x80;
+    public static final byte TYPE_TELEMETRY = (byte) 0x81;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_NOT_CONNECTED = 1;
+    public static final byte STATUS_INVALID = 2;
+
+    public static final int HEADER_SIZE = 3;
+    public static final int MAX_PAYLOAD = 4096;
+
+    private static final int TELEMETRY_PAYLOAD = 7;
+
+    // Handles decoded commands. Values are validated before they get here.
+    public interface Listener {
+        void onMotors(int[] holdMs, int[] leftPercent, int[] rightPercent);
+        void onProgram(MotionProgram program);
+        void onStop();
+        void onSubscribe(int periodMs);
+        // A well formed frame that can't be carried out. Decoding goes on with the next frame.
+        void onInvalid(byte type, String reason);
+        // The stream can't be trusted past this point
+        void onProtocolError(String reason);
+    }
+
+    public static class Decoder {
+        private final Listener mListener;
+        private final ByteBuffer mFrame = ByteBuffer.allocate(HEADER_SIZE + MAX_PAYLOAD)
+                .order(ByteOrder.BIG_ENDIAN);
+        private boolean mFailed = false;
+
+        public Decoder(Listener listener) {
+            mListener = listener;
+        }
+
+        // Consume everything remaining in the buffer
+        public void feed(ByteBuffer in) {
+            while (in.hasRemaining() && ! mFailed) {
+                // Read up to the end of the header, then up to the end of the frame
+                int needed = mFrame.position() < HEADER_SIZE ?
+                        HEADER_SIZE - mFrame.position() :
+                        HEADER_SIZE + payloadLength() - mFrame.position();
+
+                int count = Math.min(needed, in.remaining());
+                for (int i = 0; i < count; i++) {
+                    mFrame.put(in.get());
+                }
+
+                if (mFrame.position() == HEADER_SIZE && payloadLength() > MAX_PAYLOAD) {
+                    fail("Frame payload of " + payloadLength() + " bytes is too large");
+                } else if (mFrame.position() >= HEADER_SIZE &&
+                        mFrame.position() == HEADER_SIZE + payloadLength()) {
+                    dispatch();
+                    mFrame.clear();
+                }
+            }
+        }
+
+        public boolean hasFailed() {
+            return mFailed;
+        }
+
+        private int payloadLength() {
+            return mFrame.getShort(1) & 0xFFFF;
+        }
+
+        private void dispatch() {
+            byte type = mFrame.get(0);
+            ByteBuffer payload = ByteBuffer.wrap(mFrame.array(), HEADER_SIZE, payloadLength());
+
+            try {
+                switch (type) {
+                    case TYPE_MOTORS:
+                        decodeMotors(payload);
+                        break;
+                    case TYPE_PROGRAM:
+                        decodeProgram(payload);
+                        break;
+                    case TYPE_STOP:
+                        mListener.onStop();
+                        break;
+                    case TYPE_SUBSCRIBE:
+                        mListener.onSubscribe(payload.getShort() & 0xFFFF);
+                        break;
+                    default:
+                        mListener.onInvalid(type, "Unknown frame type " + type);
+                }
+            } catch (BufferUnderflowException e) {
+                mListener.onInvalid(type, "Frame type " + type + " is too short");
+            } catch (IllegalArgumentException e) {
+                mListener.onInvalid(type, e.getMessage());
+            }
+        }
+
+        private void decodeMotors(ByteBuffer payload) {
+            int count = payload.get() & 0xFF;
+            int[] holdMs = new int[count];
+            int[] left = new int[count];
+            int[] right = new int[count];
+
+            for (int i = 0; i < count; i++) {
+                holdMs[i] = payload.getShort() & 0xFFFF;
+                left[i] = checkPercent(payload.get() & 0xFF);
+                right[i] = checkPercent(payload.get() & 0xFF);
+            }
+
+            mListener.onMotors(holdMs, left, right);
+        }
+
+        private void decodeProgram(ByteBuffer payload) {
+            MotionProgram program = new MotionProgram();
+            program.setRepeatCount(payload.get() & 0xFF);
+
+            int count = payload.getShort() & 0xFFFF;
+            for (int i = 0; i < count; i++) {
+                program.addStep(payload.getShort() & 0xFFFF,
+                        payload.get() & 0xFF, payload.get() & 0xFF);
+            }
+
+            if (! program.isValid()) {
+                throw new IllegalArgumentException("Program has no steps");
+            }
+            mListener.onProgram(program);
+        }
+
+        private int checkPercent(int percent) {
+            if (percent > 100) {
+                throw new IllegalArgumentException("Invalid motor percentage: " + percent);
+            }
+            return percent;
+        }
+
+        private void fail(String reason) {
+            mFailed = true;
+            mListener.onProtocolError(reason);
+        }
+    }
+
+    //
+    // Encoding, for the server's replies. Throws BufferOverflowException if out is full.
+    //
+    public static void putAck(ByteBuffer out, byte type, byte status) {
+        out.put(TYPE_ACK).putShort((short) 2).put(type).put(status);
+    }
+
+    public static void putTelemetry(ByteBuffer out, boolean connected, int rssi, int linkQuality,
+                                    int battery, float sendRateHz, boolean programRunning) {
+        out.put(TYPE_TELEMETRY).putShort((short) TELEMETRY_PAYLOAD)
+                .put((byte) (connected ? 1 : 0))
+                .put((byte) Math.max(-128, Math.min(127, rssi)))
+                .put((byte) linkQuality)
+                .put((byte) (battery < 0 ? 0xFF : battery))
+                .putShort((short) Math.round(sendRateHz * 10))
+                .put((byte) (programRunning ? 1 : 0));
+    }
+}
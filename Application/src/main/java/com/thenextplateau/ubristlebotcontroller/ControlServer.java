@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import android.net.Credentials;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A local socket endpoint that lets automation scripts drive a uBristleBot, speaking
+ * ControlProtocol.
+ *
+ * The socket lives in the abstract namespace, so it can't be reached over the network. Only this
+ * app, adb shell and root may connect; anyone else is turned away by their peer credentials.
+ * From a host: adb forward tcp:8642 localabstract:ubristlebot.control
+ *
+ * Each client gets a reader thread and a writer thread, since local sockets are blocking only.
+ * Decoded commands are handed to the Target on the looper it was created with, and their results
+ * come back as ACKs. Each client's outgoing data is bounded: telemetry that doesn't fit is
+ * dropped, and a client that won't read its ACKs is disconnected.
+ */
+public class ControlServer {
+    private final static String TAG = ControlServer.class.getSimpleName();
+
+    public static final String DEFAULT_SOCKET_NAME = "ubristlebot.control";
+
+    // Allowed to connect besides this app
+    private static final int ROOT_UID = 0;
+    private static final int SHELL_UID = 2000;
+
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int WRITE_BUFFER_SIZE = 8192;
+
+    // How long stop() waits for the accept thread. It's called on the main thread.
+    private static final long STOP_TIMEOUT_MS = 250;
+
+    // What the server controls. Called on the Target's looper.
+    public interface Target {
+        // Each returns a ControlProtocol.STATUS_*
+        byte setMotors(int leftPercent, int rightPercent);
+        byte runProgram(MotionProgram program);
+        byte stop();
+
+        void putTelemetry(ByteBuffer out);
+    }
+
+    private final Target mTarget;
+    private final Handler mTargetHandler;
+    private final String mName;
+
+    private LocalServerSocket mServerSocket;
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    // Guarded by itself
+    private final List<Client> mClients = new ArrayList<>();
+
+    private class Client implements ControlProtocol.Listener {
+        final LocalSocket socket;
+        final ControlProtocol.Decoder decoder = new ControlProtocol.Decoder(this);
+        // Guarded by itself. Filled from any thread, drained by the writer thread.
+        final ByteBuffer out = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        volatile boolean closed = false;
+        int telemetryPeriodMs = 0;
+
+        private final Runnable mSendTelemetry = new Runnable() {
+            @Override
+            public void run() {
+                if (closed || telemetryPeriodMs == 0)
+                    return;
+
+                synchronized (out) {
+                    int start = out.position();
+                    try {
+                        mTarget.putTelemetry(out);
+                    } catch (BufferOverflowException e) {
+                        // Client is behind. It gets the next sample instead.
+                        out.position(start);
+                    }
+                    out.notifyAll();
+                }
+
+                mTargetHandler.postDelayed(this, telemetryPeriodMs);
+            }
+        };
+
+        Client(LocalSocket socket) {
+            this.socket = socket;
+        }
+
+        void read() {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            ByteBuffer in = ByteBuffer.wrap(buffer);
+            try {
+                InputStream stream = socket.getInputStream();
+                int count;
+                while (! closed && (count = stream.read(buffer)) >= 0) {
+                    in.clear();
+                    in.limit(count);
+                    decoder.feed(in);
+                }
+            } catch (IOException e) {
+                if (! closed) {
+                    Log.w(TAG, "Control client read failed", e);
+                }
+            }
+            close(this);
+        }
+
+        void write() {
+            byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+            try {
+                OutputStream stream = socket.getOutputStream();
+                while (true) {
+                    int count;
+                    synchronized (out) {
+                        while (! closed && out.position() == 0) {
+                            out.wait();
+                        }
+                        if (closed)
+                            break;
+
+                        out.flip();
+                        count = out.remaining();
+                        out.get(buffer, 0, count);
+                        out.clear();
+                    }
+                    stream.write(buffer, 0, count);
+                }
+            } catch (IOException e) {
+                if (! closed) {
+                    Log.w(TAG, "Control client write failed", e);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            close(this);
+        }
+
+        //
+        // ControlProtocol.Listener, called on the client's reader thread
+        //
+        @Override
+        public void onMotors(final int[] holdMs, final int[] leftPercent, final int[] rightPercent) {
+            if (holdMs.length == 0) {
+                ack(ControlProtocol.TYPE_MOTORS, ControlProtocol.STATUS_INVALID);
+                return;
+            }
+
+            if (holdMs.length == 1 && holdMs[0] == 0) {
+                onTarget(ControlProtocol.TYPE_MOTORS, new Command() {
+                    @Override
+                    public byte run() {
+                        return mTarget.setMotors(leftPercent[0], rightPercent[0]);
+                    }
+                });
+                return;
+            }
+
+            // A batch plays out on the bot's own timeline
+            final MotionProgram program = new MotionProgram();
+            try {
+                for (int i = 0; i < holdMs.length; i++) {
+                    program.addStep(holdMs[i], leftPercent[i], rightPercent[i]);
+                }
+            } catch (IllegalArgumentException e) {
+                onInvalid(ControlProtocol.TYPE_MOTORS, e.getMessage());
+                return;
+            }
+
+            onProgram(ControlProtocol.TYPE_MOTORS, program);
+        }
+
+        @Override
+        public void onProgram(MotionProgram program) {
+            onProgram(ControlProtocol.TYPE_PROGRAM, program);
+        }
+
+        private void onProgram(byte type, final MotionProgram program) {
+            onTarget(type, new Command() {
+                @Override
+                public byte run() {
+                    return mTarget.runProgram(program);
+                }
+            });
+        }
+
+        @Override
+        public void onStop() {
+            onTarget(ControlProtocol.TYPE_STOP, new Command() {
+                @Override
+                public byte run() {
+                    return mTarget.stop();
+                }
+            });
+        }
+
+        @Override
+        public void onSubscribe(final int periodMs) {
+            mTargetHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    telemetryPeriodMs = periodMs;
+                    mTargetHandler.removeCallbacks(mSendTelemetry);
+                    if (periodMs > 0) {
+                        mTargetHandler.post(mSendTelemetry);
+                    }
+                }
+            });
+            ack(ControlProtocol.TYPE_SUBSCRIBE, ControlProtocol.STATUS_OK);
+        }
+
+        @Override
+        public void onInvalid(byte type, String reason) {
+            Log.w(TAG, "Invalid control frame: " + reason);
+            ack(type, ControlProtocol.STATUS_INVALID);
+        }
+
+        @Override
+        public void onProtocolError(String reason) {
+            Log.w(TAG, "Control protocol error, closing connection: " + reason);
+            close(this);
+        }
+
+        private void onTarget(final byte type, final Command command) {
+            mTargetHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    ack(type, command.run());
+                }
+            });
+        }
+
+        private void ack(byte type, byte status) {
+            boolean overflow = false;
+            synchronized (out) {
+                try {
+                    ControlProtocol.putAck(out, type, status);
+                } catch (BufferOverflowException e) {
+                    overflow = true;
+                }
+                out.notifyAll();
+            }
+
+            if (overflow) {
+                // Acks are never dropped. A client that doesn't read them doesn't get to stay.
+                Log.w(TAG, "Control client isn't reading, closing connection");
+                close(this);
+            }
+        }
+    }
+
+    private interface Command {
+        byte run();
+    }
+
+    public ControlServer(Looper targetLooper, Target target, String name) {
+        mTargetHandler = new Handler(targetLooper);
+        mTarget = target;
+        mName = name;
+    }
+
+    public void start() throws IOException {
+        if (mRunning)
+            return;
+        if (mThread != null && mThread.isAlive()) {
+            throw new IOException("Control server on @" + mName + " is still stopping");
+        }
+
+        mServerSocket = new LocalServerSocket(mName);
+
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "ControlServer");
+        mThread.start();
+
+        Log.i(TAG, "Control server listening on @" + mName);
+    }
+
+    public void stop() {
+        if (! mRunning)
+            return;
+
+        mRunning = false;
+
+        // Closing a LocalServerSocket doesn't wake a blocked accept(). Connecting does.
+        LocalSocket wake = new LocalSocket();
+        try {
+            wake.connect(new LocalSocketAddress(mName));
+            wake.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not wake the control server", e);
+        }
+
+        // The accept thread closes the clients and the socket on its way out. Don't hold up the
+        // caller for long if that's slow.
+        try {
+            mThread.join(STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mThread.isAlive()) {
+            Log.w(TAG, "Control server is taking a while to stop");
+        }
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    private void serve() {
+        try {
+            while (mRunning) {
+                LocalSocket socket = mServerSocket.accept();
+                if (! mRunning) {
+                    socket.close();
+                    break;
+                }
+                accept(socket);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Control server failed", e);
+        } finally {
+            List<Client> clients;
+            synchronized (mClients) {
+                clients = new ArrayList<>(mClients);
+            }
+            for (Client client : clients) {
+                close(client);
+            }
+            try {
+                mServerSocket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not close control server", e);
+            }
+            mRunning = false;
+
+            Log.i(TAG, "Control server stopped");
+        }
+    }
+
+    private void accept(LocalSocket socket) throws IOException {
+        Credentials peer = socket.getPeerCredentials();
+        int uid = peer.getUid();
+        if (uid != Process.myUid() && uid != SHELL_UID && uid != ROOT_UID) {
+            Log.w(TAG, "Refused control client with uid " + uid);
+            socket.close();
+            return;
+        }
+
+        final Client client = new Client(socket);
+        synchronized (mClients) {
+            mClients.add(client);
+        }
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                client.read();
+            }
+        }, "ControlServer reader").start();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                client.write();
+            }
+        }, "ControlServer writer").start();
+
+        Log.i(TAG, "Control client connected, uid " + uid);
+    }
+
+    // Called from any thread. Wakes both of the client's threads.
+    private void close(final Client client) {
+        synchronized (client.out) {
+            client.closed = true;
+            client.out.notifyAll();
+        }
+        synchronized (mClients) {
+            if (! mClients.remove(client))
+                return;
+        }
+
+        mTargetHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mTargetHandler.removeCallbacks(client.mSendTelemetry);
+            }
+        });
+
+        try {
+            client.socket.shutdownInput();
+        } catch (IOException e) {
+            // Already gone
+        }
+        try {
+            client.socket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not close control client", e);
+        }
+
+        Log.i(TAG, "Control client disconnected");
+    }
+}
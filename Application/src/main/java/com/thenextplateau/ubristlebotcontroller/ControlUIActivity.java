@@ -25,15 +25,18 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
+import android.graphics.Color;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.SeekBar;
 import android.widget.TextView;
+import android.widget.Toast;
 
 /*
  Activity Flow:
@@ -53,10 +56,12 @@ public class ControlUIActivity extends Activity {
     // Dialogs
     private static View mDialog_View;
     private static AlertDialog mDialog_Settings;
+    private final int[] mInitialColorProgress = new int[3];
 
     // Text Views
     private static TextView batteryView;
     private static TextView rssiView;
+    private static int rssiDefaultColor;
 
 
     // SeekBar
@@ -85,21 +90,12 @@ public class ControlUIActivity extends Activity {
                 return;
             }
 
-            // Set Device Name
-            TextView deviceNameText = (TextView) findViewById(R.id.text_device_name);
-            deviceNameText.setText(uBristleBot.getName());
+            // Keeps the service from going idle under us
+            uBristleBot.setControlsVisible(true);
 
-            // Populate dialog field with name
-            ((EditText) mDialog_View.findViewById(R.id.dialog_text_device_name)).
-                    setText(uBristleBot.getName());
-
-            // Set RGB sliders to current value
-            ((SeekBar) mDialog_View.findViewById(R.id.seekbar_led_color_red)).
-                    setProgress(uBristleBot.getColor()[0] * 100 / 255);
-            ((SeekBar) mDialog_View.findViewById(R.id.seekbar_led_color_green)).
-                    setProgress(uBristleBot.getColor()[1] * 100 / 255);
-            ((SeekBar) mDialog_View.findViewById(R.id.seekbar_led_color_blue)).
-                    setProgress(uBristleBot.getColor()[2] * 100 / 255);
+            // Name and color may still be loading. They're updated again when they arrive.
+            showDeviceName();
+            showDeviceColor();
 
 
             // Set Seekbar values once they're setup
@@ -114,6 +110,29 @@ public class ControlUIActivity extends Activity {
         }
     };
 
+    private void showDeviceName() {
+        // Set Device Name
+        TextView deviceNameText = (TextView) findViewById(R.id.text_device_name);
+        deviceNameText.setText(uBristleBot.getName());
+
+        // Populate dialog field with name
+        ((EditText) mDialog_View.findViewById(R.id.dialog_text_device_name)).
+                setText(uBristleBot.getName());
+    }
+
+    private void showDeviceColor() {
+        // Set RGB sliders to current value
+        mInitialColorProgress[0] = uBristleBot.getColor()[0] * 100 / 255;
+        mInitialColorProgress[1] = uBristleBot.getColor()[1] * 100 / 255;
+        mInitialColorProgress[2] = uBristleBot.getColor()[2] * 100 / 255;
+        ((SeekBar) mDialog_View.findViewById(R.id.seekbar_led_color_red)).
+                setProgress(mInitialColorProgress[0]);
+        ((SeekBar) mDialog_View.findViewById(R.id.seekbar_led_color_green)).
+                setProgress(mInitialColorProgress[1]);
+        ((SeekBar) mDialog_View.findViewById(R.id.seekbar_led_color_blue)).
+                setProgress(mInitialColorProgress[2]);
+    }
+
     // Handles various events fired by the Service.
     // ACTION_GATT_CONNECTED: connected to a GATT server.
     // ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
@@ -123,13 +142,38 @@ public class ControlUIActivity extends Activity {
     private final BroadcastReceiver mUpdateReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
+            LooperMonitor.attribute("ControlUIActivity.mUpdateReceiver");
+
             final String action = intent.getAction();
 
 
             if (uBristleBotService.ACTION_DEVICE_RSSI_CHANGED.equals(action)) {
-                rssiView.setText(String.valueOf(intent.getIntExtra(uBristleBotService.DEVICE_RSSI, -999)) + " dBm");
+                mPendingRssi = intent.getIntExtra(uBristleBotService.DEVICE_RSSI, RSSI_LABEL_MIN);
+                scheduleTelemetryFrame();
+            } else if (uBristleBotService.ACTION_DEVICE_LINK_WARNING.equals(action)) {
+                // Warn the driver before the link collapses
+                if (intent.getBooleanExtra(uBristleBotService.DEVICE_LINK_WARNING, false)) {
+                    rssiView.setTextColor(Color.RED);
+                } else {
+                    rssiView.setTextColor(rssiDefaultColor);
+                }
             } else if (uBristleBotService.ACTION_DEVICE_BATTERY_CHANGED.equals(action)) {
-                batteryView.setText(String.valueOf(intent.getIntExtra(uBristleBotService.DEVICE_BATTERY, -1)) + "%");
+                mPendingBattery = intent.getIntExtra(uBristleBotService.DEVICE_BATTERY, 0);
+                scheduleTelemetryFrame();
+            } else if (uBristleBotService.ACTION_DEVICE_NAME_CHANGED.equals(action)) {
+                if (uBristleBot != null) {
+                    showDeviceName();
+                }
+            } else if (uBristleBotService.ACTION_DEVICE_COLOR_CHANGED.equals(action)) {
+                // Don't yank the sliders out from under someone picking a color
+                if (uBristleBot != null && ! mDialog_Settings.isShowing()) {
+                    showDeviceColor();
+                }
+            } else if (uBristleBotService.ACTION_SETTINGS_SAVED.equals(action)) {
+                if (intent.getIntExtra(uBristleBotService.SETTINGS_RESULT,
+                        uBristleBotService.SETTINGS_RESULT_FAILED) == uBristleBotService.SETTINGS_RESULT_FAILED) {
+                    Toast.makeText(ControlUIActivity.this, R.string.settings_save_failed, Toast.LENGTH_SHORT).show();
+                }
             } else if (uBristleBotService.ACTION_DEVICE_DISCONNECTED.equals(action)) {
                 Log.e(TAG, "Connection lost");
 
@@ -138,11 +182,69 @@ public class ControlUIActivity extends Activity {
         }
     };
 
+    //
+    // Telemetry rendering
+    //
+    // Updates are coalesced onto the next display frame, and only drawn if they've changed.
+    //  Labels come from precomputed tables so nothing is allocated while the user is driving.
+    private static final int RSSI_LABEL_MIN = -127;
+    private static final int RSSI_LABEL_MAX = 20;
+    private static final String[] RSSI_LABELS = new String[RSSI_LABEL_MAX - RSSI_LABEL_MIN + 1];
+    private static final String[] BATTERY_LABELS = new String[101];
+    static {
+        for (int i = 0; i < RSSI_LABELS.length; i++) {
+            RSSI_LABELS[i] = String.valueOf(RSSI_LABEL_MIN + i) + " dBm";
+        }
+        for (int i = 0; i < BATTERY_LABELS.length; i++) {
+            BATTERY_LABELS[i] = String.valueOf(i) + "%";
+        }
+    }
+
+    private static final int TELEMETRY_NONE = Integer.MIN_VALUE;
+
+    private int mPendingRssi = TELEMETRY_NONE;
+    private int mPendingBattery = TELEMETRY_NONE;
+    private int mShownRssi = TELEMETRY_NONE;
+    private int mShownBattery = TELEMETRY_NONE;
+    private boolean mTelemetryFrameScheduled;
+
+    private final Choreographer.FrameCallback mTelemetryFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mTelemetryFrameScheduled = false;
+
+            if (mPendingRssi != TELEMETRY_NONE && mPendingRssi != mShownRssi) {
+                mShownRssi = mPendingRssi;
+                rssiView.setText(RSSI_LABELS[clamp(mShownRssi, RSSI_LABEL_MIN, RSSI_LABEL_MAX) - RSSI_LABEL_MIN]);
+            }
+
+            if (mPendingBattery != TELEMETRY_NONE && mPendingBattery != mShownBattery) {
+                mShownBattery = mPendingBattery;
+                batteryView.setText(BATTERY_LABELS[clamp(mShownBattery, 0, 100)]);
+            }
+        }
+    };
+
+    private void scheduleTelemetryFrame() {
+        if (! mTelemetryFrameScheduled) {
+            mTelemetryFrameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(mTelemetryFrameCallback);
+        }
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
     private static IntentFilter makeUpdateIntentFilter() {
         final IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(uBristleBotService.ACTION_DEVICE_DISCONNECTED);
         intentFilter.addAction(uBristleBotService.ACTION_DEVICE_RSSI_CHANGED);
+        intentFilter.addAction(uBristleBotService.ACTION_DEVICE_LINK_WARNING);
         intentFilter.addAction(uBristleBotService.ACTION_DEVICE_BATTERY_CHANGED);
+        intentFilter.addAction(uBristleBotService.ACTION_SETTINGS_SAVED);
+        intentFilter.addAction(uBristleBotService.ACTION_DEVICE_NAME_CHANGED);
+        intentFilter.addAction(uBristleBotService.ACTION_DEVICE_COLOR_CHANGED);
         return intentFilter;
     }
 
@@ -180,13 +282,17 @@ public class ControlUIActivity extends Activity {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
                 if (uBristleBot != null) {
-                    Log.i(TAG, "Left Motor: " + String.valueOf(progress) + "%");
                     uBristleBot.setLeftMotor(progress);
                 }
             }
 
             @Override
-            public void onStartTrackingTouch(SeekBar seekBar) {}
+            public void onStartTrackingTouch(SeekBar seekBar) {
+                // The driver takes over from any running program
+                if (uBristleBot != null) {
+                    uBristleBot.stopMotionProgram();
+                }
+            }
 
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
@@ -200,13 +306,16 @@ public class ControlUIActivity extends Activity {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
                 if (uBristleBot != null) {
-                    Log.i(TAG, "Right Motor: " + String.valueOf(progress) + "%");
                     uBristleBot.setRightMotor(progress);
                 }
             }
 
             @Override
             public void onStartTrackingTouch(SeekBar seekBar) {
+                // The driver takes over from any running program
+                if (uBristleBot != null) {
+                    uBristleBot.stopMotionProgram();
+                }
             }
 
             @Override
@@ -221,6 +330,7 @@ public class ControlUIActivity extends Activity {
 
         // RSSI Indicator
         rssiView = (TextView) findViewById(R.id.rssiTextView);
+        rssiDefaultColor = rssiView.getCurrentTextColor();
 
         // Settings Dialog
         ImageView mSettingsIcon = (ImageView) findViewById(R.id.settingsIcon);
@@ -250,19 +360,63 @@ public class ControlUIActivity extends Activity {
                         // Set name
                         uBristleBot.setName(String.valueOf(deviceName.getText()));
 
-                        // Set color
-                        uBristleBot.setColor(
-                                red.getProgress() * 255 / 100,
-                                green.getProgress() * 255 / 100,
-                                blue.getProgress() * 255 / 100
-                                );
+                        // Set color, if it was touched. Sliders lose precision, so leave it
+                        //  alone otherwise and it won't need to be written.
+                        if (red.getProgress() != mInitialColorProgress[0] ||
+                                green.getProgress() != mInitialColorProgress[1] ||
+                                blue.getProgress() != mInitialColorProgress[2]) {
+                            uBristleBot.setColor(
+                                    red.getProgress() * 255 / 100,
+                                    green.getProgress() * 255 / 100,
+                                    blue.getProgress() * 255 / 100
+                                    );
+                        }
 
                         // Save settings and disconnect
                         uBristleBot.saveSettingsAndDisconnect();
                     }
                 })
-                .setNegativeButton(R.string.cancel, null)
+                .setNegativeButton(R.string.cancel, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (uBristleBot != null) {
+                            uBristleBot.cancelColorPreview();
+                        }
+                    }
+                })
+                .setOnCancelListener(new DialogInterface.OnCancelListener() {
+                    @Override
+                    public void onCancel(DialogInterface dialog) {
+                        if (uBristleBot != null) {
+                            uBristleBot.cancelColorPreview();
+                        }
+                    }
+                })
                 .create();
+
+        // Preview colors live on the bot while the sliders are dragged
+        SeekBar.OnSeekBarChangeListener colorPreviewListener = new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                if (fromUser && uBristleBot != null) {
+                    uBristleBot.setColorPreview(
+                            ((SeekBar) mDialog_View.findViewById(R.id.seekbar_led_color_red)).getProgress() * 255 / 100,
+                            ((SeekBar) mDialog_View.findViewById(R.id.seekbar_led_color_green)).getProgress() * 255 / 100,
+                            ((SeekBar) mDialog_View.findViewById(R.id.seekbar_led_color_blue)).getProgress() * 255 / 100);
+                }
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {}
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {}
+        };
+        ((SeekBar) mDialog_View.findViewById(R.id.seekbar_led_color_red)).
+                setOnSeekBarChangeListener(colorPreviewListener);
+        ((SeekBar) mDialog_View.findViewById(R.id.seekbar_led_color_green)).
+                setOnSeekBarChangeListener(colorPreviewListener);
+        ((SeekBar) mDialog_View.findViewById(R.id.seekbar_led_color_blue)).
+                setOnSeekBarChangeListener(colorPreviewListener);
     }
 
     @Override
@@ -271,6 +425,19 @@ public class ControlUIActivity extends Activity {
 
         // Get updates from Service
         registerReceiver(mUpdateReceiver, makeUpdateIntentFilter());
+
+        if (uBristleBot != null) {
+            uBristleBot.setControlsVisible(true);
+
+            // Updates sent while paused were missed. Start from what the service knows now.
+            if (uBristleBot.hasRssi()) {
+                mPendingRssi = uBristleBot.getSmoothedRssi();
+            }
+            if (uBristleBot.getBatteryPercent() >= 0) {
+                mPendingBattery = uBristleBot.getBatteryPercent();
+            }
+            scheduleTelemetryFrame();
+        }
     }
 
     @Override
@@ -278,6 +445,19 @@ public class ControlUIActivity extends Activity {
         super.onPause();
 
         unregisterReceiver(mUpdateReceiver);
+
+        // The link outlives this activity, the driving doesn't. Don't leave a bot running.
+        leftSeekbar.setProgress(0);
+        rightSeekbar.setProgress(0);
+
+        // Once the bot has been parked a while, the service can let the link rest
+        if (uBristleBot != null) {
+            uBristleBot.setControlsVisible(false);
+        }
+
+        // Nothing to draw while we're not visible
+        Choreographer.getInstance().removeFrameCallback(mTelemetryFrameCallback);
+        mTelemetryFrameScheduled = false;
     }
 
     @Override
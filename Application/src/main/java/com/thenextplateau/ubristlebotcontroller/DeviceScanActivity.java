@@ -54,16 +54,22 @@ import java.util.ArrayList;
  - Connect to uBristleBot Service
    - Failed? Peace out...
  - Start BLE Scan
-   - uBristleBot.scanForBots(boolean, timeout)
- - Populate list while devices are found
+   - uBristleBot.startDiscovery(ScanPolicy)
+ - Meanwhile, quick connect to the bots used last
+   - uBristleBot.quickConnect()
+   - On success, switch to ControlUIActivity
+ - List the bots connected to before, as not seen yet
+ - Populate list while devices are found, drop devices that go quiet
  - Item Clicked -> Connect
    - uBtistleBot.connectTo(device -OR- address)
    - On success, check Services for valid target
  - On success, switch to ControlUIActivity
  - On failure, rescan, without clearing list
+ - A connected bot stays connected after leaving either activity
+   - Picking it again goes straight back to ControlUIActivity
 
- - On pull down gesture, Clear List and Rescan
- - On Icon press, Clear List and Rescan
+ - On pull down gesture, Rescan without clearing the list
+ - On Icon press, Rescan without clearing the list
  */
 public class DeviceScanActivity extends AppCompatActivity {
     private static final String TAG = DeviceScanActivity.class.getSimpleName();
@@ -96,8 +102,14 @@ public class DeviceScanActivity extends AppCompatActivity {
                 return;
             }
 
+            // Show the bots we know right away. Live scan results update them in place.
+            showKnownBots();
+
             // Start scan on connection
-            uBristleBot.scanForBots(true);
+            startDeviceScan(true);
+
+            // Meanwhile, try the bots used last. If one is around, it goes straight to Control UI.
+            uBristleBot.quickConnect();
         }
 
         @Override
@@ -111,6 +123,7 @@ public class DeviceScanActivity extends AppCompatActivity {
     // Capture events sent out by uBristleBotService
     //   BLE Not Enabled
     //   Device Found
+    //   Device Lost
     //   Connection Failed [General Failure, Service Match]
     //   Connecting
     //   Connected
@@ -118,6 +131,8 @@ public class DeviceScanActivity extends AppCompatActivity {
     private final BroadcastReceiver mUpdateReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
+            LooperMonitor.attribute("DeviceScanActivity.mUpdateReceiver");
+
             final String action = intent.getAction();
 
             if (uBristleBotService.ACTION_BLUETOOTH_IS_DISABLED.equals(action)) {
@@ -134,6 +149,19 @@ public class DeviceScanActivity extends AppCompatActivity {
 
                 // Update UI List
                 mLeDeviceListAdapter.notifyDataSetChanged();
+            } else if (uBristleBotService.ACTION_DEVICE_LOST.equals(action)) {
+                // Not seen in a while. Bots we know stay listed, the rest are removed.
+                String address = intent.getStringExtra(uBristleBotService.SCAN_RESULT_DEVICE_ADDRESS);
+                boolean changed = uBristleBot != null && uBristleBot.isKnownBot(address) ?
+                        mLeDeviceListAdapter.markUnseen(address) :
+                        mLeDeviceListAdapter.removeDevice(address);
+                if (changed) {
+                    mLeDeviceListAdapter.notifyDataSetChanged();
+                }
+            } else if (uBristleBotService.ACTION_KNOWN_BOTS_LOADED.equals(action)) {
+                // Finished loading after the list was first filled
+                showKnownBots();
+
             } else if (uBristleBotService.ACTION_SCAN_COMPLETE.equals(action)) {
                 // Indicate scan was completed/stopped
                 mRefreshLayout.setRefreshing(false);
@@ -157,10 +185,23 @@ public class DeviceScanActivity extends AppCompatActivity {
         }
     };
 
+    private void showKnownBots() {
+        if (uBristleBot == null)
+            return;
+
+        for (BotInventoryStore.Bot bot : uBristleBot.getKnownBots()) {
+            mLeDeviceListAdapter.addKnownDevice(bot.name, bot.address,
+                    bot.rssi == BotInventoryStore.UNKNOWN ? 0 : bot.rssi);
+        }
+        mLeDeviceListAdapter.notifyDataSetChanged();
+    }
+
     private static IntentFilter makeUpdateIntentFilter() {
         final IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(uBristleBotService.ACTION_BLUETOOTH_IS_DISABLED);
         intentFilter.addAction(uBristleBotService.ACTION_DEVICE_FOUND);
+        intentFilter.addAction(uBristleBotService.ACTION_DEVICE_LOST);
+        intentFilter.addAction(uBristleBotService.ACTION_KNOWN_BOTS_LOADED);
         intentFilter.addAction(uBristleBotService.ACTION_SCAN_COMPLETE);
         intentFilter.addAction(uBristleBotService.ACTION_CONNECTING_COMPARING_SERVICES);
         intentFilter.addAction(uBristleBotService.ACTION_CONNECTING_READING_CHARACTERISTICS);
@@ -213,10 +254,15 @@ public class DeviceScanActivity extends AppCompatActivity {
 
 
         mDeviceList = (ListView) findViewById(R.id.deviceList);
+
+        // The list is kept across pauses. Devices that went away get evicted by the service.
+        mLeDeviceListAdapter = new LeDeviceListAdapter();
+        mDeviceList.setAdapter(mLeDeviceListAdapter);
         mDeviceList.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                if (!uBristleBot.isConnecting()) {
+                // A quick connect in progress gives way to the device picked
+                if (!uBristleBot.isConnecting() || uBristleBot.isQuickConnecting()) {
                     // Connect to device selected
                     uBristleBot.connectTo((String) mLeDeviceListAdapter.getItem(position));
 
@@ -249,10 +295,6 @@ public class DeviceScanActivity extends AppCompatActivity {
         // Get updates from Service
         registerReceiver(mUpdateReceiver, makeUpdateIntentFilter());
 
-        // Create new list
-        mLeDeviceListAdapter = new LeDeviceListAdapter();
-        mDeviceList.setAdapter(mLeDeviceListAdapter);
-
         // Start scanning for devices
         startDeviceScan(true);
     }
@@ -274,9 +316,7 @@ public class DeviceScanActivity extends AppCompatActivity {
 
         startDeviceScan(false);
 
-        if (uBristleBot != null) {
-            uBristleBot.disconnect();
-        }
+        // A connected bot stays connected. The service runs the session on its own.
         unbindService(mServiceConnection);
         uBristleBot = null;
     }
@@ -326,16 +366,21 @@ public class DeviceScanActivity extends AppCompatActivity {
                 // Enable refresh indicator for layout
                 mRefreshLayout.setRefreshing(true);
 
-                // Update UI List
-                mLeDeviceListAdapter.clear();
-                mLeDeviceListAdapter.notifyDataSetChanged();
+                // Start a fresh scan window. The list is kept, devices update in place.
+                uBristleBot.startDiscovery(ScanPolicy.BALANCED);
 
-                // Start new scan for devices
-                uBristleBot.scanForBots(true);
+                // A connected bot doesn't advertise. List it, so it can be picked up again.
+                if (uBristleBot.isConnected()) {
+                    mLeDeviceListAdapter.addDevice(
+                            uBristleBot.getName(),
+                            uBristleBot.getConnectedAddress(),
+                            uBristleBot.getSmoothedRssi());
+                    mLeDeviceListAdapter.notifyDataSetChanged();
+                }
             }
         } else {
             if (uBristleBot != null) {
-                uBristleBot.scanForBots(false);
+                uBristleBot.stopDiscovery();
             }
 
             // Enable refresh indicator for layout
@@ -352,6 +397,8 @@ public class DeviceScanActivity extends AppCompatActivity {
         private ArrayList<String> mDeviceList_Name;
         private ArrayList<String> mDeviceList_Address;
         private ArrayList<Integer> mDeviceList_RSSI;
+        // False for bots from the inventory that haven't been heard from yet
+        private ArrayList<Boolean> mDeviceList_Seen;
         private LayoutInflater mInflator;
         private ViewGroup mParent;
 
@@ -361,6 +408,7 @@ public class DeviceScanActivity extends AppCompatActivity {
             mDeviceList_Name = new ArrayList<>();
             mDeviceList_Address = new ArrayList<>();
             mDeviceList_RSSI = new ArrayList<>();
+            mDeviceList_Seen = new ArrayList<>();
 
             mInflator = DeviceScanActivity.this.getLayoutInflater();
 
@@ -370,15 +418,18 @@ public class DeviceScanActivity extends AppCompatActivity {
         // Insert new device into list, with strongest RSSI at the top
         public void addDevice(String name, String address, int rssi) {
             if (mDeviceList_Address.contains(address)) {
-                // Update entry
+                // Update entry. Advertisements often leave out the name, keep the one we know.
                 int index = mDeviceList_Address.indexOf(address);
-                mDeviceList_Name.set(index, name);
+                if (name != null && name.length() > 0) {
+                    mDeviceList_Name.set(index, name);
+                }
                 mDeviceList_RSSI.set(index, rssi);
+                mDeviceList_Seen.set(index, true);
             } else {
-                // Add new entry
+                // Add new entry, above the bots not seen yet
                 int index = 0;
                 for (; index < mDeviceList_RSSI.size(); index++) {
-                    if (rssi >= mDeviceList_RSSI.get(index)) {
+                    if (! mDeviceList_Seen.get(index) || rssi >= mDeviceList_RSSI.get(index)) {
                         break;
                     }
                 }
@@ -386,13 +437,51 @@ public class DeviceScanActivity extends AppCompatActivity {
                 mDeviceList_Name.add(index, name);
                 mDeviceList_Address.add(index, address);
                 mDeviceList_RSSI.add(index, rssi);
+                mDeviceList_Seen.add(index, true);
+            }
+        }
+
+        // List a bot from the inventory at the bottom, until it shows up for real
+        public void addKnownDevice(String name, String address, int lastRssi) {
+            if (mDeviceList_Address.contains(address))
+                return;
+
+            mDeviceList_Name.add(name);
+            mDeviceList_Address.add(address);
+            mDeviceList_RSSI.add(lastRssi);
+            mDeviceList_Seen.add(false);
+        }
+
+        // Returns true if the device was listed
+        public boolean markUnseen(String address) {
+            int index = mDeviceList_Address.indexOf(address);
+            if (index < 0) {
+                return false;
             }
+
+            mDeviceList_Seen.set(index, false);
+            return true;
+        }
+
+        // Returns true if the device was listed
+        public boolean removeDevice(String address) {
+            int index = mDeviceList_Address.indexOf(address);
+            if (index < 0) {
+                return false;
+            }
+
+            mDeviceList_Name.remove(index);
+            mDeviceList_Address.remove(index);
+            mDeviceList_RSSI.remove(index);
+            mDeviceList_Seen.remove(index);
+            return true;
         }
 
         public void clear() {
             mDeviceList_Name.clear();
             mDeviceList_Address.clear();
             mDeviceList_RSSI.clear();
+            mDeviceList_Seen.clear();
         }
 
         @Override
@@ -431,13 +520,19 @@ public class DeviceScanActivity extends AppCompatActivity {
             final String deviceName= mDeviceList_Name.get(i);
             final String deviceAddr= mDeviceList_Address.get(i);
             final int deviceRSSI = mDeviceList_RSSI.get(i);
+            final boolean deviceSeen = mDeviceList_Seen.get(i);
             if (deviceName != null && deviceName.length() > 0) {
                 viewHolder.deviceName.setText(deviceName);
             } else {
                 viewHolder.deviceName.setText(R.string.unknown_device);
             }
             viewHolder.deviceAddress.setText(deviceAddr);
-            viewHolder.deviceRSSI.setText(String.valueOf(deviceRSSI) + " dBm");
+            if (deviceSeen) {
+                viewHolder.deviceRSSI.setText(String.valueOf(deviceRSSI) + " dBm");
+            } else {
+                viewHolder.deviceRSSI.setText(R.string.not_seen_yet);
+            }
+            view.setAlpha(deviceSeen ? 1f : 0.5f);
 
             return view;
         }
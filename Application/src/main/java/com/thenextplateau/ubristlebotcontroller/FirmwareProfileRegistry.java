@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Known uBristleBot firmware layouts, and which one a device's GATT table matches.
+ *
+ * Each profile says which service and characteristic fill each role the app needs. Discovered
+ * services are looked up by UUID, so their order doesn't matter, and services no profile knows
+ * about are ignored. The first registered profile that resolves every role wins.
+ */
+public class FirmwareProfileRegistry {
+
+    // What the app needs from a device
+    public static final int ROLE_DEVICE_NAME = 0;
+    public static final int ROLE_BATTERY = 1;
+    public static final int ROLE_RGB_LEDS = 2;
+    public static final int ROLE_MOTORS = 3;
+    public static final int ROLE_SAVE = 4;
+    public static final int ROLE_COUNT = 5;
+
+    public static class Profile {
+        public final String name;
+
+        // Indexed by ROLE_*
+        private final UUID[] mServices = new UUID[ROLE_COUNT];
+        private final UUID[] mCharacteristics = new UUID[ROLE_COUNT];
+
+        public Profile(String name) {
+            this.name = name;
+        }
+
+        public Profile setRole(int role, UUID service, UUID characteristic) {
+            mServices[role] = service;
+            mCharacteristics[role] = characteristic;
+            return this;
+        }
+
+        boolean isComplete() {
+            for (int role = 0; role < ROLE_COUNT; role++) {
+                if (mServices[role] == null || mCharacteristics[role] == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Characteristics by role, or null if the device is missing any of them
+        BluetoothGattCharacteristic[] resolve(Map<UUID, BluetoothGattService> services) {
+            BluetoothGattCharacteristic[] characteristics = new BluetoothGattCharacteristic[ROLE_COUNT];
+
+            for (int role = 0; role < ROLE_COUNT; role++) {
+                BluetoothGattService service = services.get(mServices[role]);
+                if (service == null) {
+                    return null;
+                }
+
+                characteristics[role] = service.getCharacteristic(mCharacteristics[role]);
+                if (characteristics[role] == null) {
+                    return null;
+                }
+            }
+
+            return characteristics;
+        }
+    }
+
+    public static class Match {
+        public final Profile profile;
+        private final BluetoothGattCharacteristic[] mCharacteristics;
+
+        Match(Profile profile, BluetoothGattCharacteristic[] characteristics) {
+            this.profile = profile;
+            mCharacteristics = characteristics;
+        }
+
+        public BluetoothGattCharacteristic get(int role) {
+            return mCharacteristics[role];
+        }
+    }
+
+    private final List<Profile> mProfiles = new ArrayList<>();
+
+    // Every service UUID some profile uses. Anything else a device has is skipped when indexing.
+    private final Set<UUID> mKnownServices = new HashSet<>();
+
+    // Register newer, more specific layouts first. They're tried in order.
+    public FirmwareProfileRegistry register(Profile profile) {
+        if (! profile.isComplete()) {
+            throw new IllegalArgumentException("Firmware profile " + profile.name +
+                    " doesn't fill every role");
+        }
+
+        mProfiles.add(profile);
+        for (UUID service : profile.mServices) {
+            mKnownServices.add(service);
+        }
+        return this;
+    }
+
+    // The first profile the discovered services satisfy, or null if none do
+    public Match match(List<BluetoothGattService> discoveredServices) {
+        Map<UUID, BluetoothGattService> services = new HashMap<>();
+        for (BluetoothGattService service : discoveredServices) {
+            // Keep the first instance of a service, like BluetoothGatt.getService() does
+            if (mKnownServices.contains(service.getUuid()) &&
+                    ! services.containsKey(service.getUuid())) {
+                services.put(service.getUuid(), service);
+            }
+        }
+
+        for (Profile profile : mProfiles) {
+            BluetoothGattCharacteristic[] characteristics = profile.resolve(services);
+            if (characteristics != null) {
+                return new Match(profile, characteristics);
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.List;
+
+/**
+ * The client side of a GATT link to one device, as the service uses it.
+ *
+ * The service talks to the bot through this instead of BluetoothGatt directly, so the motor and
+ * settings pipelines can also run against a simulated peripheral on virtual time. The app's links
+ * are BluetoothGattLinks. Operations and callbacks mean the same as on BluetoothGatt.
+ */
+public interface GattLink {
+    String getAddress();
+    // Valid once services are discovered
+    List<BluetoothGattService> getServices();
+
+    boolean discoverServices();
+    boolean readCharacteristic(BluetoothGattCharacteristic characteristic);
+    boolean writeCharacteristic(BluetoothGattCharacteristic characteristic);
+    boolean writeDescriptor(BluetoothGattDescriptor descriptor);
+    boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable);
+    boolean readRemoteRssi();
+    boolean beginReliableWrite();
+    boolean executeReliableWrite();
+    void abortReliableWrite();
+    // API 21+, ignored before
+    boolean requestConnectionPriority(int priority);
+    // Drop the stack's cached GATT table for the device. False if that isn't possible.
+    boolean refresh();
+    void disconnect();
+    // No callbacks arrive after this
+    void close();
+
+    // Opens links to devices by address. Callbacks arrive on the service's main thread.
+    interface Connector {
+        GattLink connect(String address, Callback callback);
+    }
+
+    // As BluetoothGattCallback, with the link in place of the BluetoothGatt
+    abstract class Callback {
+        public void onConnectionStateChange(GattLink link, int status, int newState) {}
+        public void onServicesDiscovered(GattLink link, int status) {}
+        public void onCharacteristicRead(GattLink link, BluetoothGattCharacteristic characteristic,
+                                         int status) {}
+        public void onCharacteristicWrite(GattLink link, BluetoothGattCharacteristic characteristic,
+                                          int status) {}
+        public void onCharacteristicChanged(GattLink link,
+                                            BluetoothGattCharacteristic characteristic) {}
+        public void onDescriptorWrite(GattLink link, BluetoothGattDescriptor descriptor,
+                                      int status) {}
+        public void onReliableWriteCompleted(GattLink link, int status) {}
+        public void onReadRemoteRssi(GattLink link, int rssi, int status) {}
+    }
+}
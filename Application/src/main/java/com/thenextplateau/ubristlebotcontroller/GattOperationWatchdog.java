@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Watches the GATT operation in flight, so a lost callback can't stall the link forever.
+ *
+ * An operation that times out or fails is retried a bounded number of times, with jittered
+ * exponential backoff. Once its retries run out it's cancelled. If operations keep running out of
+ * retries with no success in between, recovery escalates to refreshing the link, then to
+ * reconnecting. Every timeout, retry and recovery step is counted.
+ *
+ * Operations whose caller retries them itself, like settings writes, are issued with
+ * onIssuedOnce(). They're only timed out, and cancelled as soon as they time out or fail.
+ */
+class GattOperationWatchdog {
+    private final static String TAG = GattOperationWatchdog.class.getSimpleName();
+
+    public static final int OP_NONE = 0;
+    public static final int OP_READ = 1;
+    public static final int OP_WRITE = 2;
+    public static final int OP_DESCRIPTOR_WRITE = 3;
+    public static final int OP_EXECUTE_RELIABLE_WRITE = 4;
+
+    // Time to wait for a callback, indexed by OP_*
+    private static final long[] TIMEOUT_MS = { 0, 1500, 1000, 1500, 2500 };
+
+    static final int MAX_RETRIES = 3;
+    private static final long BACKOFF_BASE_MS = 30;
+    private static final long BACKOFF_MAX_MS = 500;
+
+    // Every op that runs out of retries is cancelled. Repeat offenders escalate further.
+    private static final int ESCALATE_REFRESH = 2;
+    private static final int ESCALATE_RECONNECT = 3;
+
+    // What the service does for each step of recovery
+    interface Recovery {
+        // Issue the operation in flight again
+        void retry(int op);
+        // Give up on the operation in flight, and move on
+        void cancel(int op);
+        // Flush the stack's view of the device
+        void refresh();
+        // Tear the link down and bring it back up
+        void reconnect();
+    }
+
+    private final Scheduler mScheduler;
+    private final Recovery mRecovery;
+    private final Random mRandom = new Random();
+
+    private int mOp = OP_NONE;
+    private boolean mRetryable;
+    private int mAttempts;
+    private int mEscalation;
+
+    private long mTimeoutCount;
+    private long mRetryCount;
+    private long mCancelCount;
+    private long mRefreshCount;
+    private long mReconnectCount;
+
+    private final Runnable mOnTimeout = new Runnable() {
+        @Override
+        public void run() {
+            mTimeoutCount++;
+            Log.w(TAG, "GATT operation " + mOp + " timed out");
+
+            retryOrEscalate();
+        }
+
+        @Override
+        public String toString() {
+            return "GattOperationWatchdog.mOnTimeout";
+        }
+    };
+
+    private final Runnable mRetry = new Runnable() {
+        @Override
+        public void run() {
+            mRetryCount++;
+            mRecovery.retry(mOp);
+        }
+
+        @Override
+        public String toString() {
+            return "GattOperationWatchdog.mRetry";
+        }
+    };
+
+    GattOperationWatchdog(Scheduler scheduler, Recovery recovery) {
+        mScheduler = scheduler;
+        mRecovery = recovery;
+    }
+
+    // An operation was handed to the stack. Retries of the same op keep their attempt count.
+    void onIssued(int op) {
+        if (op != mOp || ! mRetryable) {
+            mOp = op;
+            mAttempts = 0;
+        }
+        mRetryable = true;
+
+        mScheduler.removeCallbacks(mOnTimeout);
+        mScheduler.postDelayed(mOnTimeout, TIMEOUT_MS[op]);
+    }
+
+    // An operation the caller retries itself was handed to the stack. It's cancelled as soon as it
+    //  times out or fails, without retries of its own, and doesn't count towards escalation.
+    void onIssuedOnce(int op) {
+        mOp = op;
+        mRetryable = false;
+        mAttempts = 0;
+
+        mScheduler.removeCallbacks(mOnTimeout);
+        mScheduler.removeCallbacks(mRetry);
+        mScheduler.postDelayed(mOnTimeout, TIMEOUT_MS[op]);
+    }
+
+    // The operation's callback arrived
+    void onSucceeded() {
+        mScheduler.removeCallbacks(mOnTimeout);
+        mScheduler.removeCallbacks(mRetry);
+        mOp = OP_NONE;
+        mAttempts = 0;
+        mEscalation = 0;
+    }
+
+    // The operation's callback arrived with an error. It will be retried, or cancelled.
+    void onFailed() {
+        mScheduler.removeCallbacks(mOnTimeout);
+        retryOrEscalate();
+    }
+
+    // Forget about the operation in flight, without counting it as a success
+    void clear() {
+        mScheduler.removeCallbacks(mOnTimeout);
+        mScheduler.removeCallbacks(mRetry);
+        mOp = OP_NONE;
+        mAttempts = 0;
+    }
+
+    void reset() {
+        clear();
+        mEscalation = 0;
+    }
+
+    boolean isRetryPending() {
+        return mOp != OP_NONE && mAttempts > 0;
+    }
+
+    // Retries so far of the operation in flight
+    int getAttempts() {
+        return mAttempts;
+    }
+
+    private void retryOrEscalate() {
+        if (mOp == OP_NONE)
+            return;
+
+        if (! mRetryable) {
+            int op = mOp;
+            mOp = OP_NONE;
+            mCancelCount++;
+            mRecovery.cancel(op);
+            return;
+        }
+
+        if (++mAttempts <= MAX_RETRIES) {
+            mScheduler.postDelayed(mRetry, backoffMs(mAttempts, mRandom));
+            return;
+        }
+
+        int op = mOp;
+        mOp = OP_NONE;
+        mAttempts = 0;
+        mEscalation++;
+
+        Log.e(TAG, "GATT operation " + op + " out of retries. Escalation level " + mEscalation);
+
+        mCancelCount++;
+        mRecovery.cancel(op);
+
+        if (mEscalation == ESCALATE_REFRESH) {
+            mRefreshCount++;
+            mRecovery.refresh();
+        } else if (mEscalation >= ESCALATE_RECONNECT) {
+            mEscalation = 0;
+            mReconnectCount++;
+            mRecovery.reconnect();
+        }
+    }
+
+    // Exponential backoff, with full jitter so retries don't line up with anything periodic.
+    //  Attempts count from 1.
+    static long backoffMs(int attempt, Random random) {
+        long backoff = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << Math.min(attempt - 1, 30));
+        return (long) (random.nextFloat() * backoff);
+    }
+
+    //
+    // Counters
+    //
+    long getTimeoutCount() {
+        return mTimeoutCount;
+    }
+
+    long getRetryCount() {
+        return mRetryCount;
+    }
+
+    long getCancelCount() {
+        return mCancelCount;
+    }
+
+    long getRefreshCount() {
+        return mRefreshCount;
+    }
+
+    long getReconnectCount() {
+        return mReconnectCount;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+/**
+ * Estimates the quality of the BLE link to a uBristleBot.
+ *
+ * Combines an exponentially smoothed RSSI, the motor write failure and retry ratios, and the
+ * write acknowledgement round-trip time into a single 0-100 score, along with its trend.
+ */
+public class LinkQualityEstimator {
+
+    // Smoothing factors (0 < alpha <= 1, higher reacts faster)
+    private static final float RSSI_ALPHA = 0.25f;
+    private static final float RATIO_ALPHA = 0.1f;
+    private static final float RTT_ALPHA = 0.2f;
+    private static final float TREND_ALPHA = 0.2f;
+
+    // Ranges mapped onto 0-100%
+    private static final float RSSI_BEST = -50f;
+    private static final float RSSI_WORST = -95f;
+    private static final float RTT_BEST_MS = 15f;
+    private static final float RTT_WORST_MS = 250f;
+
+    // Weights of each component in the final score
+    private static final float WEIGHT_RSSI = 0.4f;
+    private static final float WEIGHT_WRITES = 0.35f;
+    private static final float WEIGHT_RTT = 0.25f;
+
+    // A trend smaller than this (in score points per update) is considered steady
+    private static final float TREND_DEADBAND = 0.5f;
+
+    public static final int TREND_FALLING = -1;
+    public static final int TREND_STEADY = 0;
+    public static final int TREND_RISING = 1;
+
+    private boolean mHasRssi;
+    private float mRssi;
+    private boolean mHasRtt;
+    private float mRttMs;
+    private float mFailureRatio;
+    private float mRetryRatio;
+
+    private int mWriteCount;
+    private int mFailureCount;
+    private int mRetryCount;
+
+    private float mScore;
+    private float mTrend;
+
+    public LinkQualityEstimator() {
+        reset();
+    }
+
+    public synchronized void reset() {
+        mHasRssi = false;
+        mRssi = RSSI_WORST;
+        mHasRtt = false;
+        mRttMs = RTT_BEST_MS;
+        mFailureRatio = 0;
+        mRetryRatio = 0;
+
+        mWriteCount = 0;
+        mFailureCount = 0;
+        mRetryCount = 0;
+
+        mScore = 100;
+        mTrend = 0;
+    }
+
+    //
+    // Samples
+    //
+    public synchronized void addRssiSample(int rssi) {
+        if (mHasRssi) {
+            mRssi += RSSI_ALPHA * (rssi - mRssi);
+        } else {
+            mRssi = rssi;
+            mHasRssi = true;
+        }
+
+        updateScore();
+    }
+
+    public synchronized void addWriteResult(boolean success) {
+        mWriteCount++;
+        if (! success) {
+            mFailureCount++;
+        }
+
+        mFailureRatio += RATIO_ALPHA * ((success ? 0f : 1f) - mFailureRatio);
+        mRetryRatio += RATIO_ALPHA * (0f - mRetryRatio);
+
+        updateScore();
+    }
+
+    public synchronized void addWriteRetry() {
+        mRetryCount++;
+
+        mRetryRatio += RATIO_ALPHA * (1f - mRetryRatio);
+
+        updateScore();
+    }
+
+    public synchronized void addAckRoundTrip(long rttMs) {
+        if (mHasRtt) {
+            mRttMs += RTT_ALPHA * (rttMs - mRttMs);
+        } else {
+            mRttMs = rttMs;
+            mHasRtt = true;
+        }
+
+        updateScore();
+    }
+
+    //
+    // Estimates
+    //
+    // False until the first RSSI sample
+    public synchronized boolean hasRssi() {
+        return mHasRssi;
+    }
+
+    public synchronized int getSmoothedRssi() {
+        return Math.round(mRssi);
+    }
+
+    public synchronized float getFailureRatio() {
+        return mFailureRatio;
+    }
+
+    public synchronized float getRetryRatio() {
+        return mRetryRatio;
+    }
+
+    public synchronized float getAckRoundTripMs() {
+        return mRttMs;
+    }
+
+    public synchronized int getWriteCount() {
+        return mWriteCount;
+    }
+
+    public synchronized int getFailureCount() {
+        return mFailureCount;
+    }
+
+    public synchronized int getRetryCount() {
+        return mRetryCount;
+    }
+
+    // 0 (unusable) to 100 (perfect)
+    public synchronized int getScore() {
+        return Math.round(mScore);
+    }
+
+    // Smoothed change in score per sample. Negative means the link is getting worse.
+    public synchronized float getTrend() {
+        return mTrend;
+    }
+
+    public synchronized int getTrendDirection() {
+        if (mTrend > TREND_DEADBAND)
+            return TREND_RISING;
+        if (mTrend < -TREND_DEADBAND)
+            return TREND_FALLING;
+        return TREND_STEADY;
+    }
+
+    private void updateScore() {
+        float rssiScore = mHasRssi ? normalize(mRssi, RSSI_WORST, RSSI_BEST) : 1f;
+        float writeScore = 1f - Math.min(1f, mFailureRatio + mRetryRatio / 2);
+        float rttScore = mHasRtt ? normalize(mRttMs, RTT_WORST_MS, RTT_BEST_MS) : 1f;
+
+        float score = 100f * (WEIGHT_RSSI * rssiScore
+                + WEIGHT_WRITES * writeScore
+                + WEIGHT_RTT * rttScore);
+
+        mTrend += TREND_ALPHA * ((score - mScore) - mTrend);
+        mScore = score;
+    }
+
+    // Map value from [worst, best] onto [0, 1], clamping at the ends
+    private static float normalize(float value, float worst, float best) {
+        float n = (value - worst) / (best - worst);
+        if (n < 0)
+            return 0;
+        if (n > 1)
+            return 1;
+        return n;
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Printer;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Times every message a Looper dispatches, to find the work that holds up everything else queued
+ * behind it.
+ *
+ * Hooks into Looper.setMessageLogging(), which reports the start and end of each message. Each
+ * message is credited to its Runnable, or to its Handler and what code when it has none. Runnables
+ * can be given readable names up front, or name themselves by overriding toString(). Code that
+ * can't be told apart from the outside, like a BroadcastReceiver, can name the message it's
+ * running in with attribute(). Per target it keeps a histogram of dispatch times, and the slowest
+ * messages go to an outlier log.
+ *
+ * Looper builds a log line for every message while a printer is set, so this is for debugging
+ * only. What runs per message here doesn't allocate or lock once a target has been seen.
+ */
+public class LooperMonitor {
+
+    // Upper bounds (ms) of the dispatch time histogram buckets. The last bucket catches the rest.
+    private static final long[] DISPATCH_BUCKETS_MS = { 1, 2, 5, 10, 20, 50, 100, 200 };
+
+    // A message this slow makes the UI miss a frame
+    public static final long DEFAULT_OUTLIER_MS = 16;
+    private static final int MAX_OUTLIERS = 64;
+
+    // Targets past this many are counted together as "(other)"
+    private static final int MAX_TARGETS = 128;
+    // Open addressing, kept at most half full
+    private static final int TABLE_SIZE = 512;
+    private static final int MAX_ENTRIES = TABLE_SIZE / 2;
+
+    private static final String DISPATCH_START = ">>>>> Dispatching to ";
+    private static final String DISPATCH_END = "<<<<< Finished to ";
+
+    // What an Entry's key is matched against
+    private static final int KEY_NAME = 0;      // A target name, from name() or attribute()
+    private static final int KEY_CLASS = 1;     // A callback's class, or its whole toString()
+    private static final int KEY_INSTANCE = 2;  // A callback's class and hash code, from name()
+    private static final int KEY_MESSAGE = 3;   // A Handler class and what code
+
+    private static volatile LooperMonitor sMainMonitor;
+
+    // Counts are written on the looper's thread only
+    private static class Target {
+        final String name;
+        final long[] counts = new long[DISPATCH_BUCKETS_MS.length + 1];
+        long count;
+        long totalNanos;
+        long maxNanos;
+
+        Target(String name) {
+            this.name = name;
+        }
+
+        void clear() {
+            Arrays.fill(counts, 0);
+            count = 0;
+            totalNanos = 0;
+            maxNanos = 0;
+        }
+    }
+
+    private static class Entry {
+        final int kind;
+        final String key;
+        final long number;
+        final Target target;
+
+        Entry(int kind, String key, long number, Target target) {
+            this.kind = kind;
+            this.key = key;
+            this.number = number;
+            this.target = target;
+        }
+
+        boolean matches(int kind, String line, int start, int end, long number) {
+            return this.kind == kind && this.number == number && key.length() == end - start &&
+                    line.regionMatches(start, key, 0, end - start);
+        }
+    }
+
+    // A copy of a target's counts, taken for dump()
+    private static class Row {
+        final String name;
+        final long[] counts;
+        final long count;
+        final long totalNanos;
+        final long maxNanos;
+
+        Row(Target target) {
+            name = target.name;
+            counts = target.counts.clone();
+            count = target.count;
+            totalNanos = target.totalNanos;
+            maxNanos = target.maxNanos;
+        }
+    }
+
+    private final Looper mLooper;
+    private final long mOutlierNanos;
+
+    // Only touched on the looper's thread, between the start and end of a message
+    private long mStartNanos;
+    private String mStartLine;
+    private String mAttribution;
+
+    // Entries and targets are added under the lock and never removed. Lookups on the looper's
+    //  thread read the table without it, and take it only to add what they didn't find.
+    private final Entry[] mEntries = new Entry[TABLE_SIZE];
+    private int mEntryCount;
+    private final Target[] mTargets = new Target[MAX_TARGETS];
+    private volatile int mTargetCount;
+    private final Target mAll = new Target("(all)");
+    private final Target mOther = new Target("(other)");
+
+    // Written on the looper's thread only. dump() reads it as it stands.
+    private final long[] mOutlierTimesMs = new long[MAX_OUTLIERS];
+    private final Target[] mOutlierTargets = new Target[MAX_OUTLIERS];
+    private final long[] mOutlierDurationsNanos = new long[MAX_OUTLIERS];
+    private volatile int mOutlierCount;
+    private volatile long mSinceMs;
+
+    // Counts are cleared on the looper's thread, so reset() only asks for it
+    private volatile boolean mResetRequested;
+
+    private final Printer mPrinter = new Printer() {
+        @Override
+        public void println(String line) {
+            if (line.startsWith(DISPATCH_START)) {
+                mStartLine = line;
+                mAttribution = null;
+                mStartNanos = SystemClock.elapsedRealtimeNanos();
+            } else if (line.startsWith(DISPATCH_END) && mStartLine != null) {
+                long duration = SystemClock.elapsedRealtimeNanos() - mStartNanos;
+                record(mAttribution, mStartLine, duration);
+                mStartLine = null;
+                mAttribution = null;
+            }
+        }
+    };
+
+    public LooperMonitor(Looper looper, long outlierMs) {
+        mLooper = looper;
+        mOutlierNanos = outlierMs * 1000000;
+        mSinceMs = SystemClock.elapsedRealtime();
+    }
+
+    public void start() {
+        mLooper.setMessageLogging(mPrinter);
+        if (mLooper == Looper.getMainLooper()) {
+            sMainMonitor = this;
+        }
+    }
+
+    public void stop() {
+        mLooper.setMessageLogging(null);
+        if (sMainMonitor == this) {
+            sMainMonitor = null;
+        }
+    }
+
+    // What Looper reports to, for tests
+    Printer getPrinter() {
+        return mPrinter;
+    }
+
+    // Credit messages that run this Runnable to a readable name. Matched by class and hash code,
+    //  as Object.toString() prints them, so a Runnable that overrides toString() is credited to
+    //  that instead.
+    public synchronized void name(Runnable runnable, String name) {
+        Target target = targetNamed(name);
+        long hash = runnable.hashCode() & 0xffffffffL;
+        String className = runnable.getClass().getName();
+        if (find(KEY_INSTANCE, className, 0, className.length(), hash) == null) {
+            insert(KEY_INSTANCE, className, hash, target);
+        }
+    }
+
+    // Credit the message the main looper is dispatching right now to name. Does nothing if no
+    //  monitor is running there, or when called from another thread.
+    public static void attribute(String name) {
+        LooperMonitor monitor = sMainMonitor;
+        if (monitor != null && Looper.myLooper() == monitor.mLooper) {
+            monitor.mAttribution = name;
+        }
+    }
+
+    private void record(String attribution, String startLine, long durationNanos) {
+        if (mResetRequested) {
+            mResetRequested = false;
+            clear();
+        }
+
+        Target target = attribution != null ?
+                lookup(KEY_NAME, attribution, 0, attribution.length(), 0) : targetOf(startLine);
+        add(target, durationNanos);
+        add(mAll, durationNanos);
+
+        if (durationNanos >= mOutlierNanos) {
+            int i = mOutlierCount % MAX_OUTLIERS;
+            mOutlierTimesMs[i] = System.currentTimeMillis();
+            mOutlierTargets[i] = target;
+            mOutlierDurationsNanos[i] = durationNanos;
+            mOutlierCount++;
+        }
+    }
+
+    private static void add(Target target, long durationNanos) {
+        target.count++;
+        target.totalNanos += durationNanos;
+        target.maxNanos = Math.max(target.maxNanos, durationNanos);
+
+        long durationMs = durationNanos / 1000000;
+        int bucket = 0;
+        while (bucket < DISPATCH_BUCKETS_MS.length && durationMs >= DISPATCH_BUCKETS_MS[bucket]) {
+            bucket++;
+        }
+        target.counts[bucket]++;
+    }
+
+    // The line reads ">>>>> Dispatching to Handler (class) {id} callback: what",
+    //  where callback is "null" for plain messages. Works on the line in place, no substrings.
+    private Target targetOf(String line) {
+        int open = line.indexOf('(');
+        int close = line.indexOf(')', open + 1);
+        int brace = line.indexOf("} ", close + 1);
+        int colon = line.lastIndexOf(": ");
+        if (open < 0 || close < 0 || brace < 0 || colon < brace + 2) {
+            return lookup(KEY_CLASS, line, DISPATCH_START.length(), line.length(), 0);
+        }
+
+        int start = brace + 2;
+        if (colon - start == 4 && line.startsWith("null", start)) {
+            return lookup(KEY_MESSAGE, line, open + 1, close, parseWhat(line, colon + 2));
+        }
+
+        // Drop the instance hash, so all instances of a class count together, unless this one
+        //  was named
+        int at = line.lastIndexOf('@', colon - 1);
+        if (at > start) {
+            long hash = parseHash(line, at + 1, colon);
+            if (hash >= 0) {
+                Target named = find(KEY_INSTANCE, line, start, at, hash);
+                return named != null ? named : lookup(KEY_CLASS, line, start, at, 0);
+            }
+        }
+        return lookup(KEY_CLASS, line, start, colon, 0);
+    }
+
+    private static long parseWhat(String line, int start) {
+        boolean negative = start < line.length() && line.charAt(start) == '-';
+        long what = 0;
+        for (int i = negative ? start + 1 : start; i < line.length(); i++) {
+            int digit = Character.digit(line.charAt(i), 10);
+            if (digit < 0)
+                break;
+            what = what * 10 + digit;
+        }
+        return negative ? -what : what;
+    }
+
+    // -1 if it isn't one
+    private static long parseHash(String line, int start, int end) {
+        if (end <= start || end - start > 8)
+            return -1;
+
+        long hash = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(line.charAt(i), 16);
+            if (digit < 0)
+                return -1;
+            hash = hash << 4 | digit;
+        }
+        return hash;
+    }
+
+    private Target lookup(int kind, String line, int start, int end, long number) {
+        Target target = find(kind, line, start, end, number);
+        return target != null ? target : create(kind, line, start, end, number);
+    }
+
+    private static int slot(int kind, String line, int start, int end, long number) {
+        int hash = kind;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + line.charAt(i);
+        }
+        hash = 31 * hash + (int) (number ^ (number >>> 32));
+        return (hash ^ (hash >>> 16)) & (TABLE_SIZE - 1);
+    }
+
+    private Target find(int kind, String line, int start, int end, long number) {
+        int i = slot(kind, line, start, end, number);
+        Entry entry;
+        while ((entry = mEntries[i]) != null) {
+            if (entry.matches(kind, line, start, end, number))
+                return entry.target;
+            i = (i + 1) & (TABLE_SIZE - 1);
+        }
+        return null;
+    }
+
+    // First sight of a key. Only here do the target's name and entry get allocated.
+    private synchronized Target create(int kind, String line, int start, int end, long number) {
+        Target target = find(kind, line, start, end, number);
+        if (target != null)
+            return target;
+
+        String key = line.substring(start, end);
+        String name = kind == KEY_MESSAGE ? key + " what=" + number : key;
+        target = targetNamed(name);
+        if (kind != KEY_NAME) {
+            insert(kind, key, number, target);
+        }
+        return target;
+    }
+
+    // Guarded by this
+    private Target targetNamed(String name) {
+        Target target = find(KEY_NAME, name, 0, name.length(), 0);
+        if (target != null)
+            return target;
+
+        if (mTargetCount < MAX_TARGETS) {
+            target = new Target(name);
+            mTargets[mTargetCount] = target;
+            mTargetCount++;
+        } else {
+            target = mOther;
+        }
+        insert(KEY_NAME, name, 0, target);
+        return target;
+    }
+
+    // Guarded by this. With the table full, keys go uncached and land in "(other)" every time.
+    private void insert(int kind, String key, long number, Target target) {
+        if (mEntryCount >= MAX_ENTRIES)
+            return;
+
+        int i = slot(kind, key, 0, key.length(), number);
+        while (mEntries[i] != null) {
+            i = (i + 1) & (TABLE_SIZE - 1);
+        }
+        mEntries[i] = new Entry(kind, key, number, target);
+        mEntryCount++;
+    }
+
+    // Takes effect with the next message. Names and targets are kept.
+    public void reset() {
+        mResetRequested = true;
+    }
+
+    private void clear() {
+        int count = mTargetCount;
+        for (int i = 0; i < count; i++) {
+            mTargets[i].clear();
+        }
+        mAll.clear();
+        mOther.clear();
+        Arrays.fill(mOutlierTargets, null);
+        mOutlierCount = 0;
+        mSinceMs = SystemClock.elapsedRealtime();
+    }
+
+    // Everything recorded, the targets that took the most time first. Read while the looper runs,
+    //  so the counts may be a message apart.
+    public String dump() {
+        StringBuilder out = new StringBuilder();
+
+        out.append(String.format(Locale.US, "Looper messages over the last %d s. Histogram buckets (ms):",
+                (SystemClock.elapsedRealtime() - mSinceMs) / 1000));
+        for (long bound : DISPATCH_BUCKETS_MS) {
+            out.append(" <").append(bound);
+        }
+        out.append(" more\n");
+
+        int targetCount = mTargetCount;
+        Row[] rows = new Row[targetCount + 1];
+        for (int i = 0; i < targetCount; i++) {
+            rows[i] = new Row(mTargets[i]);
+        }
+        rows[targetCount] = new Row(mOther);
+        Arrays.sort(rows, new Comparator<Row>() {
+            @Override
+            public int compare(Row a, Row b) {
+                return Long.compare(b.totalNanos, a.totalNanos);
+            }
+        });
+
+        appendRow(out, new Row(mAll));
+        for (Row row : rows) {
+            if (row.count > 0) {
+                appendRow(out, row);
+            }
+        }
+
+        int outlierCount = mOutlierCount;
+        int kept = Math.min(outlierCount, MAX_OUTLIERS);
+        out.append(String.format(Locale.US, "Outliers, %d ms or slower: %d, last %d:\n",
+                mOutlierNanos / 1000000, outlierCount, kept));
+        for (int i = outlierCount - kept; i < outlierCount; i++) {
+            Target target = mOutlierTargets[i % MAX_OUTLIERS];
+            if (target == null)
+                continue;
+            out.append(String.format(Locale.US, "  %tT.%<tL %s %.1f ms\n",
+                    mOutlierTimesMs[i % MAX_OUTLIERS], target.name,
+                    mOutlierDurationsNanos[i % MAX_OUTLIERS] / 1000000f));
+        }
+
+        return out.toString();
+    }
+
+    private static void appendRow(StringBuilder out, Row row) {
+        out.append(String.format(Locale.US, "  %s: %d messages, %.1f ms total, mean %.2f ms, max %.1f ms [",
+                row.name, row.count, row.totalNanos / 1000000f,
+                row.count == 0 ? 0 : row.totalNanos / (float) row.count / 1000000f,
+                row.maxNanos / 1000000f));
+        for (int i = 0; i < row.counts.length; i++) {
+            out.append(i == 0 ? "" : " ").append(row.counts[i]);
+        }
+        out.append("]\n");
+    }
+}
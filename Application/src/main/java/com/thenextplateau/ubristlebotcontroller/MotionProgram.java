@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A timed sequence of motor commands, like a spin or a square, for the service to run.
+ *
+ * Each step holds both motors at a percentage (same 0-100 scale as the sliders) for a duration.
+ * Steps between beginLoop() and endLoop() are repeated, and the whole program can be repeated
+ * a number of times, or forever.
+ */
+public class MotionProgram {
+
+    public static final int REPEAT_FOREVER = 0;
+
+    public static class Step {
+        public final long durationMs;
+        public final int leftPercent;
+        public final int rightPercent;
+
+        public Step(long durationMs, int leftPercent, int rightPercent) {
+            this.durationMs = durationMs;
+            this.leftPercent = leftPercent;
+            this.rightPercent = rightPercent;
+        }
+    }
+
+    private final List<Step> mSteps = new ArrayList<>();
+    private int mRepeatCount = 1;
+
+    // Open loops: where each starts, and how many times it runs
+    private final List<int[]> mOpenLoops = new ArrayList<>();
+
+    public MotionProgram addStep(long durationMs, int leftPercent, int rightPercent) {
+        if (durationMs <= 0) {
+            throw new IllegalArgumentException("Invalid step duration: " + durationMs + " ms");
+        }
+        if (leftPercent < 0 || leftPercent > 100 || rightPercent < 0 || rightPercent > 100) {
+            throw new IllegalArgumentException("Invalid motor percentage: " +
+                    leftPercent + "%, " + rightPercent + "%");
+        }
+
+        mSteps.add(new Step(durationMs, leftPercent, rightPercent));
+        return this;
+    }
+
+    // Repeat the steps added until the matching endLoop() a number of times. Loops can be nested.
+    public MotionProgram beginLoop(int times) {
+        if (times < 1) {
+            throw new IllegalArgumentException("Invalid loop count: " + times);
+        }
+
+        mOpenLoops.add(new int[]{ mSteps.size(), times });
+        return this;
+    }
+
+    public MotionProgram endLoop() {
+        if (mOpenLoops.isEmpty()) {
+            throw new IllegalStateException("endLoop() without beginLoop()");
+        }
+
+        int[] loop = mOpenLoops.remove(mOpenLoops.size() - 1);
+        List<Step> body = new ArrayList<>(mSteps.subList(loop[0], mSteps.size()));
+        for (int i = 1; i < loop[1]; i++) {
+            mSteps.addAll(body);
+        }
+        return this;
+    }
+
+    // Number of times to run the whole program, or REPEAT_FOREVER
+    public MotionProgram setRepeatCount(int times) {
+        if (times < 0) {
+            throw new IllegalArgumentException("Invalid repeat count: " + times);
+        }
+
+        mRepeatCount = times;
+        return this;
+    }
+
+    public int getRepeatCount() {
+        return mRepeatCount;
+    }
+
+    public int getStepCount() {
+        return mSteps.size();
+    }
+
+    public Step getStep(int index) {
+        return mSteps.get(index);
+    }
+
+    // Duration of a single run through the program
+    public long getDurationMs() {
+        long duration = 0;
+        for (Step step : mSteps) {
+            duration += step.durationMs;
+        }
+        return duration;
+    }
+
+    public boolean isValid() {
+        return ! mSteps.isEmpty() && mOpenLoops.isEmpty();
+    }
+}
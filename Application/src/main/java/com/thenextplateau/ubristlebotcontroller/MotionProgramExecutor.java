@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a MotionProgram on its own timeline.
+ *
+ * Every step is planned against the program's start time, so a late step doesn't shift the
+ * rest of the program. The planned start of each step is recorded along with when its motor
+ * command was issued. When the bot applied it depends on the link, and isn't known here.
+ */
+public class MotionProgramExecutor {
+
+    public interface MotorOutput {
+        // Percentages are on the same 0-100 scale as the sliders
+        void setMotors(int leftPercent, int rightPercent);
+
+        // Called once the program ran to completion, after the motors have been stopped
+        void onProgramComplete();
+    }
+
+    public static class StepTiming {
+        public final int pass;
+        public final int step;
+        // Relative to the start of the program
+        public final long plannedStartMs;
+        // When the step's command was handed to the MotorOutput, not when the bot applied it
+        public final long issuedStartMs;
+
+        StepTiming(int pass, int step, long plannedStartMs, long issuedStartMs) {
+            this.pass = pass;
+            this.step = step;
+            this.plannedStartMs = plannedStartMs;
+            this.issuedStartMs = issuedStartMs;
+        }
+
+        // How late the step's command was issued
+        public long getLatenessMs() {
+            return issuedStartMs - plannedStartMs;
+        }
+    }
+
+    // Only keep the most recent timings of programs that repeat forever
+    private static final int MAX_TIMINGS = 1024;
+
+    private final Scheduler mScheduler;
+    private final MotorOutput mOutput;
+
+    private MotionProgram mProgram;
+    private long mStartNanos;
+    private long mPassDurationNanos;
+    private int mPass;
+    private int mStep;
+    private long mStepPlannedNanos;
+
+    private final List<StepTiming> mTimings = new ArrayList<>();
+
+    private final Runnable mRunStep = new Runnable() {
+        @Override
+        public void run() {
+            if (mProgram == null)
+                return;
+
+            // Finished a pass?
+            if (mStep == mProgram.getStepCount()) {
+                mPass++;
+                mStep = 0;
+
+                int repeat = mProgram.getRepeatCount();
+                if (repeat != MotionProgram.REPEAT_FOREVER && mPass >= repeat) {
+                    mProgram = null;
+                    mOutput.setMotors(0, 0);
+                    mOutput.onProgramComplete();
+                    return;
+                }
+            }
+
+            MotionProgram.Step step = mProgram.getStep(mStep);
+            long now = mScheduler.elapsedRealtimeNanos();
+
+            mOutput.setMotors(step.leftPercent, step.rightPercent);
+
+            recordTiming(new StepTiming(mPass, mStep,
+                    (mStepPlannedNanos - mStartNanos) / 1000000,
+                    (now - mStartNanos) / 1000000));
+
+            // Plan the next step from this one's planned start, not when it was issued
+            mStepPlannedNanos += step.durationMs * 1000000;
+            mStep++;
+
+            long delayMs = (mStepPlannedNanos - mScheduler.elapsedRealtimeNanos()) / 1000000;
+            mScheduler.postDelayed(mRunStep, Math.max(0, delayMs));
+        }
+
+        @Override
+        public String toString() {
+            return "MotionProgramExecutor.mRunStep";
+        }
+    };
+
+    public MotionProgramExecutor(Scheduler scheduler, MotorOutput output) {
+        mScheduler = scheduler;
+        mOutput = output;
+    }
+
+    public void start(MotionProgram program) {
+        if (! program.isValid()) {
+            throw new IllegalArgumentException("Motion program has no steps or an open loop");
+        }
+
+        stop();
+
+        mProgram = program;
+        mPassDurationNanos = program.getDurationMs() * 1000000;
+        mPass = 0;
+        mStep = 0;
+        mTimings.clear();
+
+        mStartNanos = mScheduler.elapsedRealtimeNanos();
+        mStepPlannedNanos = mStartNanos;
+        mScheduler.post(mRunStep);
+    }
+
+    // Stop the program, and the motors with it, if it was running
+    public void stop() {
+        mScheduler.removeCallbacks(mRunStep);
+
+        if (mProgram != null) {
+            mProgram = null;
+            mOutput.setMotors(0, 0);
+        }
+    }
+
+    public boolean isRunning() {
+        return mProgram != null;
+    }
+
+    // Planned duration of one pass through the current program
+    public long getPassDurationMs() {
+        return mPassDurationNanos / 1000000;
+    }
+
+    public List<StepTiming> getTimings() {
+        return new ArrayList<>(mTimings);
+    }
+
+    private void recordTiming(StepTiming timing) {
+        if (mTimings.size() == MAX_TIMINGS) {
+            mTimings.remove(0);
+        }
+        mTimings.add(timing);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+/**
+ * Drops motor commands the bot couldn't tell apart from the last one it acknowledged.
+ *
+ * Commands are quantized to the effective motor resolution, and changes smaller than the
+ * deadband are suppressed. Starting or stopping a motor always goes through.
+ *
+ * Quantized commands only ever differ by multiples of the resolution, so the deadband only has
+ * an effect when it's larger than the resolution. The defaults hold back single-step changes, so
+ * a slider wobbling across a step boundary doesn't turn into a stream of writes.
+ *
+ * Nothing counts as sent until onAcked(). A write that fails or is dropped leaves the filter
+ * comparing against what the bot really has.
+ *
+ * The deadband only holds back commands while they keep changing. Once the input comes to rest,
+ * settle() lets the last one through, so the bot always ends up where the controls were left.
+ */
+public class MotorCommandFilter {
+
+    public static final int DEFAULT_RESOLUTION_PERCENT = 5;
+    // Two resolution steps
+    public static final int DEFAULT_DEADBAND_PERCENT = 10;
+
+    private int mDeadbandPercent = DEFAULT_DEADBAND_PERCENT;
+    private int mResolutionPercent = DEFAULT_RESOLUTION_PERCENT;
+
+    // Last command the bot acknowledged
+    private int mLastLeft;
+    private int mLastRight;
+
+    // Command to send, valid after filter() returns true
+    private int mLeft;
+    private int mRight;
+
+    // Whether the latest command was suppressed and the bot hasn't been sent it since
+    private boolean mHeldBack;
+
+    private long mPassedCount;
+    private long mSuppressedCount;
+
+    public MotorCommandFilter() {
+        reset();
+    }
+
+    public synchronized void reset() {
+        mLastLeft = mLastRight = 0;
+        mLeft = mRight = 0;
+        mHeldBack = false;
+        mPassedCount = 0;
+        mSuppressedCount = 0;
+    }
+
+    // A deadband or resolution of 0 or 1 disables that part of the filter. A deadband no larger
+    //  than the resolution has no effect.
+    public synchronized void configure(int deadbandPercent, int resolutionPercent) {
+        if (deadbandPercent < 0 || resolutionPercent < 0) {
+            throw new IllegalArgumentException("Invalid filter: deadband " + deadbandPercent +
+                    "%, resolution " + resolutionPercent + "%");
+        }
+
+        mDeadbandPercent = deadbandPercent;
+        mResolutionPercent = resolutionPercent;
+    }
+
+    // Returns true if the command should be written, in which case getLeft()/getRight()
+    //  hold the quantized values to send.
+    public synchronized boolean filter(int leftPercent, int rightPercent) {
+        int left = quantize(leftPercent);
+        int right = quantize(rightPercent);
+
+        boolean zeroTransition = (left == 0) != (mLastLeft == 0) ||
+                (right == 0) != (mLastRight == 0);
+
+        if (! zeroTransition &&
+                Math.abs(left - mLastLeft) < Math.max(mDeadbandPercent, 1) &&
+                Math.abs(right - mLastRight) < Math.max(mDeadbandPercent, 1)) {
+            mSuppressedCount++;
+            mHeldBack = true;
+            return false;
+        }
+
+        pass(left, right);
+        return true;
+    }
+
+    // Whether a command was held back that settle() should still send
+    public synchronized boolean isHoldingBack() {
+        return mHeldBack;
+    }
+
+    // The input hasn't changed since the last filter(). Returns true if its command differs from
+    //  what the bot last acknowledged at all, deadband or not, in which case getLeft()/getRight()
+    //  hold the values to send.
+    public synchronized boolean settle(int leftPercent, int rightPercent) {
+        int left = quantize(leftPercent);
+        int right = quantize(rightPercent);
+
+        if (left == mLastLeft && right == mLastRight) {
+            mHeldBack = false;
+            return false;
+        }
+
+        pass(left, right);
+        return true;
+    }
+
+    // Record a command that was sent without going through the filter
+    public synchronized void forcePassed(int leftPercent, int rightPercent) {
+        pass(leftPercent, rightPercent);
+    }
+
+    private void pass(int left, int right) {
+        mLeft = left;
+        mRight = right;
+        mHeldBack = false;
+        mPassedCount++;
+    }
+
+    // The bot acknowledged a command. Later commands are compared against it.
+    public synchronized void onAcked(int leftPercent, int rightPercent) {
+        mLastLeft = leftPercent;
+        mLastRight = rightPercent;
+    }
+
+    private int quantize(int percent) {
+        if (percent == 0 || mResolutionPercent <= 1) {
+            return percent;
+        }
+
+        int q = (percent + mResolutionPercent / 2) / mResolutionPercent * mResolutionPercent;
+
+        // Never quantize a running motor to a stop
+        if (q == 0) {
+            q = mResolutionPercent;
+        }
+        return Math.min(q, 100);
+    }
+
+    public synchronized int getLeft() {
+        return mLeft;
+    }
+
+    public synchronized int getRight() {
+        return mRight;
+    }
+
+    public synchronized long getPassedCount() {
+        return mPassedCount;
+    }
+
+    // Number of writes saved
+    public synchronized long getSuppressedCount() {
+        return mSuppressedCount;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+/**
+ * Checks how many motor commands actually took effect on the device.
+ *
+ * The motor characteristic is read back now and then, while the link is idle, and compared to
+ * the last command sent. A read-back that doesn't match is stale: the device is still running an
+ * older command. Stale samples are split by whether the last command was acknowledged, since an
+ * acknowledged command that didn't stick was lost silently, and an unacknowledged one was
+ * dropped on purpose.
+ */
+public class MotorDeliveryVerifier {
+
+    private boolean mHasCommand;
+    private byte mLeft;
+    private byte mRight;
+    private long mSentMs;
+    private boolean mAcked;
+
+    private long mSampleCount;
+    private long mDeliveredCount;
+    private long mStaleCount;
+    private long mStaleAfterAckCount;
+
+    // How long the device had been behind the last command, when found stale
+    private long mLastStalenessMs;
+    private long mMaxStalenessMs;
+    private long mTotalStalenessMs;
+
+    // A motor frame went out. Keep it primitive, this runs on the motor path.
+    public void onCommandSent(byte left, byte right, long nowMs) {
+        mHasCommand = true;
+        mLeft = left;
+        mRight = right;
+        mSentMs = nowMs;
+        mAcked = false;
+    }
+
+    public void onCommandAcked(boolean success) {
+        mAcked = success;
+    }
+
+    // What the device reports its motors are set to
+    public void onReadBack(byte[] value, long nowMs) {
+        if (! mHasCommand || value == null || value.length < 2)
+            return;
+
+        mSampleCount++;
+
+        if (value[0] == mLeft && value[1] == mRight) {
+            mDeliveredCount++;
+            return;
+        }
+
+        mStaleCount++;
+        if (mAcked) {
+            mStaleAfterAckCount++;
+        }
+
+        mLastStalenessMs = nowMs - mSentMs;
+        mMaxStalenessMs = Math.max(mMaxStalenessMs, mLastStalenessMs);
+        mTotalStalenessMs += mLastStalenessMs;
+    }
+
+    public void reset() {
+        mHasCommand = false;
+        mAcked = false;
+
+        mSampleCount = 0;
+        mDeliveredCount = 0;
+        mStaleCount = 0;
+        mStaleAfterAckCount = 0;
+
+        mLastStalenessMs = 0;
+        mMaxStalenessMs = 0;
+        mTotalStalenessMs = 0;
+    }
+
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+
+    public long getDeliveredCount() {
+        return mDeliveredCount;
+    }
+
+    public long getStaleCount() {
+        return mStaleCount;
+    }
+
+    // Stale even though the write was acknowledged
+    public long getStaleAfterAckCount() {
+        return mStaleAfterAckCount;
+    }
+
+    // Fraction of read-backs that matched the last command. 1 until there are samples.
+    public float getDeliveredRatio() {
+        if (mSampleCount == 0)
+            return 1f;
+        return (float) mDeliveredCount / mSampleCount;
+    }
+
+    public float getStaleRatio() {
+        if (mSampleCount == 0)
+            return 0f;
+        return (float) mStaleCount / mSampleCount;
+    }
+
+    public long getLastStalenessMs() {
+        return mLastStalenessMs;
+    }
+
+    public long getMaxStalenessMs() {
+        return mMaxStalenessMs;
+    }
+
+    public long getMeanStalenessMs() {
+        if (mStaleCount == 0)
+            return 0;
+        return mTotalStalenessMs / mStaleCount;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+/**
+ * AIMD congestion control for the rate at which motor frames are sent.
+ *
+ * Every acknowledged write that comes back quickly nudges the rate up by a fixed step. Slow
+ * acknowledgements back off gently, and failed writes halve the rate. The rate always stays
+ * between a configurable floor and ceiling.
+ */
+public class MotorSendRateController {
+
+    public static final float DEFAULT_FLOOR_HZ = 2f;
+    public static final float DEFAULT_CEILING_HZ = 25f;
+    public static final long DEFAULT_TARGET_LATENCY_MS = 80;
+
+    // The rate the service used before this was adaptive (one frame every 200 ms)
+    private static final float INITIAL_HZ = 5f;
+
+    private static final float ADDITIVE_INCREASE_HZ = 0.5f;
+    private static final float LATENCY_DECREASE_FACTOR = 0.85f;
+    private static final float FAILURE_DECREASE_FACTOR = 0.5f;
+
+    private static final int HISTORY_SIZE = 128;
+
+    private float mFloorHz = DEFAULT_FLOOR_HZ;
+    private float mCeilingHz = DEFAULT_CEILING_HZ;
+    private long mTargetLatencyMs = DEFAULT_TARGET_LATENCY_MS;
+
+    private float mRateHz;
+
+    // Only back off once per send interval, so one burst of slow acks isn't punished repeatedly
+    private long mLastDecreaseMs;
+
+    // Ring buffer of (time, rate) samples
+    private final long[] mHistoryTimeMs = new long[HISTORY_SIZE];
+    private final float[] mHistoryRateHz = new float[HISTORY_SIZE];
+    private int mHistoryNext;
+    private int mHistoryCount;
+
+    public MotorSendRateController() {
+        reset(0);
+    }
+
+    public synchronized void reset(long nowMs) {
+        mRateHz = clamp(INITIAL_HZ);
+        mLastDecreaseMs = nowMs;
+        mHistoryNext = 0;
+        mHistoryCount = 0;
+        record(nowMs);
+    }
+
+    public synchronized void setLimits(float floorHz, float ceilingHz) {
+        if (floorHz <= 0 || ceilingHz < floorHz) {
+            throw new IllegalArgumentException("Invalid rate limits: " + floorHz + " - " + ceilingHz);
+        }
+
+        mFloorHz = floorHz;
+        mCeilingHz = ceilingHz;
+        mRateHz = clamp(mRateHz);
+    }
+
+    public synchronized void setTargetLatencyMs(long targetLatencyMs) {
+        mTargetLatencyMs = targetLatencyMs;
+    }
+
+    // Called for every motor write callback
+    public synchronized void onWriteComplete(boolean success, long latencyMs, long nowMs) {
+        float rate;
+
+        if (! success) {
+            rate = decrease(FAILURE_DECREASE_FACTOR, nowMs);
+        } else if (latencyMs > mTargetLatencyMs) {
+            rate = decrease(LATENCY_DECREASE_FACTOR, nowMs);
+        } else {
+            rate = clamp(mRateHz + ADDITIVE_INCREASE_HZ);
+        }
+
+        if (rate != mRateHz) {
+            mRateHz = rate;
+            record(nowMs);
+        }
+    }
+
+    private float decrease(float factor, long nowMs) {
+        if (nowMs - mLastDecreaseMs < getIntervalMs()) {
+            return mRateHz;
+        }
+
+        mLastDecreaseMs = nowMs;
+        return clamp(mRateHz * factor);
+    }
+
+    public synchronized float getRateHz() {
+        return mRateHz;
+    }
+
+    public synchronized long getIntervalMs() {
+        return (long) (1000 / mRateHz);
+    }
+
+    public synchronized float getFloorHz() {
+        return mFloorHz;
+    }
+
+    public synchronized float getCeilingHz() {
+        return mCeilingHz;
+    }
+
+    // Rate history, oldest first
+    public synchronized float[] getRateHistory() {
+        float[] rates = new float[mHistoryCount];
+        for (int i = 0; i < mHistoryCount; i++) {
+            rates[i] = mHistoryRateHz[historyIndex(i)];
+        }
+        return rates;
+    }
+
+    // Times (ms) matching each entry of getRateHistory()
+    public synchronized long[] getRateHistoryTimes() {
+        long[] times = new long[mHistoryCount];
+        for (int i = 0; i < mHistoryCount; i++) {
+            times[i] = mHistoryTimeMs[historyIndex(i)];
+        }
+        return times;
+    }
+
+    private int historyIndex(int i) {
+        return (mHistoryNext - mHistoryCount + i + HISTORY_SIZE) % HISTORY_SIZE;
+    }
+
+    private void record(long nowMs) {
+        mHistoryTimeMs[mHistoryNext] = nowMs;
+        mHistoryRateHz[mHistoryNext] = mRateHz;
+        mHistoryNext = (mHistoryNext + 1) % HISTORY_SIZE;
+        if (mHistoryCount < HISTORY_SIZE) {
+            mHistoryCount++;
+        }
+    }
+
+    private float clamp(float rateHz) {
+        return Math.max(mFloorHz, Math.min(mCeilingHz, rateHz));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+/**
+ * Runs a task periodically on a Scheduler, planning every tick against an absolute deadline on
+ * the scheduler's clock.
+ *
+ * A late tick doesn't push back the ones after it, and ticks that were missed entirely are
+ * skipped rather than run back to back. How late each tick ran is kept in a histogram.
+ */
+public class PeriodicScheduler {
+
+    // Upper bounds (ms) of the lateness histogram buckets. The last bucket catches the rest.
+    private static final long[] LATENESS_BUCKETS_MS = { 1, 2, 5, 10, 20, 50, 100, 200 };
+
+    private final Scheduler mScheduler;
+    private final Runnable mTask;
+    private final String mName;
+
+    private long mPeriodNanos;
+    private long mNextDeadlineNanos;
+    private boolean mRunning;
+
+    private final long[] mLatenessCounts = new long[LATENESS_BUCKETS_MS.length + 1];
+    private long mTickCount;
+    private long mSkippedCount;
+    private long mMaxLatenessNanos;
+    private long mTotalLatenessNanos;
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            if (! mRunning)
+                return;
+
+            recordLateness(mScheduler.elapsedRealtimeNanos() - mNextDeadlineNanos);
+
+            mTask.run();
+
+            // The task may have stopped us
+            if (! mRunning)
+                return;
+
+            // Plan the next tick from the last deadline, not from now, so lateness doesn't add up
+            mNextDeadlineNanos += mPeriodNanos;
+
+            long now = mScheduler.elapsedRealtimeNanos();
+            if (now > mNextDeadlineNanos) {
+                // Skip whatever we missed instead of bunching ticks up
+                long missed = (now - mNextDeadlineNanos) / mPeriodNanos + 1;
+                mNextDeadlineNanos += missed * mPeriodNanos;
+                mSkippedCount += missed;
+            }
+
+            postNextTick(now);
+        }
+
+        // Ticks are what the Looper dispatches, name them after the task, see LooperMonitor
+        @Override
+        public String toString() {
+            return mName;
+        }
+    };
+
+    public PeriodicScheduler(Scheduler scheduler, Runnable task, long periodMs) {
+        this(scheduler, task, periodMs, PeriodicScheduler.class.getSimpleName());
+    }
+
+    public PeriodicScheduler(Scheduler scheduler, Runnable task, long periodMs, String name) {
+        mScheduler = scheduler;
+        mTask = task;
+        mName = name;
+        setPeriodMs(periodMs);
+    }
+
+    // Takes effect from the next tick
+    public void setPeriodMs(long periodMs) {
+        if (periodMs <= 0) {
+            throw new IllegalArgumentException("Invalid period: " + periodMs + " ms");
+        }
+
+        mPeriodNanos = periodMs * 1000000;
+    }
+
+    public long getPeriodMs() {
+        return mPeriodNanos / 1000000;
+    }
+
+    public void start(long initialDelayMs) {
+        stop();
+
+        mRunning = true;
+
+        long now = mScheduler.elapsedRealtimeNanos();
+        mNextDeadlineNanos = now + initialDelayMs * 1000000;
+        postNextTick(now);
+    }
+
+    public void stop() {
+        mRunning = false;
+        mScheduler.removeCallbacks(mTick);
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    private void postNextTick(long nowNanos) {
+        // Round up, the Scheduler only deals in milliseconds and we'd rather be a bit late than early
+        long delayMs = (mNextDeadlineNanos - nowNanos + 999999) / 1000000;
+        mScheduler.postDelayed(mTick, Math.max(0, delayMs));
+    }
+
+    private void recordLateness(long latenessNanos) {
+        if (latenessNanos < 0)
+            latenessNanos = 0;
+
+        mTickCount++;
+        mTotalLatenessNanos += latenessNanos;
+        if (latenessNanos > mMaxLatenessNanos)
+            mMaxLatenessNanos = latenessNanos;
+
+        long latenessMs = latenessNanos / 1000000;
+        int bucket = 0;
+        while (bucket < LATENESS_BUCKETS_MS.length && latenessMs >= LATENESS_BUCKETS_MS[bucket]) {
+            bucket++;
+        }
+        mLatenessCounts[bucket]++;
+    }
+
+    //
+    // Jitter Statistics
+    //
+    public void resetStats() {
+        for (int i = 0; i < mLatenessCounts.length; i++) {
+            mLatenessCounts[i] = 0;
+        }
+        mTickCount = 0;
+        mSkippedCount = 0;
+        mMaxLatenessNanos = 0;
+        mTotalLatenessNanos = 0;
+    }
+
+    // Bucket i counts ticks less than getLatenessBucketBoundsMs()[i] late,
+    //  the extra last bucket counts everything later than that.
+    public static long[] getLatenessBucketBoundsMs() {
+        return LATENESS_BUCKETS_MS.clone();
+    }
+
+    public long[] getLatenessHistogram() {
+        return mLatenessCounts.clone();
+    }
+
+    public long getTickCount() {
+        return mTickCount;
+    }
+
+    public long getSkippedTickCount() {
+        return mSkippedCount;
+    }
+
+    public float getMeanLatenessMs() {
+        if (mTickCount == 0)
+            return 0;
+        return mTotalLatenessNanos / (float) mTickCount / 1000000f;
+    }
+
+    public float getMaxLatenessMs() {
+        return mMaxLatenessNanos / 1000000f;
+    }
+}
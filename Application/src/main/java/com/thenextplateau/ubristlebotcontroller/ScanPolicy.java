@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+/**
+ * How continuous discovery duty-cycles the scanner, and how long devices stay listed.
+ *
+ * The scanner runs for scanWindowMs out of every scanIntervalMs. A device that hasn't been seen
+ * for deviceTtlMs is dropped from the list.
+ */
+public class ScanPolicy {
+
+    // Scanner modes, from least to most radio time (mapped onto ScanSettings on Lollipop+)
+    public static final int MODE_LOW_POWER = 0;
+    public static final int MODE_BALANCED = 1;
+    public static final int MODE_LOW_LATENCY = 2;
+
+    // Looking at the list, waiting for the right bot to show up
+    public static final ScanPolicy BALANCED = new ScanPolicy(4000, 6000, 15000, MODE_BALANCED);
+    // Leaving the list up in the background
+    public static final ScanPolicy LOW_POWER = new ScanPolicy(2000, 10000, 30000, MODE_LOW_POWER);
+    // Nonstop, full radio. Only for short bursts.
+    public static final ScanPolicy AGGRESSIVE = new ScanPolicy(1000, 1000, 5000, MODE_LOW_LATENCY);
+
+    public final long scanWindowMs;
+    public final long scanIntervalMs;
+    public final long deviceTtlMs;
+    public final int scanMode;
+
+    public ScanPolicy(long scanWindowMs, long scanIntervalMs, long deviceTtlMs, int scanMode) {
+        if (scanWindowMs <= 0 || scanIntervalMs < scanWindowMs) {
+            throw new IllegalArgumentException("Invalid scan duty cycle: " +
+                    scanWindowMs + " ms every " + scanIntervalMs + " ms");
+        }
+        if (deviceTtlMs < scanIntervalMs) {
+            throw new IllegalArgumentException("Device TTL " + deviceTtlMs +
+                    " ms is shorter than the scan interval " + scanIntervalMs + " ms");
+        }
+
+        this.scanWindowMs = scanWindowMs;
+        this.scanIntervalMs = scanIntervalMs;
+        this.deviceTtlMs = deviceTtlMs;
+        this.scanMode = scanMode;
+    }
+
+    // Scanning all the time, no off period
+    public boolean isContinuous() {
+        return scanWindowMs == scanIntervalMs;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+/**
+ * Keeps BLE scan starts within what Android allows.
+ *
+ * From Android 7 on, an app that starts more than 5 scans in 30 seconds has further starts
+ * silently ignored until the window clears. This remembers the last few starts and says how long
+ * the next one has to wait.
+ */
+public class ScanStartBudget {
+
+    public static final int MAX_STARTS = 5;
+    public static final long WINDOW_MS = 30000;
+
+    // Ring buffer of the last MAX_STARTS start times
+    private final long[] mStartMs = new long[MAX_STARTS];
+    private int mNext;
+    private int mCount;
+
+    private long mDeferredCount;
+
+    public synchronized void reset() {
+        mNext = 0;
+        mCount = 0;
+    }
+
+    // How long a scan started at nowMs would have to wait, 0 if it can go now
+    public synchronized long getDelayMs(long nowMs) {
+        if (mCount < MAX_STARTS)
+            return 0;
+
+        // mNext is the oldest of a full ring
+        return Math.max(0, mStartMs[mNext] + WINDOW_MS - nowMs);
+    }
+
+    public synchronized void onStarted(long nowMs) {
+        mStartMs[mNext] = nowMs;
+        mNext = (mNext + 1) % MAX_STARTS;
+        mCount = Math.min(mCount + 1, MAX_STARTS);
+    }
+
+    public synchronized void onDeferred() {
+        mDeferredCount++;
+    }
+
+    // Starts that had to wait for the budget
+    public synchronized long getDeferredCount() {
+        return mDeferredCount;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+/**
+ * Where timed work runs, and the clock it runs by.
+ *
+ * The control loop's timing goes through this instead of Handler and SystemClock directly, so it
+ * can run on a Looper in the app (HandlerScheduler) or on virtual time on a plain JVM
+ * (VirtualScheduler), where hours of operation take seconds and every run is the same.
+ */
+public interface Scheduler {
+    // Monotonic clock, as SystemClock.elapsedRealtime()
+    long elapsedRealtime();
+    // Monotonic clock, as SystemClock.elapsedRealtimeNanos()
+    long elapsedRealtimeNanos();
+
+    void post(Runnable task);
+    void postDelayed(Runnable task, long delayMs);
+    // Remove every pending run of the task
+    void removeCallbacks(Runnable task);
+}
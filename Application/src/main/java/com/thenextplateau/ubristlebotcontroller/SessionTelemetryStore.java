@@ -0,0 +1,506 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a compact performance summary of every session with a uBristleBot, across app runs.
+ *
+ * Records are appended to a single file. Once it holds too many, the newest are kept as they are
+ * and the older ones are rolled up into one record per device. A rolled up record covers several
+ * sessions: counts are summed, timings and percentiles are averaged over the sessions.
+ *
+ * Older record versions are still read. Fields they don't have read as 0.
+ */
+public class SessionTelemetryStore {
+    private final static String TAG = SessionTelemetryStore.class.getSimpleName();
+
+    private static final int RECORD_VERSION = 2;
+    // Before motor delivery was recorded
+    private static final int RECORD_VERSION_1 = 1;
+
+    // Compact once the file holds this many records, keeping the newest as they are
+    private static final int MAX_RECORDS = 512;
+    private static final int KEEP_RAW_RECORDS = 256;
+
+    // RSSI distribution buckets, by upper edge (dBm). The last bucket is everything stronger.
+    public static final int[] RSSI_BUCKETS = { -90, -80, -70, -60, -50 };
+
+    // Motor ack latency is tracked at 1 ms resolution up to this, and clamped above it
+    private static final int MAX_LATENCY_MS = 500;
+
+    public static class SessionRecord {
+        public final String address;
+        // Wall clock time the (first) session started
+        public final long startTimeMs;
+        // Number of sessions this record covers. More than 1 for rolled up records.
+        public final int sessions;
+        public final long durationMs;
+
+        // Connect phase timings, -1 if never reached
+        public final long timeToDriveMs;
+        public final long timeToFirstMotorCommandMs;
+
+        // Motor write ack latency percentiles, -1 without any writes
+        public final int motorLatencyP50Ms;
+        public final int motorLatencyP90Ms;
+        public final int motorLatencyP99Ms;
+
+        public final long motorWrites;
+        public final long motorWriteFailures;
+
+        // Motor read-backs, as checked by MotorDeliveryVerifier. All 0 in records written before
+        //  it was recorded.
+        public final long motorReadBacks;
+        public final long motorReadBacksStale;
+        public final long motorReadBacksStaleAfterAck;
+        // How far behind the device was, over the stale read-backs
+        public final long motorMaxStalenessMs;
+        public final long motorMeanStalenessMs;
+
+        // RSSI sample counts, by RSSI_BUCKETS
+        public final int[] rssiHistogram;
+
+        // Battery percentage lost over the session(s)
+        public final int batteryDrop;
+
+        SessionRecord(String address, long startTimeMs, int sessions, long durationMs,
+                      long timeToDriveMs, long timeToFirstMotorCommandMs,
+                      int motorLatencyP50Ms, int motorLatencyP90Ms, int motorLatencyP99Ms,
+                      long motorWrites, long motorWriteFailures,
+                      long motorReadBacks, long motorReadBacksStale, long motorReadBacksStaleAfterAck,
+                      long motorMaxStalenessMs, long motorMeanStalenessMs,
+                      int[] rssiHistogram, int batteryDrop) {
+            this.address = address;
+            this.startTimeMs = startTimeMs;
+            this.sessions = sessions;
+            this.durationMs = durationMs;
+            this.timeToDriveMs = timeToDriveMs;
+            this.timeToFirstMotorCommandMs = timeToFirstMotorCommandMs;
+            this.motorLatencyP50Ms = motorLatencyP50Ms;
+            this.motorLatencyP90Ms = motorLatencyP90Ms;
+            this.motorLatencyP99Ms = motorLatencyP99Ms;
+            this.motorWrites = motorWrites;
+            this.motorWriteFailures = motorWriteFailures;
+            this.motorReadBacks = motorReadBacks;
+            this.motorReadBacksStale = motorReadBacksStale;
+            this.motorReadBacksStaleAfterAck = motorReadBacksStaleAfterAck;
+            this.motorMaxStalenessMs = motorMaxStalenessMs;
+            this.motorMeanStalenessMs = motorMeanStalenessMs;
+            this.rssiHistogram = rssiHistogram;
+            this.batteryDrop = batteryDrop;
+        }
+
+        public float getMotorWriteFailureRatio() {
+            if (motorWrites == 0)
+                return 0f;
+            return (float) motorWriteFailures / motorWrites;
+        }
+
+        // Fraction of read-backs where the device was still running an older command
+        public float getMotorStaleRatio() {
+            if (motorReadBacks == 0)
+                return 0f;
+            return (float) motorReadBacksStale / motorReadBacks;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeByte(RECORD_VERSION);
+            out.writeUTF(address);
+            out.writeLong(startTimeMs);
+            out.writeInt(sessions);
+            out.writeLong(durationMs);
+            out.writeLong(timeToDriveMs);
+            out.writeLong(timeToFirstMotorCommandMs);
+            out.writeShort(motorLatencyP50Ms);
+            out.writeShort(motorLatencyP90Ms);
+            out.writeShort(motorLatencyP99Ms);
+            out.writeLong(motorWrites);
+            out.writeLong(motorWriteFailures);
+            out.writeByte(rssiHistogram.length);
+            for (int count : rssiHistogram) {
+                out.writeInt(count);
+            }
+            out.writeShort(batteryDrop);
+            out.writeLong(motorReadBacks);
+            out.writeLong(motorReadBacksStale);
+            out.writeLong(motorReadBacksStaleAfterAck);
+            out.writeLong(motorMaxStalenessMs);
+            out.writeLong(motorMeanStalenessMs);
+        }
+
+        private static SessionRecord read(DataInputStream in, int version) throws IOException {
+            if (version != RECORD_VERSION && version != RECORD_VERSION_1) {
+                throw new IOException("Unknown session record version " + version);
+            }
+
+            String address = in.readUTF();
+            long startTimeMs = in.readLong();
+            int sessions = in.readInt();
+            long durationMs = in.readLong();
+            long timeToDriveMs = in.readLong();
+            long timeToFirstMotorCommandMs = in.readLong();
+            int p50 = in.readShort();
+            int p90 = in.readShort();
+            int p99 = in.readShort();
+            long motorWrites = in.readLong();
+            long motorWriteFailures = in.readLong();
+            int[] rssiHistogram = new int[in.readByte()];
+            for (int i = 0; i < rssiHistogram.length; i++) {
+                rssiHistogram[i] = in.readInt();
+            }
+            int batteryDrop = in.readShort();
+
+            long readBacks = 0;
+            long readBacksStale = 0;
+            long readBacksStaleAfterAck = 0;
+            long maxStalenessMs = 0;
+            long meanStalenessMs = 0;
+            if (version >= 2) {
+                readBacks = in.readLong();
+                readBacksStale = in.readLong();
+                readBacksStaleAfterAck = in.readLong();
+                maxStalenessMs = in.readLong();
+                meanStalenessMs = in.readLong();
+            }
+
+            return new SessionRecord(address, startTimeMs, sessions, durationMs,
+                    timeToDriveMs, timeToFirstMotorCommandMs, p50, p90, p99,
+                    motorWrites, motorWriteFailures,
+                    readBacks, readBacksStale, readBacksStaleAfterAck, maxStalenessMs, meanStalenessMs,
+                    rssiHistogram, batteryDrop);
+        }
+
+        // Combine two records of the same device into one covering both
+        private static SessionRecord merge(SessionRecord a, SessionRecord b) {
+            int[] rssiHistogram = new int[RSSI_BUCKETS.length + 1];
+            for (int i = 0; i < rssiHistogram.length; i++) {
+                rssiHistogram[i] = a.rssiHistogram[i] + b.rssiHistogram[i];
+            }
+
+            return new SessionRecord(a.address,
+                    Math.min(a.startTimeMs, b.startTimeMs),
+                    a.sessions + b.sessions,
+                    a.durationMs + b.durationMs,
+                    mean(a.timeToDriveMs, a.sessions, b.timeToDriveMs, b.sessions),
+                    mean(a.timeToFirstMotorCommandMs, a.sessions, b.timeToFirstMotorCommandMs, b.sessions),
+                    (int) mean(a.motorLatencyP50Ms, a.sessions, b.motorLatencyP50Ms, b.sessions),
+                    (int) mean(a.motorLatencyP90Ms, a.sessions, b.motorLatencyP90Ms, b.sessions),
+                    (int) mean(a.motorLatencyP99Ms, a.sessions, b.motorLatencyP99Ms, b.sessions),
+                    a.motorWrites + b.motorWrites,
+                    a.motorWriteFailures + b.motorWriteFailures,
+                    a.motorReadBacks + b.motorReadBacks,
+                    a.motorReadBacksStale + b.motorReadBacksStale,
+                    a.motorReadBacksStaleAfterAck + b.motorReadBacksStaleAfterAck,
+                    Math.max(a.motorMaxStalenessMs, b.motorMaxStalenessMs),
+                    a.motorReadBacksStale + b.motorReadBacksStale == 0 ? 0 :
+                            (a.motorMeanStalenessMs * a.motorReadBacksStale +
+                                    b.motorMeanStalenessMs * b.motorReadBacksStale) /
+                                    (a.motorReadBacksStale + b.motorReadBacksStale),
+                    rssiHistogram,
+                    a.batteryDrop + b.batteryDrop);
+        }
+
+        // Session weighted mean, skipping unknown (-1) values
+        private static long mean(long a, int aSessions, long b, int bSessions) {
+            if (a < 0)
+                return b;
+            if (b < 0)
+                return a;
+            return (a * aSessions + b * bSessions) / (aSessions + bSessions);
+        }
+    }
+
+    /**
+     * Collects one session's numbers as they happen. Nothing here allocates, so it's safe to
+     * feed from the motor path.
+     */
+    public static class Recorder {
+        private boolean mActive;
+        private String mAddress;
+        private long mStartTimeMs;
+        private long mStartElapsedMs;
+
+        private long mTimeToDriveMs;
+        private long mTimeToFirstMotorCommandMs;
+
+        private final int[] mLatencyCounts = new int[MAX_LATENCY_MS + 1];
+        private long mMotorWrites;
+        private long mMotorWriteFailures;
+
+        private final int[] mRssiCounts = new int[RSSI_BUCKETS.length + 1];
+
+        private int mFirstBattery;
+        private int mLastBattery;
+
+        private long mMotorReadBacks;
+        private long mMotorReadBacksStale;
+        private long mMotorReadBacksStaleAfterAck;
+        private long mMotorMaxStalenessMs;
+        private long mMotorMeanStalenessMs;
+
+        public void start(String address, long nowMs, long nowElapsedMs) {
+            mActive = true;
+            mAddress = address;
+            mStartTimeMs = nowMs;
+            mStartElapsedMs = nowElapsedMs;
+
+            mTimeToDriveMs = -1;
+            mTimeToFirstMotorCommandMs = -1;
+
+            for (int i = 0; i < mLatencyCounts.length; i++) {
+                mLatencyCounts[i] = 0;
+            }
+            mMotorWrites = 0;
+            mMotorWriteFailures = 0;
+
+            for (int i = 0; i < mRssiCounts.length; i++) {
+                mRssiCounts[i] = 0;
+            }
+
+            mFirstBattery = -1;
+            mLastBattery = -1;
+
+            setMotorDelivery(0, 0, 0, 0, 0);
+        }
+
+        public boolean isActive() {
+            return mActive;
+        }
+
+        public void setConnectTimings(long timeToDriveMs, long timeToFirstMotorCommandMs) {
+            mTimeToDriveMs = timeToDriveMs;
+            mTimeToFirstMotorCommandMs = timeToFirstMotorCommandMs;
+        }
+
+        // What MotorDeliveryVerifier found over the session
+        public void setMotorDelivery(long readBacks, long stale, long staleAfterAck,
+                                     long maxStalenessMs, long meanStalenessMs) {
+            mMotorReadBacks = readBacks;
+            mMotorReadBacksStale = stale;
+            mMotorReadBacksStaleAfterAck = staleAfterAck;
+            mMotorMaxStalenessMs = maxStalenessMs;
+            mMotorMeanStalenessMs = meanStalenessMs;
+        }
+
+        public void addMotorWrite(boolean success, long latencyMs) {
+            mMotorWrites++;
+            if (! success) {
+                mMotorWriteFailures++;
+            }
+            mLatencyCounts[(int) Math.max(0, Math.min(MAX_LATENCY_MS, latencyMs))]++;
+        }
+
+        public void addRssi(int rssi) {
+            int bucket = 0;
+            while (bucket < RSSI_BUCKETS.length && rssi > RSSI_BUCKETS[bucket]) {
+                bucket++;
+            }
+            mRssiCounts[bucket]++;
+        }
+
+        public void addBattery(int percent) {
+            if (mFirstBattery < 0) {
+                mFirstBattery = percent;
+            }
+            mLastBattery = percent;
+        }
+
+        // Wrap up the session. Returns null if none was started.
+        public SessionRecord finish(long nowElapsedMs) {
+            if (! mActive)
+                return null;
+
+            mActive = false;
+
+            return new SessionRecord(mAddress, mStartTimeMs, 1, nowElapsedMs - mStartElapsedMs,
+                    mTimeToDriveMs, mTimeToFirstMotorCommandMs,
+                    latencyPercentile(50), latencyPercentile(90), latencyPercentile(99),
+                    mMotorWrites, mMotorWriteFailures,
+                    mMotorReadBacks, mMotorReadBacksStale, mMotorReadBacksStaleAfterAck,
+                    mMotorMaxStalenessMs, mMotorMeanStalenessMs,
+                    mRssiCounts.clone(),
+                    mFirstBattery < 0 ? 0 : Math.max(0, mFirstBattery - mLastBattery));
+        }
+
+        private int latencyPercentile(int percentile) {
+            if (mMotorWrites == 0)
+                return -1;
+
+            long rank = (mMotorWrites * percentile + 99) / 100;
+            long seen = 0;
+            for (int ms = 0; ms < mLatencyCounts.length; ms++) {
+                seen += mLatencyCounts[ms];
+                if (seen >= rank) {
+                    return ms;
+                }
+            }
+            return MAX_LATENCY_MS;
+        }
+    }
+
+    private final File mFile;
+    // Records in the file, -1 until counted
+    private int mRecordCount = -1;
+    // The file ends in a partial or unreadable record, so it can't just be appended to
+    private boolean mDamaged = false;
+
+    public SessionTelemetryStore(File directory) {
+        mFile = new File(directory, "session_telemetry.dat");
+    }
+
+    public synchronized void append(SessionRecord record) {
+        if (mRecordCount < 0) {
+            mRecordCount = readAll().size();
+        }
+        if (mDamaged) {
+            // Rewrite whatever could be read, so the new record lands on a record boundary
+            compact();
+        }
+
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(mFile, true)));
+            try {
+                record.write(out);
+            } finally {
+                out.close();
+            }
+            mRecordCount++;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save session telemetry", e);
+            return;
+        }
+
+        if (mRecordCount > MAX_RECORDS) {
+            compact();
+        }
+    }
+
+    // Records of a device (or every device, if null) that started at or after a wall clock time,
+    //  oldest first
+    public synchronized List<SessionRecord> query(String address, long sinceTimeMs) {
+        List<SessionRecord> result = new ArrayList<>();
+        for (SessionRecord record : readAll()) {
+            if ((address == null || address.equals(record.address)) &&
+                    record.startTimeMs >= sinceTimeMs) {
+                result.add(record);
+            }
+        }
+        return result;
+    }
+
+    // Everything known about a device, rolled into a single record. Null if it has none.
+    public synchronized SessionRecord summarize(String address) {
+        SessionRecord summary = null;
+        for (SessionRecord record : query(address, 0)) {
+            summary = summary == null ? record : SessionRecord.merge(summary, record);
+        }
+        return summary;
+    }
+
+    public synchronized void clear() {
+        if (mFile.exists() && ! mFile.delete()) {
+            Log.e(TAG, "Could not clear session telemetry");
+        }
+        mRecordCount = 0;
+    }
+
+    // Roll everything but the newest records up into one record per device
+    private void compact() {
+        List<SessionRecord> records = readAll();
+        int rollupCount = Math.max(0, records.size() - KEEP_RAW_RECORDS);
+
+        Map<String, SessionRecord> rollups = new LinkedHashMap<>();
+        for (SessionRecord record : records.subList(0, rollupCount)) {
+            SessionRecord rollup = rollups.get(record.address);
+            rollups.put(record.address, rollup == null ? record : SessionRecord.merge(rollup, record));
+        }
+
+        List<SessionRecord> compacted = new ArrayList<>(rollups.values());
+        compacted.addAll(records.subList(rollupCount, records.size()));
+
+        // Write it all out next to the old file, then swap it in
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                for (SessionRecord record : compacted) {
+                    record.write(out);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not compact session telemetry", e);
+            return;
+        }
+
+        if (! tmp.renameTo(mFile)) {
+            Log.e(TAG, "Could not replace session telemetry with its compacted copy");
+            return;
+        }
+
+        Log.i(TAG, "Compacted " + records.size() + " session records into " + compacted.size());
+        mRecordCount = compacted.size();
+        mDamaged = false;
+    }
+
+    private List<SessionRecord> readAll() {
+        List<SessionRecord> records = new ArrayList<>();
+        if (! mFile.exists())
+            return records;
+
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(mFile)));
+            try {
+                int version;
+                while ((version = in.read()) >= 0) {
+                    records.add(SessionRecord.read(in, version));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (EOFException e) {
+            // A record cut short by a crash mid-append. Everything before it is fine.
+            Log.w(TAG, "Session telemetry ends in a partial record");
+            mDamaged = true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read all session telemetry", e);
+            mDamaged = true;
+        }
+
+        return records;
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes the settings that changed to a uBristleBot, then makes them stick with cSave.
+ *
+ * When more than one setting changed, they're sent as a single reliable write batch if the
+ * device supports it, falling back to plain sequential writes otherwise. Every write is retried
+ * a bounded number of times, with the same jittered backoff as GattOperationWatchdog, before the
+ * transaction gives up. The transaction is the only one retrying its writes, the watchdog only
+ * reports the ones that time out.
+ *
+ * A prepared write that fails may still be queued on the device, so a failure inside a reliable
+ * write aborts it and starts the batch over.
+ */
+class SettingsTransaction {
+    private final static String TAG = SettingsTransaction.class.getSimpleName();
+
+    public static final int RESULT_SAVED = 0;
+    public static final int RESULT_NO_CHANGES = 1;
+    public static final int RESULT_FAILED = 2;
+
+    private static final int MAX_RETRIES = 3;
+
+    // How the transaction gets to the device
+    interface Callbacks {
+        boolean writeCharacteristic(BluetoothGattCharacteristic characteristic);
+        boolean beginReliableWrite();
+        boolean executeReliableWrite();
+        void abortReliableWrite();
+        void onComplete(int result, int retries);
+    }
+
+    private static final int PHASE_IDLE = 0;
+    private static final int PHASE_WRITES = 1;
+    private static final int PHASE_EXECUTE = 2;
+    private static final int PHASE_SAVE = 3;
+    private static final int PHASE_DONE = 4;
+
+    private final Scheduler mScheduler;
+    private final Callbacks mCallbacks;
+    private final Random mRandom = new Random();
+    private final List<BluetoothGattCharacteristic> mWrites = new ArrayList<>();
+    private final List<byte[]> mValues = new ArrayList<>();
+    private final BluetoothGattCharacteristic mSave;
+
+    private boolean mReliable;
+    private int mPhase = PHASE_IDLE;
+    private int mIndex;
+    private int mRetries;
+    private int mTotalRetries;
+    // The reliable write was aborted, and the retry starts a new one
+    private boolean mRestartBatch;
+
+    private final Runnable mRetry = new Runnable() {
+        @Override
+        public void run() {
+            if (mPhase == PHASE_SAVE) {
+                mCallbacks.writeCharacteristic(mSave);
+            } else if (mPhase == PHASE_WRITES) {
+                if (mRestartBatch) {
+                    mRestartBatch = false;
+                    if (! mCallbacks.beginReliableWrite()) {
+                        fallBackToSequential();
+                        return;
+                    }
+                }
+                writeCurrent();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "SettingsTransaction.mRetry";
+        }
+    };
+
+    SettingsTransaction(BluetoothGattCharacteristic save, boolean useReliableWrite,
+                        Scheduler scheduler, Callbacks callbacks) {
+        mSave = save;
+        mReliable = useReliableWrite;
+        mScheduler = scheduler;
+        mCallbacks = callbacks;
+    }
+
+    // Queue a setting, if its current value differs from what the device reported
+    void addIfChanged(BluetoothGattCharacteristic characteristic, byte[] deviceValue) {
+        byte[] value = characteristic.getValue();
+        if (value != null && ! Arrays.equals(value, deviceValue)) {
+            mWrites.add(characteristic);
+            mValues.add(value.clone());
+        }
+    }
+
+    boolean hasChanges() {
+        return ! mWrites.isEmpty();
+    }
+
+    boolean isStarted() {
+        return mPhase != PHASE_IDLE;
+    }
+
+    boolean isDone() {
+        return mPhase == PHASE_DONE;
+    }
+
+    void start() {
+        if (! hasChanges()) {
+            finish(RESULT_NO_CHANGES);
+            return;
+        }
+
+        // A batch of one doesn't gain anything from being reliable
+        if (mReliable && mWrites.size() > 1 && mCallbacks.beginReliableWrite()) {
+            Log.d(TAG, "Writing " + mWrites.size() + " settings as a reliable write");
+        } else {
+            mReliable = false;
+        }
+
+        mPhase = PHASE_WRITES;
+        mIndex = 0;
+        mRetries = 0;
+        writeCurrent();
+    }
+
+    void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
+        if (mPhase == PHASE_WRITES) {
+            // Reliable writes echo back what the device queued. Make sure it's what we sent.
+            boolean success = status == BluetoothGatt.GATT_SUCCESS &&
+                    (! mReliable || Arrays.equals(characteristic.getValue(), mValues.get(mIndex)));
+
+            if (! success) {
+                retry();
+                return;
+            }
+
+            mIndex++;
+            // A reliable write's retries start the whole batch over, so they count for all of it
+            if (! mReliable) {
+                mRetries = 0;
+            }
+            if (mIndex < mWrites.size()) {
+                writeCurrent();
+            } else if (mReliable) {
+                mPhase = PHASE_EXECUTE;
+                if (! mCallbacks.executeReliableWrite()) {
+                    fallBackToSequential();
+                }
+            } else {
+                startSave();
+            }
+        } else if (mPhase == PHASE_SAVE) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                retry();
+                return;
+            }
+
+            finish(RESULT_SAVED);
+        }
+    }
+
+    void onReliableWriteCompleted(int status) {
+        if (mPhase != PHASE_EXECUTE)
+            return;
+
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            startSave();
+        } else {
+            fallBackToSequential();
+        }
+    }
+
+    private void startSave() {
+        mPhase = PHASE_SAVE;
+        mRetries = 0;
+
+        byte[] tmp = new byte[1];
+        tmp[0] = (byte) 0x01;
+        mSave.setValue(tmp);
+        if (! mCallbacks.writeCharacteristic(mSave)) {
+            retry();
+        }
+    }
+
+    private void writeCurrent() {
+        BluetoothGattCharacteristic characteristic = mWrites.get(mIndex);
+        characteristic.setValue(mValues.get(mIndex));
+        if (! mCallbacks.writeCharacteristic(characteristic)) {
+            retry();
+        }
+    }
+
+    private void retry() {
+        mTotalRetries++;
+
+        if (++mRetries > MAX_RETRIES) {
+            if (mReliable && mPhase == PHASE_WRITES) {
+                fallBackToSequential();
+            } else {
+                Log.e(TAG, "Giving up on settings after " + MAX_RETRIES + " retries");
+                finish(RESULT_FAILED);
+            }
+            return;
+        }
+
+        Log.d(TAG, "Retrying settings write (" + mRetries + "/" + MAX_RETRIES + ")");
+        if (mReliable && mPhase == PHASE_WRITES) {
+            // The device may have queued the bad write, throw the whole batch away
+            mCallbacks.abortReliableWrite();
+            mIndex = 0;
+            mRestartBatch = true;
+        }
+        mScheduler.removeCallbacks(mRetry);
+        mScheduler.postDelayed(mRetry, GattOperationWatchdog.backoffMs(mRetries, mRandom));
+    }
+
+    // Drop any retry still waiting. The transaction can't be restarted.
+    void cancel() {
+        mScheduler.removeCallbacks(mRetry);
+        mPhase = PHASE_DONE;
+    }
+
+    // The device doesn't seem to like reliable writes. Do it the slow way.
+    private void fallBackToSequential() {
+        Log.w(TAG, "Reliable write failed, falling back to sequential writes");
+
+        mScheduler.removeCallbacks(mRetry);
+        mCallbacks.abortReliableWrite();
+        mReliable = false;
+        mRestartBatch = false;
+
+        mPhase = PHASE_WRITES;
+        mIndex = 0;
+        mRetries = 0;
+        writeCurrent();
+    }
+
+    private void finish(int result) {
+        mScheduler.removeCallbacks(mRetry);
+        mPhase = PHASE_DONE;
+        mCallbacks.onComplete(result, mTotalRetries);
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A value the service publishes, that any number of subscribers can follow at their own pace.
+ *
+ * Publishing never waits on a subscriber. Each subscription has its own bounded buffer, and when
+ * a subscriber falls behind the oldest values in it are dropped. By default only the latest value
+ * is kept. A subscription can also skip values equal to the last one it took, and be sampled so
+ * it's handed values at most once every so often. Values are delivered on the subscriber's
+ * Scheduler, never on the thread that published them.
+ */
+public class TelemetryStream<T> {
+
+    public interface Subscriber<T> {
+        // timeMs is when the value was published, by the subscriber's scheduler clock
+        void onValue(T value, long timeMs);
+    }
+
+    public static class Options {
+        int bufferSize = 1;
+        long sampleMs = 0;
+        boolean distinct = false;
+
+        // Values kept while the subscriber is busy. 1 keeps only the latest.
+        public Options setBufferSize(int bufferSize) {
+            if (bufferSize < 1) {
+                throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+            }
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        // Deliver at most once per period, whatever was buffered by then. 0 delivers right away.
+        public Options setSampleMs(long sampleMs) {
+            if (sampleMs < 0) {
+                throw new IllegalArgumentException("Invalid sample period: " + sampleMs + " ms");
+            }
+            this.sampleMs = sampleMs;
+            return this;
+        }
+
+        // Skip values equal to the last one taken
+        public Options setDistinct(boolean distinct) {
+            this.distinct = distinct;
+            return this;
+        }
+    }
+
+    public class Subscription {
+        private final Scheduler mScheduler;
+        private final Subscriber<T> mSubscriber;
+        private final long mSampleMs;
+        private final boolean mDistinct;
+
+        // Ring buffer, guarded by this
+        private final Object[] mValues;
+        private final long[] mTimesMs;
+        private int mHead;
+        private int mCount;
+
+        private boolean mHasLast;
+        private T mLast;
+        private boolean mDrainPending;
+        private long mLastDeliveryMs;
+        private boolean mCancelled;
+
+        private long mDeliveredCount;
+        private long mDroppedCount;
+        private long mSkippedCount;
+
+        private final Runnable mDrain = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+
+        private Subscription(Scheduler scheduler, Subscriber<T> subscriber, Options options) {
+            mScheduler = scheduler;
+            mSubscriber = subscriber;
+            mSampleMs = options.sampleMs;
+            mDistinct = options.distinct;
+            mValues = new Object[options.bufferSize];
+            mTimesMs = new long[options.bufferSize];
+            mLastDeliveryMs = scheduler.elapsedRealtime() - options.sampleMs;
+        }
+
+        private synchronized void offer(T value) {
+            if (mCancelled)
+                return;
+
+            if (mDistinct) {
+                if (mHasLast && equal(mLast, value)) {
+                    mSkippedCount++;
+                    return;
+                }
+                mHasLast = true;
+                mLast = value;
+            }
+
+            if (mCount == mValues.length) {
+                // Subscriber is behind. The oldest value goes.
+                mHead = (mHead + 1) % mValues.length;
+                mCount--;
+                mDroppedCount++;
+            }
+            int tail = (mHead + mCount) % mValues.length;
+            mValues[tail] = value;
+            mTimesMs[tail] = mScheduler.elapsedRealtime();
+            mCount++;
+
+            if (! mDrainPending) {
+                mDrainPending = true;
+                long wait = mLastDeliveryMs + mSampleMs - mScheduler.elapsedRealtime();
+                mScheduler.postDelayed(mDrain, Math.max(0, wait));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void drain() {
+            Object[] values;
+            long[] timesMs;
+            synchronized (this) {
+                mDrainPending = false;
+                if (mCancelled || mCount == 0)
+                    return;
+
+                values = new Object[mCount];
+                timesMs = new long[mCount];
+                for (int i = 0; i < mCount; i++) {
+                    int index = (mHead + i) % mValues.length;
+                    values[i] = mValues[index];
+                    timesMs[i] = mTimesMs[index];
+                    mValues[index] = null;
+                }
+                mHead = 0;
+                mCount = 0;
+                mLastDeliveryMs = mScheduler.elapsedRealtime();
+                mDeliveredCount += values.length;
+            }
+
+            // Outside the lock, so a slow subscriber only holds itself up
+            for (int i = 0; i < values.length; i++) {
+                mSubscriber.onValue((T) values[i], timesMs[i]);
+            }
+        }
+
+        public void cancel() {
+            synchronized (this) {
+                mCancelled = true;
+                mCount = 0;
+            }
+            mScheduler.removeCallbacks(mDrain);
+            unsubscribe(this);
+        }
+
+        public synchronized long getDeliveredCount() {
+            return mDeliveredCount;
+        }
+
+        // Values lost because the buffer was full
+        public synchronized long getDroppedCount() {
+            return mDroppedCount;
+        }
+
+        // Values skipped for being the same as the last one
+        public synchronized long getSkippedCount() {
+            return mSkippedCount;
+        }
+    }
+
+    private final List<Subscription> mSubscriptions = new ArrayList<>();
+    private boolean mHasLatest;
+    private T mLatest;
+
+    // Follow the stream. The latest value, if there is one, is delivered first.
+    public Subscription subscribe(Scheduler scheduler, Subscriber<T> subscriber, Options options) {
+        Subscription subscription = new Subscription(scheduler, subscriber, options);
+        synchronized (this) {
+            mSubscriptions.add(subscription);
+            if (mHasLatest) {
+                subscription.offer(mLatest);
+            }
+        }
+        return subscription;
+    }
+
+    public void publish(T value) {
+        List<Subscription> subscriptions;
+        synchronized (this) {
+            mHasLatest = true;
+            mLatest = value;
+            if (mSubscriptions.isEmpty())
+                return;
+            subscriptions = new ArrayList<>(mSubscriptions);
+        }
+
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(value);
+        }
+    }
+
+    // The last value published, or null if there was none
+    public synchronized T getLatest() {
+        return mLatest;
+    }
+
+    public synchronized int getSubscriberCount() {
+        return mSubscriptions.size();
+    }
+
+    private synchronized void unsubscribe(Subscription subscription) {
+        mSubscriptions.remove(subscription);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * A Scheduler on virtual time, for running timing-sensitive code on a plain JVM.
+ *
+ * Time only moves when advanceBy() or advanceTo() is called. Tasks due by then run in order of
+ * when they're due, and tasks due at the same time in the order they were posted, with the clock
+ * set to each task's due time while it runs. Nothing depends on the real clock, so the same calls
+ * always give the same run, no matter how many simulated hours it covers.
+ */
+public class VirtualScheduler implements Scheduler {
+
+    private static class Entry implements Comparable<Entry> {
+        final long dueNanos;
+        final long sequence;
+        final Runnable task;
+
+        Entry(long dueNanos, long sequence, Runnable task) {
+            this.dueNanos = dueNanos;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (dueNanos != other.dueNanos) {
+                return dueNanos < other.dueNanos ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Entry> mQueue = new PriorityQueue<>();
+    private long mNowNanos;
+    private long mNextSequence;
+    private long mRunCount;
+
+    public VirtualScheduler() {
+        this(0);
+    }
+
+    public VirtualScheduler(long startMs) {
+        mNowNanos = startMs * 1000000;
+    }
+
+    @Override
+    public long elapsedRealtime() {
+        return mNowNanos / 1000000;
+    }
+
+    @Override
+    public long elapsedRealtimeNanos() {
+        return mNowNanos;
+    }
+
+    @Override
+    public void post(Runnable task) {
+        postDelayed(task, 0);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMs) {
+        mQueue.add(new Entry(mNowNanos + Math.max(0, delayMs) * 1000000, mNextSequence++, task));
+    }
+
+    @Override
+    public void removeCallbacks(Runnable task) {
+        Iterator<Entry> entries = mQueue.iterator();
+        while (entries.hasNext()) {
+            if (entries.next().task == task) {
+                entries.remove();
+            }
+        }
+    }
+
+    // Run everything due in the next durationMs, then leave the clock at the end of it
+    public void advanceBy(long durationMs) {
+        advanceToNanos(mNowNanos + durationMs * 1000000);
+    }
+
+    public void advanceTo(long timeMs) {
+        advanceToNanos(timeMs * 1000000);
+    }
+
+    // Run whatever is due right now, without moving the clock
+    public void runDue() {
+        advanceToNanos(mNowNanos);
+    }
+
+    private void advanceToNanos(long targetNanos) {
+        if (targetNanos < mNowNanos) {
+            throw new IllegalArgumentException("Virtual time can't go backwards");
+        }
+
+        while (! mQueue.isEmpty() && mQueue.peek().dueNanos <= targetNanos) {
+            Entry entry = mQueue.poll();
+            mNowNanos = entry.dueNanos;
+            mRunCount++;
+            entry.task.run();
+        }
+        mNowNanos = targetNanos;
+    }
+
+    public int getPendingCount() {
+        return mQueue.size();
+    }
+
+    // Virtual time the next task is due at, or -1 if nothing is pending
+    public long getNextDueMs() {
+        return mQueue.isEmpty() ? -1 : mQueue.peek().dueNanos / 1000000;
+    }
+
+    // Tasks run since this scheduler was created
+    public long getRunCount() {
+        return mRunCount;
+    }
+}
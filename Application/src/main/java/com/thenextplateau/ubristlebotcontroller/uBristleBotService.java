@@ -18,31 +18,40 @@ package com.thenextplateau.ubristlebotcontroller;
 
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.support.annotation.NonNull;
+import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -53,7 +62,7 @@ public class uBristleBotService extends Service {
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private static BluetoothGatt mBluetoothGatt;
+    private static GattLink mGattLink;
     private Object mScanCallback;
 
 
@@ -76,22 +85,31 @@ public class uBristleBotService extends Service {
             "com.thenextplateau.ubristlebot.ACTION_CONNECTED";
     public final static String ACTION_DEVICE_DISCONNECTED =
             "com.thenextplateau.ubristlebot.ACTION_BLE_DISCONNECTED";
+    public final static String ACTION_DEVICE_NAME_CHANGED =
+            "com.thenextplateau.ubristlebot.ACTION_DEVICE_NAME_CHANGED";
+    public final static String ACTION_DEVICE_COLOR_CHANGED =
+            "com.thenextplateau.ubristlebot.ACTION_DEVICE_COLOR_CHANGED";
 
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+    private final GattLink.Callback mGattCallback = new GattLink.Callback() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        public void onConnectionStateChange(GattLink link, int status, int newState) {
             if (mDeviceConnectionState == DEVICE_STATE_CONNECTING) {
                 if (newState == BluetoothProfile.STATE_CONNECTED) {
-                    mDeviceConnectionState = DEVICE_STATE_CONNECTED;
+                    setConnectionState(DEVICE_STATE_CONNECTED);
                     Log.i(TAG, "Connected to Device. Discovering Services...");
 
                     // Discover Services
-                    mBluetoothGatt.discoverServices();
+                    mGattLink.discoverServices();
                     broadcastUpdate(ACTION_CONNECTING_COMPARING_SERVICES);
                 } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                    mDeviceConnectionState = DEVICE_STATE_DISCONNECTED;
+                    setConnectionState(DEVICE_STATE_DISCONNECTED);
                     Log.i(TAG, "Could not connect to Device.");
-                    broadcastConnectFailedUpdate("Connect Error: Could not connect to Device.");
+                    if (mQuickConnecting) {
+                        closeGatt();
+                        quickConnectNext();
+                    } else {
+                        broadcastConnectFailedUpdate("Connect Error: Could not connect to Device.");
+                    }
                 }
             } else if (mDeviceConnectionState == DEVICE_STATE_CONNECTED) {
                 if (newState == BluetoothProfile.STATE_CONNECTED) {
@@ -100,55 +118,125 @@ public class uBristleBotService extends Service {
                     Log.i(TAG, "Disconnected from Device.");
 
                     // We're either connected or we're not. No in between.
-                    mBluetoothGatt.close();
-                    mBluetoothGatt = null;
+                    mGattLink.close();
+                    mGattLink = null;
+                    setConnectionState(DEVICE_STATE_DISCONNECTED);
+                    // Nothing may write to the link once it's gone
+                    robotDeinit();
+
+                    if (mReconnectAddress == null) {
+                        stopSession();
+                    }
+
+                    // A remembered device that turned out not to be usable. Try the next one.
+                    if (mQuickConnecting) {
+                        quickConnectNext();
+                        return;
+                    }
 
                     broadcastUpdate(ACTION_DEVICE_DISCONNECTED);
+
+                    // The watchdog gave up on this link. Bring it back.
+                    if (mReconnectAddress != null) {
+                        String address = mReconnectAddress;
+                        mReconnectAddress = null;
+
+                        Log.i(TAG, "Reconnecting to Device.");
+                        connectTo(address);
+                    }
                 }
             }
         }
 
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        public void onServicesDiscovered(GattLink link, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                if (isuBristleBot(gatt.getServices())) {
+                FirmwareProfileRegistry.Match match = mFirmwareProfiles.match(link.getServices());
+                if (match != null) {
+                    mWatchdog.reset();
+                    Log.i(TAG, "Device matches firmware profile " + match.profile.name);
+
                     // We're connected to a uBristleBot!
-                    mDeviceConnectionState = DEVICE_STATE_CONNECTED;
+                    setConnectionState(DEVICE_STATE_CONNECTED);
+                    rememberDevice(link.getAddress());
+                    if (mQuickConnecting) {
+                        Log.i(TAG, "Quick connected to " + link.getAddress());
+                        cancelQuickConnect();
+                        scanForBots(false);
+                    }
 
                     // Initialize BLE Characteristics
                     broadcastUpdate(ACTION_CONNECTING_READING_CHARACTERISTICS);
-                    initBLECharacteristics(gatt.getServices());
+                    initBLECharacteristics(match);
 
                     // Initialize everything else for the robot
                     robotInit();
+                    mSessionRecorder.start(link.getAddress(),
+                            System.currentTimeMillis(), mScheduler.elapsedRealtime());
+                    mBotInventory.onConnected(link.getAddress(), System.currentTimeMillis());
+                    scheduleInventorySave();
+
+                    // Motors are all we need to drive. The rest loads in the background.
+                    mTimeToDriveMs = (mScheduler.elapsedRealtimeNanos() - mConnectStartNanos) / 1000000;
+                    Log.i(TAG, "Ready to drive after " + mTimeToDriveMs + " ms");
+                    broadcastConnectedUpdate();
+                    startSession();
+
+                    issueBackgroundOp();
                 } else {
                     disconnect();
                     Log.i(TAG, "Services Discovered are not those of an uBristBot");
-                    broadcastConnectFailedUpdate("Connect Error: Device is not a uBristleBot.");
+                    if (! mQuickConnecting) {
+                        broadcastConnectFailedUpdate("Connect Error: Device is not a uBristleBot.");
+                    }
                 }
             } else {
                 disconnect();
                 Log.i(TAG, "Error discovering services on Device.");
-                broadcastConnectFailedUpdate("Connect Error: Services not found.");
+                if (! mQuickConnecting) {
+                    broadcastConnectFailedUpdate("Connect Error: Services not found.");
+                }
             }
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
+        public void onCharacteristicRead(GattLink link,
                                          BluetoothGattCharacteristic characteristic,
                                          int status) {
+            if (mMotorReadBackInFlight) {
+                // A lost sample isn't worth a retry. There'll be another one soon.
+                mMotorReadBackInFlight = false;
+                mBackgroundOpInFlight = false;
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    mWatchdog.onSucceeded();
+                    mMotorDelivery.onReadBack(characteristic.getValue(),
+                            mScheduler.elapsedRealtimeNanos() / 1000000);
+                } else {
+                    mWatchdog.clear();
+                }
+
+                onGattIdle();
+                return;
+            }
+
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                // Immediately start reading another characteristic
+                mWatchdog.onSucceeded();
+                mBackgroundOpInFlight = false;
                 characteristicReadList.remove(0);
-                if (! characteristicReadList.isEmpty()) {
-                    mBluetoothGatt.readCharacteristic(characteristicReadList.get(0));
-                }
 
-                // Figure out where to put that data
+                // Figure out where to put that data, and let the UI know
                 if (characteristic.getUuid().equals(C_DEVICE_NAME)) {
                     mDeviceName = new String(characteristic.getValue());
+                    mDeviceNameValue = characteristic.getValue().clone();
+                    mBotInventory.setName(link.getAddress(), mDeviceName.trim());
+                    scheduleInventorySave();
+                    broadcastUpdate(ACTION_DEVICE_NAME_CHANGED);
+                    updateSessionNotification();
 
                 } else if (characteristic.getUuid().equals(C_BATTERY)) {
+                    mSessionRecorder.addBattery(characteristic.getValue()[0] & 0xFF);
+                    mBotInventory.setBattery(link.getAddress(),
+                            characteristic.getValue()[0] & 0xFF);
                     boradcastDeviceBatteryUpdate(characteristic.getValue()[0] & 0xFF);
 
                 } else if (characteristic.getUuid().equals(C_RGB_LEDS)) {
@@ -156,40 +244,78 @@ public class uBristleBotService extends Service {
                     mRGB[0] = values[0];
                     mRGB[1] = values[1];
                     mRGB[2] = values[2];
+                    mBotInventory.setColor(link.getAddress(),
+                            values[2], values[1], values[0]);
+                    broadcastUpdate(ACTION_DEVICE_COLOR_CHANGED);
 
-                    // That's the last of them!
-                    // Complete the remaining device init
-
-                    // Enable Battery Notification
-                    mBluetoothGatt.setCharacteristicNotification(cBattery, true);
-
-                    // Reference for magic numbers:
-                    //  https://developer.bluetooth.org/gatt/descriptors/Pages/DescriptorViewer.aspx?
-                    //  u=org.bluetooth.descriptor.gatt.client_characteristic_configuration.xml
-                    BluetoothGattDescriptor descriptor = cBattery.getDescriptor(
-                            UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"));
-
-                    descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                    mBluetoothGatt.writeDescriptor(descriptor);
-
-                    // We're ready for the fun stuff!
-                    broadcastUpdate(ACTION_CONNECTED);
                 } else {
                     // Wat.
                     Log.e(TAG, "We're not suppose to get here....");
                 }
-            } else {
-                // Immediately retry read (max retries be damned...)
-                mBluetoothGatt.readCharacteristic(characteristicReadList.get(0));
 
+                // Motors come first, then whatever else is left to load
+                onGattIdle();
+            } else {
+                // Retry read after a backoff, up to a limit
                 Log.d(TAG, "BLE Characteristic Read failed. Error code: " + status);
+                mWatchdog.onFailed();
             }
         }
 
         @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt,
+        public void onDescriptorWrite(GattLink link,
+                                      BluetoothGattDescriptor descriptor,
+                                      int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.d(TAG, "Enabling battery notifications failed. Error code: " + status);
+                mWatchdog.onFailed();
+                return;
+            }
+
+            mWatchdog.onSucceeded();
+            mBackgroundOpInFlight = false;
+            onGattIdle();
+        }
+
+        @Override
+        public void onCharacteristicWrite(GattLink link,
                                           BluetoothGattCharacteristic characteristic,
                                           int status) {
+            if (characteristic.getUuid().equals(C_MOTORS)) {
+                long latencyMs = (mScheduler.elapsedRealtimeNanos() - mMotorWriteStartNanos) / 1000000;
+
+                // Feed the link quality estimate
+                mLinkQuality.addWriteResult(status == BluetoothGatt.GATT_SUCCESS);
+                mLinkQuality.addAckRoundTrip(latencyMs);
+                updateLinkWarning();
+
+                // Adapt the motor send rate to what the link can deliver
+                mMotorSendRate.onWriteComplete(status == BluetoothGatt.GATT_SUCCESS,
+                        latencyMs, mScheduler.elapsedRealtime());
+
+                mMotorDelivery.onCommandAcked(status == BluetoothGatt.GATT_SUCCESS);
+                mSessionRecorder.addMotorWrite(status == BluetoothGatt.GATT_SUCCESS, latencyMs);
+
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    byte[] frame = characteristic.getValue();
+                    mLastAckedMotorFrameZero = frame[0] == 0 && frame[1] == 0;
+                    mMotorFilter.onAcked(mSentMotorLeft, mSentMotorRight);
+
+                    if (mWakeStartNanos != 0) {
+                        recordWakeLatency(mScheduler.elapsedRealtimeNanos() - mWakeStartNanos);
+                        mWakeStartNanos = 0;
+                    }
+                }
+            }
+
+            // Settings writes are handled, and retried, by their transaction
+            if (mSettingsTransaction != null && mSettingsTransaction.isStarted() &&
+                    ! characteristic.getUuid().equals(C_MOTORS)) {
+                mWatchdog.clear();
+                mSettingsTransaction.onCharacteristicWrite(characteristic, status);
+                return;
+            }
+
             if (status != BluetoothGatt.GATT_SUCCESS) {
                 Log.d(TAG, "BLE Characteristic Write failed. Error code: " + status);
                 // Something went wrong...
@@ -198,47 +324,67 @@ public class uBristleBotService extends Service {
                     byte[] values = characteristic.getValue();
                     if (values[0] == 0 && values[1] == 0) {
                         Log.d(TAG, "Resending 0");
-                        mBluetoothGatt.writeCharacteristic(characteristic);
+                        mLinkQuality.addWriteRetry();
+                        mWatchdog.onFailed();
                         return;
                     }
 
                     // Otherwise, forget about it. The values will change so often
                     //  that if we try to constantly resend in a noisy env,
-                    //  responsiveness will degrade.
+                    //  responsiveness will degrade. The send rate backs off instead.
+                    mWatchdog.clear();
+                } else if (characteristic.getUuid().equals(C_RGB_LEDS)) {
+                    // A dropped preview is sent again with whatever color is latest by then
+                    mColorPreviewPending = true;
+                    mWatchdog.clear();
                 } else {
-                    // Any other write should always make it through.
-                    mBluetoothGatt.writeCharacteristic(characteristic);
+                    // Any other write should make it through, within reason
+                    mWatchdog.onFailed();
                     return;
                 }
+            } else {
+                mWatchdog.onSucceeded();
             }
 
             // Everything went well. Update the next characteristic if needed.
             characteristicWriteList.remove(0);
             if (! characteristicWriteList.isEmpty()) {
                 Log.d(TAG, "BLE Characteristic Write succeeded");
-                mBluetoothGatt.writeCharacteristic(characteristicWriteList.get(0));
+                writeCharacteristic(characteristicWriteList.get(0));
             }
 
-            // If we've just saved settings, we're about to be disconnected.
-            //  Preempt this.
-            if (characteristic.getUuid().equals(C_SAVE_CHANGES)) {
-                Log.d(TAG, "Disconnecting after saving settings");
-                disconnect();
+            if (characteristicWriteList.isEmpty()) {
+                onGattIdle();
+            }
+        }
+
+        @Override
+        public void onReliableWriteCompleted(GattLink link, int status) {
+            mWatchdog.clear();
+            if (mSettingsTransaction != null) {
+                mSettingsTransaction.onReliableWriteCompleted(status);
             }
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
+        public void onCharacteristicChanged(GattLink link,
                                             BluetoothGattCharacteristic characteristic) {
+            mSessionRecorder.addBattery(characteristic.getValue()[0] & 0xFF);
+            mBotInventory.setBattery(link.getAddress(), characteristic.getValue()[0] & 0xFF);
             boradcastDeviceBatteryUpdate(characteristic.getValue()[0] & 0xFF);
         }
 
         @Override
-        public void onReadRemoteRssi(BluetoothGatt gatt,
+        public void onReadRemoteRssi(GattLink link,
                                      int rssi,
                                      int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                boradcastDeviceRSSIUpdate(rssi);
+                mLinkQuality.addRssiSample(rssi);
+                mSessionRecorder.addRssi(rssi);
+                mBotInventory.setRssi(link.getAddress(), mLinkQuality.getSmoothedRssi());
+                updateLinkWarning();
+
+                boradcastDeviceRSSIUpdate(mLinkQuality.getSmoothedRssi());
             } else {
                 Log.e(TAG, "Error reading remote RSSI");
             }
@@ -250,11 +396,21 @@ public class uBristleBotService extends Service {
         sendBroadcast(intent);
     }
 
-    private void broadcastDeviceFoundUpdate(final BluetoothDevice device, final int rssi) {
+    private void broadcastConnectedUpdate() {
+        final Intent intent = new Intent(ACTION_CONNECTED);
+
+        intent.putExtra(CONNECT_TIME_MS, mTimeToDriveMs);
+
+        sendBroadcast(intent);
+    }
+
+    private void broadcastDeviceFoundUpdate(final String name, final String address, final int rssi) {
+        mDeviceLastSeen.put(address, mScheduler.elapsedRealtime());
+
         final Intent intent = new Intent(ACTION_DEVICE_FOUND);
 
-        intent.putExtra(SCAN_RESULT_DEVICE_NAME, device.getName());
-        intent.putExtra(SCAN_RESULT_DEVICE_ADDRESS, device.getAddress());
+        intent.putExtra(SCAN_RESULT_DEVICE_NAME, name);
+        intent.putExtra(SCAN_RESULT_DEVICE_ADDRESS, address);
         intent.putExtra(SCAN_RESULT_DEVICE_RSSI, rssi);
 
         sendBroadcast(intent);
@@ -269,14 +425,30 @@ public class uBristleBotService extends Service {
     }
 
     private void boradcastDeviceRSSIUpdate(final int rssi) {
+        mRssiStream.publish(rssi);
+
         final Intent intent = new Intent(ACTION_DEVICE_RSSI_CHANGED);
 
         intent.putExtra(DEVICE_RSSI, rssi);
+        intent.putExtra(DEVICE_LINK_QUALITY, mLinkQuality.getScore());
+        intent.putExtra(DEVICE_LINK_TREND, mLinkQuality.getTrendDirection());
+
+        sendBroadcast(intent);
+    }
+
+    private void broadcastLinkWarningUpdate(final boolean warning) {
+        final Intent intent = new Intent(ACTION_DEVICE_LINK_WARNING);
+
+        intent.putExtra(DEVICE_LINK_WARNING, warning);
+        intent.putExtra(DEVICE_LINK_QUALITY, mLinkQuality.getScore());
 
         sendBroadcast(intent);
     }
 
     private void boradcastDeviceBatteryUpdate(final int batteryPercent) {
+        mBatteryPercent = batteryPercent;
+        mBatteryStream.publish(batteryPercent);
+
         final Intent intent = new Intent(ACTION_DEVICE_BATTERY_CHANGED);
 
         intent.putExtra(DEVICE_BATTERY, batteryPercent);
@@ -305,6 +477,201 @@ public class uBristleBotService extends Service {
     private final IBinder mBinder = new LocalBinder();
 
 
+    //
+    // Session
+    //
+    // While a device is connected the service is started and in the foreground, so the link
+    //  outlives whichever activities happen to be bound. It stops itself once the link is gone.
+    public final static String ACTION_END_SESSION =
+            "com.thenextplateau.ubristlebot.ACTION_END_SESSION";
+
+    private static final int SESSION_NOTIFICATION_ID = 1;
+
+    private boolean mSessionStarted = false;
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_END_SESSION.equals(intent.getAction())) {
+            Log.i(TAG, "Session ended from notification");
+
+            if (isConnected()) {
+                disconnect();
+            } else {
+                stopSession();
+            }
+        }
+
+        // A link can't be brought back after the process dies, so don't ask to be restarted
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        // Nobody left to drive
+        if (mGattLink != null) {
+            if (isConnected()) {
+                robotDeinit();
+            }
+            closeGatt();
+        }
+        cancelQuickConnect();
+        if (mInitialized) {
+            scanForBots(false);
+        }
+        stopControlServer();
+        stopLooperMonitor();
+    }
+
+    public boolean isSessionStarted() {
+        return mSessionStarted;
+    }
+
+    private void startSession() {
+        if (mSessionStarted)
+            return;
+
+        mSessionStarted = true;
+        enterForeground();
+    }
+
+    private void stopSession() {
+        if (! mSessionStarted)
+            return;
+
+        mSessionStarted = false;
+        exitForeground();
+
+        // The control server keeps the service around on its own
+        if (! isControlServerRunning()) {
+            stopSelf();
+        }
+    }
+
+    private void updateSessionNotification() {
+        if (mSessionStarted) {
+            showSessionNotification();
+        }
+    }
+
+    // Only the system can put a service in the foreground. Tests that run the service on their
+    //  own override these.
+    void enterForeground() {
+        startService(new Intent(this, uBristleBotService.class));
+        showSessionNotification();
+    }
+    void showSessionNotification() {
+        startForeground(SESSION_NOTIFICATION_ID, buildSessionNotification());
+    }
+    void exitForeground() {
+        stopForeground(true);
+    }
+
+    private android.app.Notification buildSessionNotification() {
+        Intent controlIntent = new Intent(this, ControlUIActivity.class);
+        controlIntent.addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+
+        Intent endIntent = new Intent(this, uBristleBotService.class);
+        endIntent.setAction(ACTION_END_SESSION);
+
+        String name = getName();
+
+        return new NotificationCompat.Builder(this)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setContentTitle(name.isEmpty() ? getString(R.string.app_name) : name)
+                .setContentText(getString(R.string.connected))
+                .setContentIntent(PendingIntent.getActivity(this, 0, controlIntent,
+                        PendingIntent.FLAG_UPDATE_CURRENT))
+                .addAction(0, getString(R.string.disconnect),
+                        PendingIntent.getService(this, 0, endIntent,
+                                PendingIntent.FLAG_UPDATE_CURRENT))
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .setOngoing(true)
+                .build();
+    }
+
+
+
+    //
+    // Timing
+    //
+    // Every timer and timestamp of the control loop goes through one Scheduler, so the loop can
+    //  also run on virtual time. See VirtualScheduler. Set in onCreate(), unless a test got there
+    //  first, so loading the class doesn't need a Looper.
+    private static Scheduler mScheduler;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        if (mScheduler == null) {
+            mScheduler = new HandlerScheduler(Looper.getMainLooper());
+        }
+        if (mWatchdog == null) {
+            mWatchdog = new GattOperationWatchdog(mScheduler, mRecovery);
+        }
+
+        if (mStorageHandler == null) {
+            HandlerThread storageThread = new HandlerThread("Storage");
+            storageThread.start();
+            mStorageHandler = new Handler(storageThread.getLooper());
+
+            mSessionTelemetry = new SessionTelemetryStore(getFilesDir());
+
+            // The scan list re-reads it once it's in
+            mBotInventory = new BotInventoryStore(getFilesDir());
+            mStorageHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mBotInventory.load();
+                    broadcastUpdate(ACTION_KNOWN_BOTS_LOADED);
+                }
+            });
+        }
+    }
+
+    // Links are opened through this. Set by initialize(), unless a test got there first with a
+    //  simulated peripheral.
+    private GattLink.Connector mGattConnector;
+
+    void setGattConnector(GattLink.Connector connector) {
+        if (mGattLink != null) {
+            throw new IllegalStateException("Can't change the connector while a link is up");
+        }
+        mGattConnector = connector;
+    }
+
+    // Swap the clock. Everything already built on the old one is stopped and rebuilt on the
+    //  new one, so it can't be done while a link is up or discovery is running.
+    void setScheduler(Scheduler scheduler) {
+        if (mGattLink != null || mScanPolicy != null || mIsScanning) {
+            throw new IllegalStateException("Can't change the scheduler while the radio is in use");
+        }
+
+        mScheduler = scheduler;
+
+        if (mWatchdog != null) {
+            mWatchdog.clear();
+            mWatchdog = new GattOperationWatchdog(mScheduler, mRecovery);
+        }
+        if (mMotorScheduler != null) {
+            mMotorScheduler.stop();
+            mMotorScheduler = new PeriodicScheduler(mScheduler, updateMotorCharacteristics,
+                    mMotorSendRate.getIntervalMs(), "updateMotorCharacteristics");
+        }
+        if (mRSSIScheduler != null) {
+            mRSSIScheduler.stop();
+            mRSSIScheduler = new PeriodicScheduler(mScheduler,
+                    updateRSSI, RSSI_UPDATE_PERIOD_MS, "updateRSSI");
+        }
+        if (mMotionProgramExecutor != null) {
+            mMotionProgramExecutor.stop();
+            mMotionProgramExecutor = null;
+        }
+    }
+
+
 
     //
     // Initialize Bluetooth Connection
@@ -314,9 +681,16 @@ public class uBristleBotService extends Service {
     public static final int INIT_ERROR_BLUETOOTH_MANAGER_INIT_FAILED = 2;
     public static final int INIT_ERROR_BLUETOOTH_ADAPTER_INIT_FAILED = 3;
 
+    private boolean mInitialized = false;
+
+    // Safe to call on every bind. Only the first successful call does any work, so activities
+    //  reattach to a running session without touching it.
     @TargetApi(19)
     @SuppressLint("NewApi")
     public int initialize() {
+        if (mInitialized)
+            return INIT_ERROR_NONE;
+
         // Initialize Bluetooth Adapter and perform basic checks
         if (! getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
             Log.e(TAG, "BLE is not available on this device");
@@ -338,32 +712,31 @@ public class uBristleBotService extends Service {
             return INIT_ERROR_BLUETOOTH_ADAPTER_INIT_FAILED;
         }
 
-        mScanHandler = new Handler(Looper.getMainLooper());
+        if (mGattConnector == null) {
+            mGattConnector = new BluetoothGattLink.Connector(this, mBluetoothAdapter,
+                    new Handler(Looper.getMainLooper()));
+        }
 
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
             mScanCallback = new BluetoothAdapter.LeScanCallback() {
                 @Override
                 public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-                    Log.i(TAG, "Found BLE device: " + device.getName());
-
-                    broadcastDeviceFoundUpdate(device, rssi);
+                    onDeviceFound(device.getName(), device.getAddress(), rssi);
                 }
             };
         } else {
             mScanCallback = new ScanCallback() {
                 @Override
                 public void onScanResult(int callbackType, @NonNull ScanResult scanResult) {
-                    Log.i(TAG, "Found BLE device: " + scanResult.getDevice().getName());
-
-                    broadcastDeviceFoundUpdate(scanResult.getDevice(), scanResult.getRssi());
+                    BluetoothDevice device = scanResult.getDevice();
+                    onDeviceFound(device.getName(), device.getAddress(), scanResult.getRssi());
                 }
 
                 @Override
                 public void onBatchScanResults(@NonNull List<ScanResult> results) {
                     for (ScanResult result : results) {
-                        Log.i(TAG, "Found BLE device: " + result.getDevice().getName());
-
-                        broadcastDeviceFoundUpdate(result.getDevice(), result.getRssi());
+                        BluetoothDevice device = result.getDevice();
+                        onDeviceFound(device.getName(), device.getAddress(), result.getRssi());
                     }
                 }
 
@@ -374,6 +747,7 @@ public class uBristleBotService extends Service {
             };
         }
 
+        mInitialized = true;
         return INIT_ERROR_NONE;
     }
 
@@ -382,9 +756,17 @@ public class uBristleBotService extends Service {
     //
     // Scan for Devices
     //
-    private static Handler mScanHandler;
+    private static final long SCAN_TIMEOUT_MS = 10 * 1000;
+
     private static boolean mIsScanning;
 
+    private final Runnable mScanTimeout = new Runnable() {
+        @Override
+        public void run() {
+            scanForDevices(false);
+        }
+    };
+
     public final static String SCAN_RESULT_DEVICE_NAME =
             "com.thenextplateau.ubristlebot.scanresult.DEVICE_NAME";
     public final static String SCAN_RESULT_DEVICE_ADDRESS =
@@ -392,7 +774,18 @@ public class uBristleBotService extends Service {
     public final static String SCAN_RESULT_DEVICE_RSSI =
             "com.thenextplateau.ubristlebot.scanresult.DEVICE_RSSI";
 
+    // Every scan result comes through here. Tests feed it synthetic ones, see ScanListLoadTest.
+    void onDeviceFound(String name, String address, int rssi) {
+        Log.i(TAG, "Found BLE device: " + name);
+
+        broadcastDeviceFoundUpdate(name, address, rssi);
+    }
+
     public void scanForBots(boolean startScan) {
+        // Before initialize() there's no scanner, so nothing to start or stop
+        if (mBluetoothAdapter == null)
+            return;
+
         if (! mBluetoothAdapter.isEnabled()) {
             broadcastUpdate(ACTION_BLUETOOTH_IS_DISABLED);
             return;
@@ -404,155 +797,478 @@ public class uBristleBotService extends Service {
                 disconnect();
             }
 
+            stopDiscoveryCycle();
+
             // Stop scanning after a certain amount of time
-            mScanHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    scanForDevices(false);
-                }
-            }, 10 * 1000);
+            mScheduler.removeCallbacks(mScanTimeout);
+            mScheduler.postDelayed(mScanTimeout, SCAN_TIMEOUT_MS);
 
             // Start scanning for devices
             scanForDevices(true);
         } else {
-            mScanHandler.removeCallbacksAndMessages(null);
-            mScanHandler = new Handler(Looper.getMainLooper());
+            mScheduler.removeCallbacks(mScanTimeout);
+            stopDiscoveryCycle();
             scanForDevices(false);
         }
     }
 
-    // Helper function for API differences
-    @SuppressWarnings("deprecation")
-    private void scanForDevices(boolean startScan) {
-        if (startScan) {
-            if (!mIsScanning) {
-                Log.i(TAG, "Starting BLE Scan");
-
-                mIsScanning = true;
 
-                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
-                    mBluetoothAdapter.startLeScan((BluetoothAdapter.LeScanCallback) mScanCallback);
-                } else {
-                    mBluetoothAdapter.getBluetoothLeScanner().startScan((ScanCallback) mScanCallback);
-                }
+    //
+    // Continuous Discovery
+    //
+    // Instead of one fixed-length scan, the scanner is duty-cycled according to a ScanPolicy.
+    //  Devices stay listed until they haven't been seen for the policy's TTL.
+    public final static String ACTION_DEVICE_LOST =
+            "com.thenextplateau.ubristlebot.ACTION_DEVICE_LOST";
+
+    private static ScanPolicy mScanPolicy;
+    private static boolean mDiscoveryFirstWindow;
+    // Every scan start, from discovery or not, counts against Android's limit
+    private static final ScanStartBudget mScanStarts = new ScanStartBudget();
+    private static final HashMap<String, Long> mDeviceLastSeen = new HashMap<>();
+
+    private final Runnable mDiscoveryWindowStart = new Runnable() {
+        @Override
+        public void run() {
+            // Wait out a spent start budget, or the window would run with the scanner off
+            long delayMs = mScanStarts.getDelayMs(mScheduler.elapsedRealtime());
+            if (delayMs > 0) {
+                mScanStarts.onDeferred();
+                mScheduler.postDelayed(this, delayMs);
+                return;
             }
-        } else {
-            if (mIsScanning) {
-                Log.i(TAG, "Stopping BLE Scan");
-
-                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
-                    mBluetoothAdapter.stopLeScan((BluetoothAdapter.LeScanCallback) mScanCallback);
-                } else {
-                    mBluetoothAdapter.getBluetoothLeScanner().stopScan((ScanCallback) mScanCallback);
-                }
 
-                mIsScanning = false;
+            startLeScan();
+            mScheduler.postDelayed(mDiscoveryWindowEnd, mScanPolicy.scanWindowMs);
+        }
+    };
 
-                // Broadcast Update that the scan has stopped
+    private final Runnable mDiscoveryWindowEnd = new Runnable() {
+        @Override
+        public void run() {
+            // Let the UI know the first full pass is in
+            if (mDiscoveryFirstWindow) {
+                mDiscoveryFirstWindow = false;
                 broadcastUpdate(ACTION_SCAN_COMPLETE);
             }
+
+            if (mScanPolicy.isContinuous())
+                return;
+
+            long offMs = mScanPolicy.scanIntervalMs - mScanPolicy.scanWindowMs;
+            if (mScanStarts.getDelayMs(mScheduler.elapsedRealtime() + offMs) > 0) {
+                // The next window couldn't start on time. Stretch this one through the gap
+                //  instead of stopping.
+                mScheduler.postDelayed(mDiscoveryWindowEnd, mScanPolicy.scanIntervalMs);
+                return;
+            }
+
+            stopLeScan();
+            mScheduler.postDelayed(mDiscoveryWindowStart, offMs);
         }
-    }
+    };
 
+    private final Runnable mEvictStaleDevices = new Runnable() {
+        @Override
+        public void run() {
+            long now = mScheduler.elapsedRealtime();
+
+            Iterator<Map.Entry<String, Long>> entries = mDeviceLastSeen.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<String, Long> entry = entries.next();
+
+                // A connected device stops advertising, but it's certainly still around
+                if (entry.getKey().equals(getConnectedAddress())) {
+                    entry.setValue(now);
+                } else if (now - entry.getValue() > mScanPolicy.deviceTtlMs) {
+                    entries.remove();
+                    broadcastDeviceLostUpdate(entry.getKey());
+                }
+            }
 
-    //
-    // Connect to Device
-    //
-    private int mDeviceConnectionState = DEVICE_STATE_DISCONNECTED;
+            mScheduler.postDelayed(mEvictStaleDevices, mScanPolicy.deviceTtlMs / 4);
+        }
+    };
 
-    private static final int DEVICE_STATE_DISCONNECTED = 0;
-    private static final int DEVICE_STATE_CONNECTING = 1;
-    private static final int DEVICE_STATE_CONNECTED = 2;
+    private void broadcastDeviceLostUpdate(final String address) {
+        final Intent intent = new Intent(ACTION_DEVICE_LOST);
 
-    public final static String CONNECT_ERROR =
-            "com.thenextplateau.ubristlebot.connecting.CONNECT_ERROR";
+        intent.putExtra(SCAN_RESULT_DEVICE_ADDRESS, address);
 
-    public boolean isConnecting() {
-        return mDeviceConnectionState == DEVICE_STATE_CONNECTING;
-    }
-    public boolean isConnected() {
-        return mDeviceConnectionState == DEVICE_STATE_CONNECTED;
+        sendBroadcast(intent);
     }
 
-    public void connectTo(final String deviceAddress) {
-        if (deviceAddress == null) {
-            Log.e(TAG, "Failed to connect to device. Empty address string.");
-            return;
-        }
-        if (mBluetoothAdapter == null) {
-            Log.e(TAG, "Failed to connect to device. Bluetooth Adapter is uninitialized.");
-            return;
-        }
-        if (! BluetoothAdapter.checkBluetoothAddress(deviceAddress)) {
-            Log.e(TAG, "Failed to connect to device. Invalid address.");
+    // Start, or restart with a fresh scan window, continuous discovery.
+    //  Devices already listed stay listed until their TTL runs out. Unlike scanForBots(), this
+    //  doesn't disconnect.
+    public void startDiscovery(ScanPolicy policy) {
+        if (! mBluetoothAdapter.isEnabled()) {
+            broadcastUpdate(ACTION_BLUETOOTH_IS_DISABLED);
             return;
         }
 
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(deviceAddress);
+        // A live session is kept. It's only dropped if another device gets picked.
+        mScheduler.removeCallbacks(mScanTimeout);
+        stopDiscoveryCycle();
+        stopLeScan();
 
-        // Connect to device, disabling Auto Connect and any active scans
+        mScanPolicy = policy;
+        mDiscoveryFirstWindow = true;
+
+        mScheduler.post(mDiscoveryWindowStart);
+        mScheduler.postDelayed(mEvictStaleDevices, mScanPolicy.deviceTtlMs / 4);
+    }
+
+    public void stopDiscovery() {
         scanForBots(false);
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
+    }
 
-        Log.d(TAG, "Connecting to device.");
-        mDeviceConnectionState = DEVICE_STATE_CONNECTING;
+    public boolean isDiscovering() {
+        return mScanPolicy != null;
     }
 
-    // uBristleBot Service UUIDs
-    private static final UUID S_GENERAL_ACCESS = UUID.fromString("00001800-0000-1000-8000-00805f9b34fb");
-    private static final UUID S_BATTERY = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
-    private static final UUID S_RGB_LED = UUID.fromString("d5d62c0c-6f57-4ac0-bb97-2b694062756e");
-    private static final UUID S_MOTORS = UUID.fromString("b8578989-149c-4849-91f0-2852935b1a86");
-    private static final UUID S_SAVE_SETTNGS = UUID.fromString("29f0dcfe-bebe-4348-9631-5fbd8e7fcb79");
+    // Scan starts held back to stay within Android's limit
+    public long getDeferredScanStartCount() {
+        return mScanStarts.getDeferredCount();
+    }
 
-    private static List<UUID> uBristleBotServiceUUIDs = new ArrayList<>();
-    static {
-        uBristleBotServiceUUIDs.add(S_GENERAL_ACCESS);
-        uBristleBotServiceUUIDs.add(S_BATTERY);
-        uBristleBotServiceUUIDs.add(S_RGB_LED);
-        uBristleBotServiceUUIDs.add(S_MOTORS);
-        uBristleBotServiceUUIDs.add(S_SAVE_SETTNGS);
-    }
-    private boolean isuBristleBot(List<BluetoothGattService> discoveredServices) {
-        if (discoveredServices.size() != uBristleBotServiceUUIDs.size()) {
-            return false;
+    private void stopDiscoveryCycle() {
+        if (mScanPolicy != null) {
+            mScheduler.removeCallbacks(mDiscoveryWindowStart);
+            mScheduler.removeCallbacks(mDiscoveryWindowEnd);
+            mScheduler.removeCallbacks(mEvictStaleDevices);
+            mScanPolicy = null;
         }
+    }
 
-        for (int i=0; i< uBristleBotServiceUUIDs.size(); i++) {
-            if (! discoveredServices.get(i).getUuid()
-                    .equals(uBristleBotServiceUUIDs.get(i))) {
-                return false;
-            }
-        }
+    private void scanForDevices(boolean startScan) {
+        if (startScan) {
+            startLeScan();
+        } else if (mIsScanning) {
+            stopLeScan();
 
-        return true;
+            // Broadcast Update that the scan has stopped
+            broadcastUpdate(ACTION_SCAN_COMPLETE);
+        }
     }
 
-    public void disconnect() {
-        if (mBluetoothAdapter == null) {
-            Log.w(TAG, "Failed to disconnect device. Bluetooth Adapter is uninitialized.");
-            return;
+    private final Runnable mDeferredScanStart = new Runnable() {
+        @Override
+        public void run() {
+            startLeScan();
         }
-        if (mBluetoothGatt == null) {
-            Log.w(TAG, "Failed to disconnect device. Bluetooth connection was not formed.");
+    };
+
+    // Helper functions for API differences
+    @TargetApi(21)
+    @SuppressWarnings("deprecation")
+    private void startLeScan() {
+        if (mIsScanning)
+            return;
+
+        // Android ignores starts past its budget. Start late rather than not at all.
+        long now = mScheduler.elapsedRealtime();
+        long delayMs = mScanStarts.getDelayMs(now);
+        if (delayMs > 0) {
+            Log.i(TAG, "Scan start budget spent, starting in " + delayMs + " ms");
+            mScanStarts.onDeferred();
+            mScheduler.removeCallbacks(mDeferredScanStart);
+            mScheduler.postDelayed(mDeferredScanStart, delayMs);
             return;
         }
 
-        robotDeinit();
+        Log.i(TAG, "Starting BLE Scan");
 
-        mBluetoothGatt.disconnect();
-    }
+        mIsScanning = true;
+        mScanStarts.onStarted(now);
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            mBluetoothAdapter.startLeScan((BluetoothAdapter.LeScanCallback) mScanCallback);
+        } else {
+            int scanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+            if (mScanPolicy != null) {
+                if (mScanPolicy.scanMode == ScanPolicy.MODE_LOW_POWER) {
+                    scanMode = ScanSettings.SCAN_MODE_LOW_POWER;
+                } else if (mScanPolicy.scanMode == ScanPolicy.MODE_BALANCED) {
+                    scanMode = ScanSettings.SCAN_MODE_BALANCED;
+                }
+            }
+
+            ScanSettings settings = new ScanSettings.Builder().setScanMode(scanMode).build();
+            mBluetoothAdapter.getBluetoothLeScanner().startScan(
+                    null, settings, (ScanCallback) mScanCallback);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void stopLeScan() {
+        mScheduler.removeCallbacks(mDeferredScanStart);
+        if (! mIsScanning)
+            return;
+
+        Log.i(TAG, "Stopping BLE Scan");
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            mBluetoothAdapter.stopLeScan((BluetoothAdapter.LeScanCallback) mScanCallback);
+        } else {
+            mBluetoothAdapter.getBluetoothLeScanner().stopScan((ScanCallback) mScanCallback);
+        }
+
+        mIsScanning = false;
+    }
 
 
     //
-    // Initialize BLE Characteristics for the device
+    // Connect to Device
+    //
+    private int mDeviceConnectionState = DEVICE_STATE_DISCONNECTED;
+
+    // Values of the connection state stream
+    public static final int DEVICE_STATE_DISCONNECTED = 0;
+    public static final int DEVICE_STATE_CONNECTING = 1;
+    public static final int DEVICE_STATE_CONNECTED = 2;
+
+    private void setConnectionState(int state) {
+        mDeviceConnectionState = state;
+        mConnectionStateStream.publish(state);
+    }
+
+    public final static String CONNECT_ERROR =
+            "com.thenextplateau.ubristlebot.connecting.CONNECT_ERROR";
+
+    public final static String CONNECT_TIME_MS =
+            "com.thenextplateau.ubristlebot.connecting.CONNECT_TIME_MS";
+
+    // Connection setup timing, from connectTo(). -1 until reached.
+    private static long mConnectStartNanos;
+    private static long mTimeToDriveMs = -1;
+    private static long mTimeToFirstMotorCommandMs = -1;
+
+    // Time until the controls were unlocked
+    public long getTimeToDriveMs() {
+        return mTimeToDriveMs;
+    }
+    // Time until the first motor command left for the device
+    public long getTimeToFirstMotorCommandMs() {
+        return mTimeToFirstMotorCommandMs;
+    }
+
+    public boolean isConnecting() {
+        return mDeviceConnectionState == DEVICE_STATE_CONNECTING;
+    }
+    public boolean isConnected() {
+        return mDeviceConnectionState == DEVICE_STATE_CONNECTED;
+    }
+
+    public void connectTo(final String deviceAddress) {
+        // The user picked a device. That wins over any device we were guessing at.
+        if (mQuickConnecting) {
+            cancelQuickConnect();
+            if (mGattLink != null) {
+                closeGatt();
+            }
+        }
+
+        if (isConnected()) {
+            // Still connected to this one. Just hand the session back.
+            if (deviceAddress != null && deviceAddress.equals(getConnectedAddress())) {
+                scanForBots(false);
+                broadcastConnectedUpdate();
+                return;
+            }
+
+            // Drop the old session before starting a new one
+            robotDeinit();
+            closeGatt();
+            stopSession();
+        }
+
+        // Connect to device, disabling Auto Connect and any active scans
+        scanForBots(false);
+        connectToDevice(deviceAddress);
+    }
+
+    // Address of the device in session, or null
+    public String getConnectedAddress() {
+        if (! isConnected() || mGattLink == null)
+            return null;
+        return mGattLink.getAddress();
+    }
+
+    private void connectToDevice(final String deviceAddress) {
+        if (deviceAddress == null) {
+            Log.e(TAG, "Failed to connect to device. Empty address string.");
+            return;
+        }
+        if (mGattConnector == null) {
+            Log.e(TAG, "Failed to connect to device. Bluetooth Adapter is uninitialized.");
+            return;
+        }
+        if (! BluetoothAdapter.checkBluetoothAddress(deviceAddress)) {
+            Log.e(TAG, "Failed to connect to device. Invalid address.");
+            return;
+        }
+
+        mConnectStartNanos = mScheduler.elapsedRealtimeNanos();
+        mTimeToDriveMs = -1;
+        mTimeToFirstMotorCommandMs = -1;
+        mGattLink = mGattConnector.connect(deviceAddress, mGattCallback);
+
+        Log.d(TAG, "Connecting to device.");
+        setConnectionState(DEVICE_STATE_CONNECTING);
+    }
+
+    // Drop a link without waiting for the stack to call back
+    private void closeGatt() {
+        mGattLink.disconnect();
+        mGattLink.close();
+        mGattLink = null;
+        setConnectionState(DEVICE_STATE_DISCONNECTED);
+    }
+
+
     //
+    // Quick Connect
+    //
+    // Connect straight to the bots used last, while discovery keeps running, so a bot that's
+    //  around doesn't have to wait for a scan and a tap. Only one link can be forming at a time,
+    //  so the remembered devices are tried one after another, each with a short timeout.
+    //  Failures are silent, since the user never asked for them.
+    private static final String PREFERENCES = "uBristleBotService";
+    private static final String PREF_RECENT_DEVICES = "recent_devices";
+    private static final int MAX_RECENT_DEVICES = 3;
+    private static final long QUICK_CONNECT_TIMEOUT_MS = 3000;
+
+    private static boolean mQuickConnecting = false;
+    private static final List<String> mQuickConnectQueue = new ArrayList<>();
+
+    private final Runnable mQuickConnectTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (mQuickConnecting && ! isConnected()) {
+                Log.i(TAG, "Quick connect timed out");
+
+                if (mGattLink != null) {
+                    closeGatt();
+                }
+                quickConnectNext();
+            }
+        }
+    };
+
+    // Try the most recently used bots. Returns false if there's nothing to try.
+    public boolean quickConnect() {
+        if (mQuickConnecting || isConnecting() || isConnected())
+            return false;
+
+        mQuickConnectQueue.clear();
+        mQuickConnectQueue.addAll(getRecentDevices());
+        if (mQuickConnectQueue.isEmpty())
+            return false;
+
+        mQuickConnecting = true;
+        quickConnectNext();
+        return true;
+    }
+
+    public boolean isQuickConnecting() {
+        return mQuickConnecting;
+    }
+
+    public void cancelQuickConnect() {
+        mScheduler.removeCallbacks(mQuickConnectTimeout);
+        mQuickConnectQueue.clear();
+        mQuickConnecting = false;
+    }
+
+    private void quickConnectNext() {
+        mScheduler.removeCallbacks(mQuickConnectTimeout);
+
+        if (mQuickConnectQueue.isEmpty()) {
+            Log.i(TAG, "No remembered device could be reached");
+            cancelQuickConnect();
+            return;
+        }
+
+        String address = mQuickConnectQueue.remove(0);
+        Log.i(TAG, "Quick connecting to " + address);
+
+        connectToDevice(address);
+        mScheduler.postDelayed(mQuickConnectTimeout, QUICK_CONNECT_TIMEOUT_MS);
+    }
+
+    // Most recently connected first
+    public List<String> getRecentDevices() {
+        List<String> devices = new ArrayList<>();
+
+        String saved = getSharedPreferences(PREFERENCES, MODE_PRIVATE)
+                .getString(PREF_RECENT_DEVICES, "");
+        for (String address : saved.split(",")) {
+            if (BluetoothAdapter.checkBluetoothAddress(address)) {
+                devices.add(address);
+            }
+        }
+
+        return devices;
+    }
+
+    private void rememberDevice(String address) {
+        List<String> devices = getRecentDevices();
+        devices.remove(address);
+        devices.add(0, address);
+
+        StringBuilder saved = new StringBuilder();
+        for (int i = 0; i < Math.min(devices.size(), MAX_RECENT_DEVICES); i++) {
+            if (i > 0) {
+                saved.append(',');
+            }
+            saved.append(devices.get(i));
+        }
+
+        getSharedPreferences(PREFERENCES, MODE_PRIVATE).edit()
+                .putString(PREF_RECENT_DEVICES, saved.toString())
+                .apply();
+    }
+
+    // uBristleBot Service UUIDs
+    private static final UUID S_GENERAL_ACCESS = UUID.fromString("00001800-0000-1000-8000-00805f9b34fb");
+    private static final UUID S_BATTERY = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+    private static final UUID S_RGB_LED = UUID.fromString("d5d62c0c-6f57-4ac0-bb97-2b694062756e");
+    private static final UUID S_MOTORS = UUID.fromString("b8578989-149c-4849-91f0-2852935b1a86");
+    private static final UUID S_SAVE_SETTNGS = UUID.fromString("29f0dcfe-bebe-4348-9631-5fbd8e7fcb79");
+
+    // uBristleBot Characteristic UUIDs
     private static final UUID C_DEVICE_NAME = UUID.fromString("00002a00-0000-1000-8000-00805f9b34fb");
     private static final UUID C_BATTERY = UUID.fromString("00002a19-0000-1000-8000-00805f9b34fb");
     private static final UUID C_RGB_LEDS = UUID.fromString("05664686-5bf2-45a9-83c5-8a927cd2e20c");
     private static final UUID C_MOTORS = UUID.fromString("03957515-5976-41c3-982a-56cb6c4b4a38");
     private static final UUID C_SAVE_CHANGES = UUID.fromString("a0632df5-f8ad-401b-9f0f-80fd1f43edf3");
 
+    // Firmware layouts we know how to drive. Services can come in any order, and extra ones
+    //  are fine. Add newer layouts above older ones.
+    private static final FirmwareProfileRegistry mFirmwareProfiles = new FirmwareProfileRegistry()
+            .register(new FirmwareProfileRegistry.Profile("uBristleBot 1.0")
+                    .setRole(FirmwareProfileRegistry.ROLE_DEVICE_NAME, S_GENERAL_ACCESS, C_DEVICE_NAME)
+                    .setRole(FirmwareProfileRegistry.ROLE_BATTERY, S_BATTERY, C_BATTERY)
+                    .setRole(FirmwareProfileRegistry.ROLE_RGB_LEDS, S_RGB_LED, C_RGB_LEDS)
+                    .setRole(FirmwareProfileRegistry.ROLE_MOTORS, S_MOTORS, C_MOTORS)
+                    .setRole(FirmwareProfileRegistry.ROLE_SAVE, S_SAVE_SETTNGS, C_SAVE_CHANGES));
+
+    public void disconnect() {
+        if (mGattLink == null) {
+            Log.w(TAG, "Failed to disconnect device. Bluetooth connection was not formed.");
+            return;
+        }
+
+        robotDeinit();
+
+        mGattLink.disconnect();
+    }
+
+
+    //
+    // Initialize BLE Characteristics for the device
+    //
     // BLE Characteristics
     private static BluetoothGattCharacteristic cDeviceName = null;
     private static BluetoothGattCharacteristic cBattery = null;
@@ -566,64 +1282,185 @@ public class uBristleBotService extends Service {
 
     // uBristleBot info we care about
     private static String mDeviceName;
+    // -1 until known
+    private static int mBatteryPercent = -1;
     private byte[] mRGB;
 
-    public void initBLECharacteristics(List<BluetoothGattService> servicesDiscovered) {
+    // Settings as last read from the device, to tell what changed
+    private static byte[] mDeviceNameValue;
+
+    public void initBLECharacteristics(FirmwareProfileRegistry.Match match) {
         // Initialize all internal Characteristics
-        cDeviceName = servicesDiscovered.get(0).getCharacteristic(C_DEVICE_NAME);
+        cDeviceName = match.get(FirmwareProfileRegistry.ROLE_DEVICE_NAME);
 
-        cBattery = servicesDiscovered.get(1).getCharacteristic(C_BATTERY);
+        cBattery = match.get(FirmwareProfileRegistry.ROLE_BATTERY);
 
-        cLEDs = servicesDiscovered.get(2).getCharacteristic(C_RGB_LEDS);
+        cLEDs = match.get(FirmwareProfileRegistry.ROLE_RGB_LEDS);
 
-        cMotors = servicesDiscovered.get(3).getCharacteristic(C_MOTORS);
+        cMotors = match.get(FirmwareProfileRegistry.ROLE_MOTORS);
 
-        cSave = servicesDiscovered.get(4).getCharacteristic(C_SAVE_CHANGES);
+        cSave = match.get(FirmwareProfileRegistry.ROLE_SAVE);
 
 
-        // Setup Read Queue
+        // Setup Read Queue, in the order the UI wants them.
+        //  These are read in the background, whenever the motors leave the link idle.
         characteristicReadList = new ArrayList<>();
         characteristicReadList.add(cDeviceName);
         characteristicReadList.add(cBattery);
         characteristicReadList.add(cLEDs);
 
+        // Battery notifications get enabled once everything is read
+        mBatteryNotificationPending = true;
+        mBackgroundOpInFlight = false;
+
         // Setup Write Queue
         characteristicWriteList = new ArrayList<>();
+    }
+
+    //
+    // Background GATT operations
+    //
+    // Reading device info and enabling notifications can wait. Only one GATT operation can be
+    //  in flight at a time, so these only go out when no motor frame or settings are waiting.
+    private static boolean mBackgroundOpInFlight;
+    private static boolean mBatteryNotificationPending;
+
+    private static final UUID CCCD = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private static boolean issueBackgroundOp() {
+        if (mGattLink == null || mBackgroundOpInFlight || mMotorChanged ||
+                ! characteristicWriteList.isEmpty() || mSettingsTransaction != null) {
+            return false;
+        }
+
+        if (! characteristicReadList.isEmpty()) {
+            mBackgroundOpInFlight = true;
+            mWatchdog.onIssued(GattOperationWatchdog.OP_READ);
+            mGattLink.readCharacteristic(characteristicReadList.get(0));
+            return true;
+        }
+
+        if (mBatteryNotificationPending) {
+            mBatteryNotificationPending = false;
+
+            // Enable Battery Notification
+            mGattLink.setCharacteristicNotification(cBattery, true);
 
-        // Start reading Characteristics from Server
-        mBluetoothGatt.readCharacteristic(characteristicReadList.get(0));
+            // Reference for magic numbers:
+            //  https://developer.bluetooth.org/gatt/descriptors/Pages/DescriptorViewer.aspx?
+            //  u=org.bluetooth.descriptor.gatt.client_characteristic_configuration.xml
+            BluetoothGattDescriptor descriptor = cBattery.getDescriptor(CCCD);
+
+            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+            mBackgroundOpInFlight = true;
+            mWatchdog.onIssued(GattOperationWatchdog.OP_DESCRIPTOR_WRITE);
+            mGattLink.writeDescriptor(descriptor);
+            return true;
+        }
+
+        if (isMotorReadBackDue()) {
+            mLastMotorReadBackMs = mScheduler.elapsedRealtime();
+            mMotorReadBackInFlight = true;
+            mBackgroundOpInFlight = true;
+            mWatchdog.onIssued(GattOperationWatchdog.OP_READ);
+            mGattLink.readCharacteristic(cMotors);
+            return true;
+        }
+
+        return false;
+    }
+
+    // Nothing is in flight. Hand the link to whatever is most important.
+    private static void onGattIdle() {
+        if (mSettingsTransaction != null) {
+            if (! characteristicWriteList.isEmpty()) {
+                // The motors are parked before settings are saved
+                writeCharacteristic(characteristicWriteList.get(0));
+            } else if (! mSettingsTransaction.isStarted()) {
+                // Settings were waiting on the link
+                mSettingsTransaction.start();
+            }
+        } else if (mMotorChanged && (mMotorTickMissed || mMotorCommandForced) &&
+                mMotorScheduler != null && mMotorScheduler.isRunning()) {
+            // A tick already came and went while the link was busy, don't make the command sit
+            //  out the next one too. Otherwise the scheduled tick sends it, at the send rate.
+            updateMotorCharacteristics.run();
+        } else {
+            issueBackgroundOp();
+        }
     }
 
     //
     // uBristleBot
     //
     private static boolean mMotorChanged;
+    // The pending command must be sent as is, without filtering. Set for motion program steps.
+    private static boolean mMotorCommandForced;
+    // A tick had a command to send, but the link was busy
+    private static boolean mMotorTickMissed;
+    // When mMotorChanged was last set
+    private static long mMotorChangedAtMs;
+    // Whether the last motor frame the bot acknowledged was a stop
+    private static boolean mLastAckedMotorFrameZero;
     private static int mLeftMotorPercent;
     private static int mRightMotorPercent;
-    private static Handler mMotorUpdateHandler;
+    private static PeriodicScheduler mMotorScheduler;
     private static Runnable updateMotorCharacteristics = new Runnable() {
         @Override
         public void run() {
+            if (isIdleDue()) {
+                enterIdle();
+                return;
+            }
+
             // Only write new values once the queue is empty
-            if (characteristicWriteList.isEmpty()) {
+            mMotorTickMissed = mMotorChanged &&
+                    (mBackgroundOpInFlight || ! characteristicWriteList.isEmpty());
+            if (mBackgroundOpInFlight) {
+                // Wait for it, we'll be called as soon as it's done
+            } else if (characteristicWriteList.isEmpty()) {
                 if (mMotorChanged) {
-                    Log.i(TAG, "Left Motor to:   " + String.valueOf(mLeftMotorPercent) + "%");
-                    Log.i(TAG, " Right Motor to: " + String.valueOf(mRightMotorPercent) + "%");
+                    if (LOG_MOTOR_PATH) {
+                        Log.i(TAG, "Left Motor to:   " + String.valueOf(mLeftMotorPercent) + "%");
+                        Log.i(TAG, " Right Motor to: " + String.valueOf(mRightMotorPercent) + "%");
+                    }
                     mMotorChanged = false;
 
-                    byte[] values = new byte[2];
-                    values[0] = (byte) (mLeftMotorPercent * 255 / 100);
-                    values[1] = (byte) (mRightMotorPercent * 255 / 100);
+                    // Skip commands the motors can't tell apart from the last one
+                    byte[] frame = mMotorCommandForced ? forceMotorCommand() : filterMotorCommand();
+                    if (frame != null) {
+                        cMotors.setValue(frame);
+
+                        characteristicWriteList.add(cMotors);
+                    }
+                } else if (mMotorFilter.isHoldingBack()) {
+                    // The controls came to rest inside the deadband. Send where they stopped.
+                    byte[] frame = settleMotorCommand();
+                    if (frame != null) {
+                        cMotors.setValue(frame);
+
+                        characteristicWriteList.add(cMotors);
+                    }
+                }
 
-                    cMotors.setValue(values);
+                // Use idle link time for the latest LED preview, never ahead of the motors
+                if (characteristicWriteList.isEmpty() && ! mMotorChanged && isColorPreviewDue()) {
+                    mColorPreviewPending = false;
+                    mLastColorPreviewMs = mScheduler.elapsedRealtime();
 
-                    characteristicWriteList.add(cMotors);
+                    cLEDs.setValue(mColorPreview);
+                    characteristicWriteList.add(cLEDs);
                 }
 
                 // Write a characteristic as long as either changed
                 if (! characteristicWriteList.isEmpty()) {
-                    Log.i(TAG, "Writing BLE Characteristic");
-                    mBluetoothGatt.writeCharacteristic(characteristicWriteList.get(0));
+                    if (LOG_MOTOR_PATH) {
+                        Log.i(TAG, "Writing BLE Characteristic");
+                    }
+                    writeCharacteristic(characteristicWriteList.get(0));
+                } else {
+                    // Nothing to drive, catch up on loading the device info
+                    issueBackgroundOp();
                 }
             } else if (mMotorChanged && mLeftMotorPercent == 0 && mRightMotorPercent == 0) {
                 // A special condition can occur in the UI if messages are backed up
@@ -636,29 +1473,101 @@ public class uBristleBotService extends Service {
                 }
 
                 // Setup new commands
-                Log.i(TAG, "Special condition found. Zeroing Left Motor");
+                if (LOG_MOTOR_PATH) {
+                    Log.i(TAG, "Special condition found. Zeroing Left Motor");
+                }
                 mMotorChanged = false;
+                mMotorCommandForced = false;
 
-                byte[] values = new byte[2];
-                values[0] = 0;
-                values[1] = 0;
-                cMotors.setValue(values);
+                mMotorFilter.forcePassed(0, 0);
+                cMotors.setValue(MOTOR_FRAME_ZERO);
 
                 characteristicWriteList.add(cMotors);
             }
 
-            // Do it again!
-            mMotorUpdateHandler.postDelayed(updateMotorCharacteristics, 200);
+            // Do it again, as soon as the link allows
+            mMotorScheduler.setPeriodMs(mMotorSendRate.getIntervalMs());
         }
     };
-    private static Handler mRSSIUpdateHandler;
+    private static final MotorSendRateController mMotorSendRate = new MotorSendRateController();
+    private static final MotorCommandFilter mMotorFilter = new MotorCommandFilter();
+    // Command carried by the motor write in flight
+    private static int mSentMotorLeft;
+    private static int mSentMotorRight;
+
+    // A motor write was lost. The filter still compares against what the bot last acknowledged,
+    //  so have the next tick send the latest command again.
+    private static void resendMotorCommand() {
+        if (! mMotorChanged) {
+            mMotorChangedAtMs = mScheduler.elapsedRealtime();
+        }
+        mMotorChanged = true;
+    }
+
+    // Motor commands are sent several times a second while driving, so the path from
+    //  setLeftMotor()/setRightMotor() to the characteristic write must not allocate.
+    //  MotorPathAllocationTest checks this. Flip this on to trace it, at the cost of a few
+    //  Strings per frame.
+    private static final boolean LOG_MOTOR_PATH = false;
+
+    // Percent (0-100) to motor byte (0-255)
+    private static final byte[] MOTOR_PERCENT_TO_BYTE = new byte[101];
+    static {
+        for (int i = 0; i < MOTOR_PERCENT_TO_BYTE.length; i++) {
+            MOTOR_PERCENT_TO_BYTE[i] = (byte) (i * 255 / 100);
+        }
+    }
+
+    // Frame buffers handed to cMotors. The zero frame is never modified, so a failed write
+    //  can always tell if it was carrying a stop command.
+    private static final byte[] MOTOR_FRAME_ZERO = new byte[2];
+    private static final byte[] mMotorFrame = new byte[2];
+
+    // The frame for the latest motor command, or null if the motors couldn't tell it apart
+    //  from the last one
+    static byte[] filterMotorCommand() {
+        if (! mMotorFilter.filter(mLeftMotorPercent, mRightMotorPercent))
+            return null;
+
+        return packMotorFrame(mMotorFilter.getLeft(), mMotorFilter.getRight());
+    }
+
+    // The frame for a command that skips the filter
+    private static byte[] forceMotorCommand() {
+        mMotorCommandForced = false;
+        mMotorFilter.forcePassed(mLeftMotorPercent, mRightMotorPercent);
+        return packMotorFrame(mLeftMotorPercent, mRightMotorPercent);
+    }
+
+    // The frame for a command the filter held back, now the controls have stopped moving, or
+    //  null if the bot already has it
+    static byte[] settleMotorCommand() {
+        if (! mMotorFilter.settle(mLeftMotorPercent, mRightMotorPercent))
+            return null;
+
+        return packMotorFrame(mMotorFilter.getLeft(), mMotorFilter.getRight());
+    }
+
+    private static byte[] packMotorFrame(int leftPercent, int rightPercent) {
+        if (leftPercent == 0 && rightPercent == 0) {
+            return MOTOR_FRAME_ZERO;
+        }
+
+        mMotorFrame[0] = MOTOR_PERCENT_TO_BYTE[leftPercent];
+        mMotorFrame[1] = MOTOR_PERCENT_TO_BYTE[rightPercent];
+        return mMotorFrame;
+    }
+
+    private static final long RSSI_UPDATE_PERIOD_MS = 1000;
+
+    private static PeriodicScheduler mRSSIScheduler;
     private static Runnable updateRSSI = new Runnable() {
         @Override
         public void run() {
-            if (mBluetoothGatt != null) {
-                mBluetoothGatt.readRemoteRssi();
-
-                mRSSIUpdateHandler.postDelayed(updateRSSI, 1000);
+            if (mGattLink != null) {
+                mGattLink.readRemoteRssi();
+            } else {
+                mRSSIScheduler.stop();
             }
         }
     };
@@ -672,78 +1581,547 @@ public class uBristleBotService extends Service {
     public final static String DEVICE_BATTERY =
             "com.thenextplateau.ubristlebot.DEVICE_BATTERY";
 
-    private void robotInit() {
-        mMotorChanged = false;
-        mLeftMotorPercent = 0;
-        mRightMotorPercent = 0;
+    // Issue a write, keeping track of when motor writes leave so their ack can be timed
+    private static void writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+        if (characteristic == cMotors) {
+            mMotorWriteStartNanos = mScheduler.elapsedRealtimeNanos();
 
-        mDeviceName = "";
-        mRGB = new byte[3];
-        mRGB[0] = mRGB[1] = mRGB[2] = (byte) 255;
+            // The filter's command is the one in this frame, until the bot acks it
+            mSentMotorLeft = mMotorFilter.getLeft();
+            mSentMotorRight = mMotorFilter.getRight();
+
+            byte[] frame = characteristic.getValue();
+            mMotorDelivery.onCommandSent(frame[0], frame[1], mMotorWriteStartNanos / 1000000);
 
-        mMotorUpdateHandler = new Handler(Looper.getMainLooper());
-        mMotorUpdateHandler.postDelayed(updateMotorCharacteristics, 200);
+            if (mTimeToFirstMotorCommandMs < 0) {
+                mTimeToFirstMotorCommandMs = (mMotorWriteStartNanos - mConnectStartNanos) / 1000000;
+                Log.i(TAG, "First motor command after " + mTimeToFirstMotorCommandMs + " ms");
+            }
+        }
 
-        mRSSIUpdateHandler = new Handler(Looper.getMainLooper());
-        mRSSIUpdateHandler.postDelayed(updateRSSI, 1000);
+        mInFlightWrite = characteristic;
+        mWatchdog.onIssued(GattOperationWatchdog.OP_WRITE);
+        mGattLink.writeCharacteristic(characteristic);
     }
 
-    private void robotDeinit() {
-        if (mMotorUpdateHandler != null) {
-            mMotorUpdateHandler.removeCallbacksAndMessages(null);
+
+    //
+    // GATT operation watchdog
+    //
+    private static BluetoothGattCharacteristic mInFlightWrite;
+    private static String mReconnectAddress;
+
+    private final GattOperationWatchdog.Recovery mRecovery = new GattOperationWatchdog.Recovery() {
+        @Override
+        public void retry(int op) {
+            if (mGattLink == null)
+                return;
+
+            switch (op) {
+                case GattOperationWatchdog.OP_READ:
+                    mWatchdog.onIssued(op);
+                    mGattLink.readCharacteristic(mMotorReadBackInFlight ?
+                            cMotors : characteristicReadList.get(0));
+                    break;
+                case GattOperationWatchdog.OP_WRITE:
+                    writeCharacteristic(mInFlightWrite);
+                    break;
+                case GattOperationWatchdog.OP_DESCRIPTOR_WRITE:
+                    mWatchdog.onIssued(op);
+                    mGattLink.writeDescriptor(cBattery.getDescriptor(CCCD));
+                    break;
+                case GattOperationWatchdog.OP_EXECUTE_RELIABLE_WRITE:
+                    mWatchdog.onIssued(op);
+                    mGattLink.executeReliableWrite();
+                    break;
+            }
         }
-        mMotorUpdateHandler = new Handler(Looper.getMainLooper());
 
-        if (mRSSIUpdateHandler != null) {
-            mRSSIUpdateHandler.removeCallbacksAndMessages(null);
+        @Override
+        public void cancel(int op) {
+            if (mGattLink == null)
+                return;
+
+            switch (op) {
+                case GattOperationWatchdog.OP_READ:
+                    if (mMotorReadBackInFlight) {
+                        // Skip this sample
+                        mMotorReadBackInFlight = false;
+                    } else {
+                        // Do without that piece of device info
+                        Log.w(TAG, "Giving up on reading " + characteristicReadList.get(0).getUuid());
+                        characteristicReadList.remove(0);
+                    }
+                    mBackgroundOpInFlight = false;
+                    onGattIdle();
+                    break;
+                case GattOperationWatchdog.OP_WRITE:
+                    if (mSettingsTransaction != null && mSettingsTransaction.isStarted()) {
+                        // Let the transaction decide what a lost write means
+                        mSettingsTransaction.onCharacteristicWrite(mInFlightWrite, BluetoothGatt.GATT_FAILURE);
+                    } else if (! characteristicWriteList.isEmpty()) {
+                        if (mInFlightWrite == cMotors) {
+                            resendMotorCommand();
+                        }
+                        characteristicWriteList.remove(0);
+                        if (characteristicWriteList.isEmpty()) {
+                            onGattIdle();
+                        } else {
+                            writeCharacteristic(characteristicWriteList.get(0));
+                        }
+                    }
+                    break;
+                case GattOperationWatchdog.OP_DESCRIPTOR_WRITE:
+                    Log.w(TAG, "Giving up on battery notifications");
+                    mBackgroundOpInFlight = false;
+                    onGattIdle();
+                    break;
+                case GattOperationWatchdog.OP_EXECUTE_RELIABLE_WRITE:
+                    if (mSettingsTransaction != null) {
+                        mSettingsTransaction.onReliableWriteCompleted(BluetoothGatt.GATT_FAILURE);
+                    }
+                    break;
+            }
         }
-        mRSSIUpdateHandler = new Handler(Looper.getMainLooper());
 
-        mRGB = new byte[3];
-        mRGB[0] = mRGB[1] = mRGB[2] = (byte) 255;
-        mDeviceName = "";
+        @Override
+        public void refresh() {
+            if (mGattLink == null)
+                return;
 
-        mMotorChanged = false;
-        mLeftMotorPercent = 0;
-        mRightMotorPercent = 0;
-    }
+            if (mGattLink.refresh()) {
+                Log.w(TAG, "Refreshed GATT link");
+            }
+        }
 
-    public void setName(String name) {
-        if (! name.equals(mDeviceName)) {
-            mDeviceName = name;
+        @Override
+        public void reconnect() {
+            if (mGattLink == null)
+                return;
 
-            // Update characteristic
-            cDeviceName.setValue(mDeviceName.getBytes());
+            Log.w(TAG, "Link is stuck. Reconnecting.");
+            mReconnectAddress = mGattLink.getAddress();
+            disconnect();
         }
+    };
+
+    // Created by onCreate()
+    private static GattOperationWatchdog mWatchdog;
+
+    public long getGattTimeoutCount() {
+        return mWatchdog.getTimeoutCount();
     }
-    public String getName() {
-        if (mDeviceName == null)
-            return "";
-        return mDeviceName.trim();
+    public long getGattRetryCount() {
+        return mWatchdog.getRetryCount();
+    }
+    public long getGattCancelCount() {
+        return mWatchdog.getCancelCount();
+    }
+    public long getGattRefreshCount() {
+        return mWatchdog.getRefreshCount();
+    }
+    public long getGattReconnectCount() {
+        return mWatchdog.getReconnectCount();
     }
 
-    public void setColor(int r, int g, int b) {
-        // Update characteristics
-        byte[] values = new byte[3];
-        values[2] = (byte) (r & 0xFF);
-        values[1] = (byte) (g & 0xFF);
-        values[0] = (byte) (b & 0xFF);
-        cLEDs.setValue(values);
+    // What PipelineSoakTest holds the pipelines to
+    int getWriteQueueSize() {
+        return characteristicWriteList == null ? 0 : characteristicWriteList.size();
     }
-    public int[] getColor() {
-        return new int[]{ mRGB[0] & 0xFF, mRGB[1] & 0xFF, mRGB[2] & 0xFF };
+    int getGattAttempts() {
+        return mWatchdog.getAttempts();
+    }
+    // How long the latest motor command has been waiting to go out, 0 if it went
+    long getPendingMotorAgeMs() {
+        if (! mMotorChanged || mMotorScheduler == null || ! mMotorScheduler.isRunning())
+            return 0;
+        return mScheduler.elapsedRealtime() - mMotorChangedAtMs;
+    }
+    boolean isLastAckedMotorFrameZero() {
+        return mLastAckedMotorFrameZero;
     }
 
-    public void setLeftMotor(int percent) {
-        if (percent < 0 || percent > 100)
-            return;
 
-        // Change the scale from 0-100 to 25-100
-        if (percent != 0)
+    //
+    // Link Quality
+    //
+    public final static String ACTION_DEVICE_LINK_WARNING =
+            "com.thenextplateau.ubristlebot.ACTION_DEVICE_LINK_WARNING";
+    public final static String DEVICE_LINK_QUALITY =
+            "com.thenextplateau.ubristlebot.DEVICE_LINK_QUALITY";
+    public final static String DEVICE_LINK_TREND =
+            "com.thenextplateau.ubristlebot.DEVICE_LINK_TREND";
+    public final static String DEVICE_LINK_WARNING =
+            "com.thenextplateau.ubristlebot.DEVICE_LINK_WARNING";
+
+    // Warn when the score drops below this while falling, clear once it recovers above the other
+    private static final int LINK_WARNING_SCORE = 45;
+    private static final int LINK_WARNING_CLEAR_SCORE = 60;
+
+    private static final LinkQualityEstimator mLinkQuality = new LinkQualityEstimator();
+    private static long mMotorWriteStartNanos;
+    private static boolean mLinkWarning;
+
+    private void updateLinkWarning() {
+        int score = mLinkQuality.getScore();
+
+        if (! mLinkWarning && score < LINK_WARNING_SCORE &&
+                mLinkQuality.getTrendDirection() == LinkQualityEstimator.TREND_FALLING) {
+            mLinkWarning = true;
+            Log.w(TAG, "Link quality degrading: " + score);
+            broadcastLinkWarningUpdate(true);
+        } else if (mLinkWarning && score > LINK_WARNING_CLEAR_SCORE) {
+            mLinkWarning = false;
+            Log.i(TAG, "Link quality recovered: " + score);
+            broadcastLinkWarningUpdate(false);
+        }
+    }
+
+    // Link quality from 0 (unusable) to 100 (perfect)
+    public int getLinkQuality() {
+        return mLinkQuality.getScore();
+    }
+    // One of LinkQualityEstimator.TREND_*
+    public int getLinkQualityTrend() {
+        return mLinkQuality.getTrendDirection();
+    }
+    public int getSmoothedRssi() {
+        return mLinkQuality.getSmoothedRssi();
+    }
+    public boolean hasRssi() {
+        return mLinkQuality.hasRssi();
+    }
+    public LinkQualityEstimator getLinkQualityEstimator() {
+        return mLinkQuality;
+    }
+
+
+    //
+    // Motor send rate
+    //
+    public void setMotorSendRateLimits(float floorHz, float ceilingHz) {
+        mMotorSendRate.setLimits(floorHz, ceilingHz);
+    }
+    public void setMotorTargetLatency(long targetLatencyMs) {
+        mMotorSendRate.setTargetLatencyMs(targetLatencyMs);
+    }
+    public float getMotorSendRate() {
+        return mMotorSendRate.getRateHz();
+    }
+    // Rates (Hz) and the elapsedRealtime (ms) they were set at, oldest first
+    public float[] getMotorSendRateHistory() {
+        return mMotorSendRate.getRateHistory();
+    }
+    public long[] getMotorSendRateHistoryTimes() {
+        return mMotorSendRate.getRateHistoryTimes();
+    }
+
+
+    //
+    // Motor command filter
+    //
+    public void setMotorCommandFilter(int deadbandPercent, int resolutionPercent) {
+        mMotorFilter.configure(deadbandPercent, resolutionPercent);
+    }
+    public long getMotorWritesSent() {
+        return mMotorFilter.getPassedCount();
+    }
+    public long getMotorWritesSaved() {
+        return mMotorFilter.getSuppressedCount();
+    }
+
+
+    //
+    // Session telemetry
+    //
+    // A summary of every session is kept on disk, so trends show up across many sessions.
+    //  The file is only touched on the storage thread.
+    private static final SessionTelemetryStore.Recorder mSessionRecorder =
+            new SessionTelemetryStore.Recorder();
+    private static SessionTelemetryStore mSessionTelemetry;
+
+    // Files are read and written here, off the main thread
+    private static Handler mStorageHandler;
+
+    // Queries read the file. Don't call them on the main thread.
+    public SessionTelemetryStore getSessionTelemetry() {
+        return mSessionTelemetry;
+    }
+
+    private static void endSessionTelemetry() {
+        if (! mSessionRecorder.isActive())
+            return;
+
+        mSessionRecorder.setConnectTimings(mTimeToDriveMs, mTimeToFirstMotorCommandMs);
+        mSessionRecorder.setMotorDelivery(mMotorDelivery.getSampleCount(),
+                mMotorDelivery.getStaleCount(), mMotorDelivery.getStaleAfterAckCount(),
+                mMotorDelivery.getMaxStalenessMs(), mMotorDelivery.getMeanStalenessMs());
+        final SessionTelemetryStore.SessionRecord record =
+                mSessionRecorder.finish(mScheduler.elapsedRealtime());
+
+        mStorageHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mSessionTelemetry.append(record);
+            }
+        });
+    }
+
+
+    //
+    // Bot inventory
+    //
+    // What we last knew about every bot we've connected to, so the scan list can show them
+    //  before they're heard from. Battery and RSSI change all the time, so they're only kept in
+    //  memory until the bot connects, disconnects or is renamed. The save follows a little later.
+    public final static String ACTION_KNOWN_BOTS_LOADED =
+            "com.thenextplateau.ubristlebot.ACTION_KNOWN_BOTS_LOADED";
+
+    private static final long INVENTORY_SAVE_DELAY_MS = 2000;
+
+    private static BotInventoryStore mBotInventory;
+    private static volatile boolean mInventorySavePending = false;
+
+    private static final Runnable mSaveInventory = new Runnable() {
+        @Override
+        public void run() {
+            mInventorySavePending = false;
+            mBotInventory.save();
+        }
+    };
+
+    // Most recently connected first
+    public List<BotInventoryStore.Bot> getKnownBots() {
+        return mBotInventory.getAll();
+    }
+    public boolean isKnownBot(String address) {
+        return mBotInventory.contains(address);
+    }
+
+    private static void scheduleInventorySave() {
+        if (! mInventorySavePending) {
+            mInventorySavePending = true;
+            mStorageHandler.postDelayed(mSaveInventory, INVENTORY_SAVE_DELAY_MS);
+        }
+    }
+
+
+    //
+    // Motor delivery verification
+    //
+    // Off by default. When on, the motor characteristic is read back every so often while the
+    //  link is idle, to measure how many commands actually took effect.
+    private static final long MOTOR_VERIFY_PERIOD_MS = 500;
+
+    private static final MotorDeliveryVerifier mMotorDelivery = new MotorDeliveryVerifier();
+    private static boolean mMotorVerifyEnabled = false;
+    private static long mMotorVerifyPeriodMs = MOTOR_VERIFY_PERIOD_MS;
+    private static long mLastMotorReadBackMs;
+    private static boolean mMotorReadBackInFlight;
+
+    public void setMotorDeliveryVerification(boolean enabled) {
+        setMotorDeliveryVerification(enabled, MOTOR_VERIFY_PERIOD_MS);
+    }
+    public void setMotorDeliveryVerification(boolean enabled, long periodMs) {
+        mMotorVerifyEnabled = enabled;
+        mMotorVerifyPeriodMs = periodMs;
+    }
+    public boolean isMotorDeliveryVerificationEnabled() {
+        return mMotorVerifyEnabled;
+    }
+    public MotorDeliveryVerifier getMotorDelivery() {
+        return mMotorDelivery;
+    }
+
+    private static boolean isMotorReadBackDue() {
+        return mMotorVerifyEnabled &&
+                (cMotors.getProperties() & BluetoothGattCharacteristic.PROPERTY_READ) != 0 &&
+                mScheduler.elapsedRealtime() - mLastMotorReadBackMs >= mMotorVerifyPeriodMs;
+    }
+
+
+    //
+    // Control tick timing
+    //
+    // Null until the first connection
+    public PeriodicScheduler getMotorTickScheduler() {
+        return mMotorScheduler;
+    }
+    public PeriodicScheduler getRSSITickScheduler() {
+        return mRSSIScheduler;
+    }
+
+    private void robotInit() {
+        mMotorChanged = false;
+        mMotorCommandForced = false;
+        mMotorTickMissed = false;
+        mLeftMotorPercent = 0;
+        mRightMotorPercent = 0;
+        mLastAckedMotorFrameZero = true;
+
+        mIdle = false;
+        mWakeStartNanos = 0;
+        mLastMotorActivityMs = mScheduler.elapsedRealtime();
+
+        mDeviceName = "";
+        mDeviceNameValue = null;
+        mBatteryPercent = -1;
+        mRGB = new byte[3];
+        mRGB[0] = mRGB[1] = mRGB[2] = (byte) 255;
+
+        mLinkQuality.reset();
+        mLinkWarning = false;
+
+        mMotorSendRate.reset(mScheduler.elapsedRealtime());
+        mMotorFilter.reset();
+        mSentMotorLeft = mSentMotorRight = 0;
+        mMotorDelivery.reset();
+        mMotorReadBackInFlight = false;
+
+        mColorPreviewPending = false;
+        mColorPreviewActive = false;
+
+        if (mMotorScheduler == null) {
+            mMotorScheduler = new PeriodicScheduler(mScheduler, updateMotorCharacteristics,
+                    mMotorSendRate.getIntervalMs(), "updateMotorCharacteristics");
+        }
+        mMotorScheduler.setPeriodMs(mMotorSendRate.getIntervalMs());
+        mMotorScheduler.resetStats();
+        mMotorScheduler.start(mMotorSendRate.getIntervalMs());
+
+        if (mRSSIScheduler == null) {
+            mRSSIScheduler = new PeriodicScheduler(mScheduler,
+                    updateRSSI, RSSI_UPDATE_PERIOD_MS, "updateRSSI");
+        }
+        mRSSIScheduler.resetStats();
+        mRSSIScheduler.start(RSSI_UPDATE_PERIOD_MS);
+    }
+
+    private void robotDeinit() {
+        endSessionTelemetry();
+        scheduleInventorySave();
+
+        mIdle = false;
+        mWakeStartNanos = 0;
+
+        mWatchdog.clear();
+        mInFlightWrite = null;
+        if (mSettingsTransaction != null) {
+            mSettingsTransaction.cancel();
+            mSettingsTransaction = null;
+        }
+        mBackgroundOpInFlight = false;
+        mMotorReadBackInFlight = false;
+        mBatteryNotificationPending = false;
+
+        if (mMotionProgramExecutor != null) {
+            mMotionProgramExecutor.stop();
+        }
+
+        if (mMotorScheduler != null) {
+            mMotorScheduler.stop();
+        }
+
+        if (mRSSIScheduler != null) {
+            mRSSIScheduler.stop();
+        }
+
+        mDeviceNameValue = null;
+        mRGB = new byte[3];
+        mRGB[0] = mRGB[1] = mRGB[2] = (byte) 255;
+        mDeviceName = "";
+
+        mMotorChanged = false;
+        mMotorCommandForced = false;
+        mMotorTickMissed = false;
+        mLeftMotorPercent = 0;
+        mRightMotorPercent = 0;
+    }
+
+    public void setName(String name) {
+        if (! name.equals(mDeviceName)) {
+            mDeviceName = name;
+
+            // Update characteristic
+            cDeviceName.setValue(mDeviceName.getBytes());
+        }
+    }
+    // -1 until known
+    public int getBatteryPercent() {
+        return mBatteryPercent;
+    }
+
+    public String getName() {
+        if (mDeviceName == null)
+            return "";
+        return mDeviceName.trim();
+    }
+
+    public void setColor(int r, int g, int b) {
+        // Update characteristics
+        byte[] values = new byte[3];
+        values[2] = (byte) (r & 0xFF);
+        values[1] = (byte) (g & 0xFF);
+        values[0] = (byte) (b & 0xFF);
+        cLEDs.setValue(values);
+    }
+    public int[] getColor() {
+        return new int[]{ mRGB[0] & 0xFF, mRGB[1] & 0xFF, mRGB[2] & 0xFF };
+    }
+
+    // Live LED preview. Only the latest color is kept, and it's written at most every
+    //  COLOR_PREVIEW_INTERVAL_MS when the link isn't busy with motor frames.
+    //  Nothing is persisted until saveSettingsAndDisconnect().
+    private static final long COLOR_PREVIEW_INTERVAL_MS = 100;
+
+    private static final byte[] mColorPreview = new byte[3];
+    private static boolean mColorPreviewPending;
+    private static boolean mColorPreviewActive;
+    private static long mLastColorPreviewMs;
+
+    private static boolean isColorPreviewDue() {
+        return mColorPreviewPending &&
+                mScheduler.elapsedRealtime() - mLastColorPreviewMs >= COLOR_PREVIEW_INTERVAL_MS;
+    }
+
+    public void setColorPreview(int r, int g, int b) {
+        mColorPreview[2] = (byte) (r & 0xFF);
+        mColorPreview[1] = (byte) (g & 0xFF);
+        mColorPreview[0] = (byte) (b & 0xFF);
+        mColorPreviewPending = true;
+        mColorPreviewActive = true;
+    }
+
+    // Go back to the color saved on the device
+    public void cancelColorPreview() {
+        if (! mColorPreviewActive)
+            return;
+
+        System.arraycopy(mRGB, 0, mColorPreview, 0, mColorPreview.length);
+        mColorPreviewPending = true;
+        mColorPreviewActive = false;
+    }
+
+    public void setLeftMotor(int percent) {
+        if (percent < 0 || percent > 100)
+            return;
+
+        // Change the scale from 0-100 to 25-100
+        if (percent != 0)
             percent = percent * 3 / 4 + 25;
 
         mLeftMotorPercent = percent;
+        if (! mMotorChanged) {
+            mMotorChangedAtMs = mScheduler.elapsedRealtime();
+        }
         mMotorChanged = true;
+
+        if (percent != 0) {
+            mLastMotorActivityMs = mScheduler.elapsedRealtime();
+            if (mIdle) {
+                wakeFromIdle(true);
+            }
+        }
     }
     public void setRightMotor(int percent) {
         if (percent < 0 || percent > 100)
@@ -754,33 +2132,514 @@ public class uBristleBotService extends Service {
             percent = percent * 3 / 4 + 25;
 
         mRightMotorPercent = percent;
+        if (! mMotorChanged) {
+            mMotorChangedAtMs = mScheduler.elapsedRealtime();
+        }
         mMotorChanged = true;
+
+        if (percent != 0) {
+            mLastMotorActivityMs = mScheduler.elapsedRealtime();
+            if (mIdle) {
+                wakeFromIdle(true);
+            }
+        }
     }
+
+
+    //
+    // Motion Programs
+    //
+    public final static String ACTION_MOTION_PROGRAM_COMPLETE =
+            "com.thenextplateau.ubristlebot.ACTION_MOTION_PROGRAM_COMPLETE";
+
+    private MotionProgramExecutor mMotionProgramExecutor;
+
+    private final MotionProgramExecutor.MotorOutput mMotionProgramOutput =
+            new MotionProgramExecutor.MotorOutput() {
+        @Override
+        public void setMotors(int leftPercent, int rightPercent) {
+            setLeftMotor(leftPercent);
+            setRightMotor(rightPercent);
+
+            // Steps are sent as written, however close together
+            mMotorCommandForced = true;
+
+            // Don't wait for the next tick, step timing matters here
+            if (isConnected() && mMotorScheduler != null && mMotorScheduler.isRunning()) {
+                updateMotorCharacteristics.run();
+            }
+        }
+
+        @Override
+        public void onProgramComplete() {
+            Log.i(TAG, "Motion program complete");
+            broadcastUpdate(ACTION_MOTION_PROGRAM_COMPLETE);
+        }
+    };
+
+    // Run a program on the service's timeline, replacing any program already running
+    public void runMotionProgram(MotionProgram program) {
+        if (! isConnected()) {
+            Log.w(TAG, "Failed to run motion program. Not connected to a device.");
+            return;
+        }
+
+        if (mMotionProgramExecutor == null) {
+            mMotionProgramExecutor = new MotionProgramExecutor(mScheduler, mMotionProgramOutput);
+        }
+        mMotionProgramExecutor.start(program);
+    }
+    public void stopMotionProgram() {
+        if (mMotionProgramExecutor != null) {
+            mMotionProgramExecutor.stop();
+        }
+    }
+    public boolean isMotionProgramRunning() {
+        return mMotionProgramExecutor != null && mMotionProgramExecutor.isRunning();
+    }
+    // Planned vs issued start of each step of the current, or last, program
+    public List<MotionProgramExecutor.StepTiming> getMotionProgramTimings() {
+        if (mMotionProgramExecutor == null)
+            return new ArrayList<>();
+        return mMotionProgramExecutor.getTimings();
+    }
+
+
+    //
+    // Idle Power Mode
+    //
+    // Once the motors have been stopped for a while with the controls out of sight, the motor
+    //  and RSSI loops are parked and the link is relaxed to low power. Battery notifications keep
+    //  coming. The next motor command, or the controls coming back, wakes everything right away.
+    private static final long IDLE_AFTER_MS = 30 * 1000;
+
+    private static boolean mControlsVisible;
+    private static boolean mIdle;
+    // Last non-zero motor command
+    private static long mLastMotorActivityMs;
+
+    // Wake up latency, from the motor command that woke us to its ack. 0 when not measuring.
+    private static long mWakeStartNanos;
+    private static long mIdleCount;
+    private static long mWakeCount;
+    private static long mLastWakeLatencyMs = -1;
+    private static long mMaxWakeLatencyMs = -1;
+
+    // Called by the control screen as it comes and goes
+    public void setControlsVisible(boolean visible) {
+        mControlsVisible = visible;
+
+        if (visible) {
+            mLastMotorActivityMs = mScheduler.elapsedRealtime();
+            if (mIdle) {
+                wakeFromIdle(false);
+            }
+        }
+    }
+
+    private static boolean isIdleDue() {
+        return ! mControlsVisible && ! mIdle &&
+                mLeftMotorPercent == 0 && mRightMotorPercent == 0 && ! mMotorChanged &&
+                mLastAckedMotorFrameZero &&
+                characteristicWriteList.isEmpty() && ! mBackgroundOpInFlight &&
+                mSettingsTransaction == null &&
+                mScheduler.elapsedRealtime() - mLastMotorActivityMs >= IDLE_AFTER_MS;
+    }
+
+    private static void enterIdle() {
+        Log.i(TAG, "Bot is parked. Going idle.");
+
+        mIdle = true;
+        mIdleCount++;
+
+        mMotorScheduler.stop();
+        mRSSIScheduler.stop();
+        requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER);
+    }
+
+    private static void wakeFromIdle(boolean byMotorCommand) {
+        Log.i(TAG, "Waking from idle");
+
+        mIdle = false;
+        mWakeCount++;
+        mWakeStartNanos = byMotorCommand ? mScheduler.elapsedRealtimeNanos() : 0;
+        // A stop that came in while parked changed nothing. Time the command from now.
+        mMotorChangedAtMs = mScheduler.elapsedRealtime();
+
+        requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+        mMotorScheduler.start(0);
+        mRSSIScheduler.start(0);
+    }
+
+    private static void requestConnectionPriority(int priority) {
+        if (mGattLink != null) {
+            mGattLink.requestConnectionPriority(priority);
+        }
+    }
+
+    private static void recordWakeLatency(long latencyNanos) {
+        mLastWakeLatencyMs = latencyNanos / 1000000;
+        mMaxWakeLatencyMs = Math.max(mMaxWakeLatencyMs, mLastWakeLatencyMs);
+        Log.i(TAG, "Woke up in " + mLastWakeLatencyMs + " ms");
+    }
+
+    public boolean isIdle() {
+        return mIdle;
+    }
+    public long getIdleCount() {
+        return mIdleCount;
+    }
+    public long getWakeCount() {
+        return mWakeCount;
+    }
+    // From the motor command that woke the link to the bot acking it. -1 until measured.
+    public long getLastWakeLatencyMs() {
+        return mLastWakeLatencyMs;
+    }
+    public long getMaxWakeLatencyMs() {
+        return mMaxWakeLatencyMs;
+    }
+
+
+
+    //
+    // Looper Monitor
+    //
+    // Times every message on the main looper, where the motor and RSSI loops share time with the
+    //  UI, and credits it to whoever ran. Off unless started, since Looper builds a log line for
+    //  every message while it's on. In debug builds, start and stop it with
+    //  `adb shell dumpsys activity service <package>/.uBristleBotService looper start|stop`,
+    //  and the same without arguments shows the results.
+    private static LooperMonitor mLooperMonitor;
+
+    public void startLooperMonitor() {
+        if (mLooperMonitor != null)
+            return;
+
+        mLooperMonitor = new LooperMonitor(Looper.getMainLooper(), LooperMonitor.DEFAULT_OUTLIER_MS);
+        mLooperMonitor.name(mDiscoveryWindowStart, "mDiscoveryWindowStart");
+        mLooperMonitor.name(mDiscoveryWindowEnd, "mDiscoveryWindowEnd");
+        mLooperMonitor.name(mEvictStaleDevices, "mEvictStaleDevices");
+        mLooperMonitor.name(mScanTimeout, "mScanTimeout");
+        mLooperMonitor.name(mQuickConnectTimeout, "mQuickConnectTimeout");
+        mLooperMonitor.name(mDeferredScanStart, "mDeferredScanStart");
+        mLooperMonitor.start();
+    }
+    public void stopLooperMonitor() {
+        if (mLooperMonitor != null) {
+            mLooperMonitor.stop();
+            mLooperMonitor = null;
+        }
+    }
+    // Null if the monitor isn't running
+    public String dumpLooperMonitor() {
+        return mLooperMonitor == null ? null : mLooperMonitor.dump();
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (BuildConfig.DEBUG && args.length == 2 && args[0].equals("control-server")) {
+            final boolean start = args[1].equals("start");
+            if (! start && ! args[1].equals("stop")) {
+                writer.println("Usage: control-server start|stop");
+                return;
+            }
+
+            // Dumps come in on a binder thread. The server is started and stopped on the main one.
+            mScheduler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (start) {
+                        startControlServer();
+                    } else {
+                        stopControlServer();
+                    }
+                }
+            });
+            writer.println(start ? "Starting control server on @" + ControlServer.DEFAULT_SOCKET_NAME :
+                    "Stopping control server");
+            return;
+        }
+
+        if (BuildConfig.DEBUG && args.length == 2 && args[0].equals("looper")) {
+            final boolean start = args[1].equals("start");
+            if (args[1].equals("reset")) {
+                if (mLooperMonitor != null) {
+                    mLooperMonitor.reset();
+                }
+                writer.println("Resetting looper monitor");
+                return;
+            }
+            if (! start && ! args[1].equals("stop")) {
+                writer.println("Usage: looper start|stop|reset");
+                return;
+            }
+
+            // The monitor hooks the main looper, start and stop it there
+            mScheduler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (start) {
+                        startLooperMonitor();
+                    } else {
+                        stopLooperMonitor();
+                    }
+                }
+            });
+            writer.println(start ? "Starting looper monitor" : "Stopping looper monitor");
+            return;
+        }
+
+        String looper = dumpLooperMonitor();
+        writer.println(looper == null ? "Looper monitor is not running" : looper);
+    }
+
+
+
+    //
+    // Telemetry Streams
+    //
+    // The same updates as the broadcasts, for consumers that want to set their own pace, such as
+    //  charts and loggers. Publishing never waits on them, see TelemetryStream.
+    private static final TelemetryStream<Integer> mBatteryStream = new TelemetryStream<>();
+    private static final TelemetryStream<Integer> mRssiStream = new TelemetryStream<>();
+    private static final TelemetryStream<Integer> mConnectionStateStream = new TelemetryStream<>();
+
+    // Battery percent, as notified or read
+    public TelemetryStream<Integer> getBatteryStream() {
+        return mBatteryStream;
+    }
+    // Smoothed RSSI in dBm, about once a second while connected
+    public TelemetryStream<Integer> getRssiStream() {
+        return mRssiStream;
+    }
+    // One of DEVICE_STATE_*
+    public TelemetryStream<Integer> getConnectionStateStream() {
+        return mConnectionStateStream;
+    }
+
+
+
+    //
+    // Control Server
+    //
+    // Optional local socket endpoint for automation, see ControlProtocol and ControlServer. It runs
+    //  with the service, not with any activity. Debug builds only, started and stopped with:
+    //    adb shell dumpsys activity service <package>/.uBristleBotService control-server start|stop
+    private ControlServer mControlServer;
+
+    private final ControlServer.Target mControlTarget = new ControlServer.Target() {
+        @Override
+        public byte setMotors(int leftPercent, int rightPercent) {
+            if (! isConnected())
+                return ControlProtocol.STATUS_NOT_CONNECTED;
+
+            stopMotionProgram();
+            mMotionProgramOutput.setMotors(leftPercent, rightPercent);
+            return ControlProtocol.STATUS_OK;
+        }
+
+        @Override
+        public byte runProgram(MotionProgram program) {
+            if (! isConnected())
+                return ControlProtocol.STATUS_NOT_CONNECTED;
+
+            runMotionProgram(program);
+            return ControlProtocol.STATUS_OK;
+        }
+
+        @Override
+        public byte stop() {
+            stopMotionProgram();
+            if (isConnected()) {
+                mMotionProgramOutput.setMotors(0, 0);
+            }
+            return ControlProtocol.STATUS_OK;
+        }
+
+        @Override
+        public void putTelemetry(ByteBuffer out) {
+            ControlProtocol.putTelemetry(out, isConnected(), getSmoothedRssi(), getLinkQuality(),
+                    mBatteryPercent, getMotorSendRate(), isMotionProgramRunning());
+        }
+    };
+
+    // Returns false if it couldn't be started, or this isn't a debug build
+    public boolean startControlServer() {
+        if (! BuildConfig.DEBUG)
+            return false;
+        if (mControlServer != null && mControlServer.isRunning())
+            return true;
+
+        mControlServer = new ControlServer(Looper.getMainLooper(), mControlTarget,
+                ControlServer.DEFAULT_SOCKET_NAME);
+        try {
+            mControlServer.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not start control server", e);
+            mControlServer = null;
+            return false;
+        }
+
+        // Keep serving after every activity is gone
+        startService(new Intent(this, uBristleBotService.class));
+        return true;
+    }
+    public void stopControlServer() {
+        if (mControlServer != null) {
+            mControlServer.stop();
+            mControlServer = null;
+
+            if (! mSessionStarted) {
+                stopSelf();
+            }
+        }
+    }
+    public boolean isControlServerRunning() {
+        return mControlServer != null && mControlServer.isRunning();
+    }
+
+
+
+    //
+    // Settings
+    //
+    public final static String ACTION_SETTINGS_SAVED =
+            "com.thenextplateau.ubristlebot.ACTION_SETTINGS_SAVED";
+    public final static String SETTINGS_RESULT =
+            "com.thenextplateau.ubristlebot.SETTINGS_RESULT";
+    public final static String SETTINGS_RETRIES =
+            "com.thenextplateau.ubristlebot.SETTINGS_RETRIES";
+
+    public static final int SETTINGS_RESULT_SAVED = SettingsTransaction.RESULT_SAVED;
+    public static final int SETTINGS_RESULT_NO_CHANGES = SettingsTransaction.RESULT_NO_CHANGES;
+    public static final int SETTINGS_RESULT_FAILED = SettingsTransaction.RESULT_FAILED;
+
+    private static SettingsTransaction mSettingsTransaction;
+    private static boolean mUseReliableWrite = true;
+
+    private final SettingsTransaction.Callbacks mSettingsCallbacks = new SettingsTransaction.Callbacks() {
+        @Override
+        public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+            // The transaction retries its own writes. The watchdog only catches lost acks.
+            mInFlightWrite = characteristic;
+            mWatchdog.onIssuedOnce(GattOperationWatchdog.OP_WRITE);
+            if (mGattLink.writeCharacteristic(characteristic))
+                return true;
+
+            // Never issued, so there's nothing to time out. The transaction retries it.
+            mWatchdog.clear();
+            return false;
+        }
+
+        @Override
+        public boolean beginReliableWrite() {
+            return mGattLink.beginReliableWrite();
+        }
+
+        @Override
+        public boolean executeReliableWrite() {
+            mWatchdog.onIssued(GattOperationWatchdog.OP_EXECUTE_RELIABLE_WRITE);
+            return mGattLink.executeReliableWrite();
+        }
+
+        @Override
+        public void abortReliableWrite() {
+            mWatchdog.clear();
+            mGattLink.abortReliableWrite();
+        }
+
+        @Override
+        public void onComplete(int result, int retries) {
+            mSettingsTransaction = null;
+            broadcastSettingsSavedUpdate(result, retries);
+
+            if (result == SettingsTransaction.RESULT_FAILED) {
+                // Nothing was saved, let the driver keep driving
+                Log.e(TAG, "Failed to save settings");
+                mMotorScheduler.start(mMotorSendRate.getIntervalMs());
+            } else {
+                // The bot has its new name now. Saved along with the disconnect.
+                String address = getConnectedAddress();
+                if (result == SettingsTransaction.RESULT_SAVED && address != null) {
+                    mBotInventory.setName(address, mDeviceName.trim());
+                }
+
+                // The device drops the connection once settings are saved. Preempt this.
+                Log.d(TAG, "Disconnecting after saving settings");
+                disconnect();
+            }
+        }
+    };
+
+    private void broadcastSettingsSavedUpdate(final int result, final int retries) {
+        final Intent intent = new Intent(ACTION_SETTINGS_SAVED);
+
+        intent.putExtra(SETTINGS_RESULT, result);
+        intent.putExtra(SETTINGS_RETRIES, retries);
+
+        sendBroadcast(intent);
+    }
+
+    // Batch settings into a single reliable write when more than one changed.
+    //  Turn off for firmware that doesn't handle prepared writes well.
+    public void setUseReliableWrite(boolean useReliableWrite) {
+        mUseReliableWrite = useReliableWrite;
+    }
+
     public void saveSettingsAndDisconnect() {
-        // Disable the motor update handler, just in case
-        if (mMotorUpdateHandler != null) {
-            mMotorUpdateHandler.removeCallbacksAndMessages(null);
-        }
-        mMotorUpdateHandler = new Handler(Looper.getMainLooper());
-
-        // Add characteristics to write queue
-        characteristicWriteList.clear();
-        characteristicWriteList.add(cDeviceName);
-        Log.i(TAG, "Setting name to " + new String(cDeviceName.getValue()));
-
-        characteristicWriteList.add(cLEDs);
-        Log.i(TAG, "Setting LEDs to " +
-                String.valueOf(cLEDs.getValue()[2] & 0xFF) + "," +
-                String.valueOf(cLEDs.getValue()[1] & 0xFF) + "," +
-                String.valueOf(cLEDs.getValue()[0] & 0xFF));
-
-        // Set characteristic that will make these settings stick on the device
-        byte[] tmp = new byte[1];
-        tmp[0] = (byte) 0x01;
-        cSave.setValue(tmp);
-        characteristicWriteList.add(cSave);
-
-        // Get things going
-        mBluetoothGatt.writeCharacteristic(characteristicWriteList.get(0));
+        if (mSettingsTransaction != null) {
+            Log.w(TAG, "Already saving settings");
+            return;
+        }
+
+        // Disable the motor updates, just in case
+        if (mMotorScheduler != null) {
+            mMotorScheduler.stop();
+        }
+        stopMotionProgram();
+
+        // Whatever is being previewed is about to be written for real
+        mColorPreviewPending = false;
+        mColorPreviewActive = false;
+
+        // Only write what changed since we read it from the device
+        mSettingsTransaction = new SettingsTransaction(cSave, mUseReliableWrite, mScheduler, mSettingsCallbacks);
+        mSettingsTransaction.addIfChanged(cDeviceName, mDeviceNameValue);
+        mSettingsTransaction.addIfChanged(cLEDs, mRGB);
+
+        // Either may still be unset if its read never finished
+        byte[] name = cDeviceName.getValue();
+        byte[] leds = cLEDs.getValue();
+        if (name != null) {
+            Log.i(TAG, "Setting name to " + new String(name));
+        }
+        if (leds != null && leds.length >= 3) {
+            Log.i(TAG, "Setting LEDs to " +
+                    String.valueOf(leds[2] & 0xFF) + "," +
+                    String.valueOf(leds[1] & 0xFF) + "," +
+                    String.valueOf(leds[0] & 0xFF));
+        }
+
+        // Drop queued motor frames, but let whatever is in flight finish first
+        while (characteristicWriteList.size() > 1) {
+            characteristicWriteList.remove(1);
+        }
+
+        // Then park the motors. The bot may have missed the last stop, and it won't get another.
+        boolean linkIdle = characteristicWriteList.isEmpty() && ! mBackgroundOpInFlight;
+        mMotorChanged = false;
+        mMotorCommandForced = false;
+        mMotorTickMissed = false;
+        mLeftMotorPercent = 0;
+        mRightMotorPercent = 0;
+        mMotorFilter.forcePassed(0, 0);
+        cMotors.setValue(MOTOR_FRAME_ZERO);
+        characteristicWriteList.add(cMotors);
+
+        // Settings start once the link is idle again
+        if (linkIdle) {
+            writeCharacteristic(cMotors);
+        }
     }
 }
@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * A uBristleBot with the 1.0 firmware, on virtual time.
+ *
+ * Every operation is answered after a fixed latency on the given VirtualScheduler. Faults are off
+ * until set: an answer can be reported failed, lost, or late, and a write can take the link down
+ * instead of being answered. Battery notifications, once enabled, can come in floods. The same
+ * seed always gives the same faults.
+ */
+class FakeGattPeripheral implements GattLink.Connector {
+
+    private static final UUID S_GENERAL_ACCESS = UUID.fromString("00001800-0000-1000-8000-00805f9b34fb");
+    private static final UUID S_BATTERY = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+    private static final UUID S_RGB_LED = UUID.fromString("d5d62c0c-6f57-4ac0-bb97-2b694062756e");
+    private static final UUID S_MOTORS = UUID.fromString("b8578989-149c-4849-91f0-2852935b1a86");
+    private static final UUID S_SAVE_SETTNGS = UUID.fromString("29f0dcfe-bebe-4348-9631-5fbd8e7fcb79");
+
+    private static final UUID C_DEVICE_NAME = UUID.fromString("00002a00-0000-1000-8000-00805f9b34fb");
+    private static final UUID C_BATTERY = UUID.fromString("00002a19-0000-1000-8000-00805f9b34fb");
+    private static final UUID C_RGB_LEDS = UUID.fromString("05664686-5bf2-45a9-83c5-8a927cd2e20c");
+    private static final UUID C_MOTORS = UUID.fromString("03957515-5976-41c3-982a-56cb6c4b4a38");
+    private static final UUID C_SAVE_CHANGES = UUID.fromString("a0632df5-f8ad-401b-9f0f-80fd1f43edf3");
+
+    private static final UUID CCCD = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    static final long CONNECT_MS = 200;
+    static final long OPERATION_MS = 15;
+    static final long DISCONNECT_MS = 50;
+    static final long BATTERY_PERIOD_MS = 1000;
+
+    // Reported by the stack when the link times out
+    private static final int STATUS_LINK_LOST = 8;
+
+    private static final int FATE_DELIVER = 0;
+    private static final int FATE_FAIL = 1;
+    private static final int FATE_DROP = 2;
+    private static final int FATE_DELAY = 3;
+    private static final int FATE_DISCONNECT = 4;
+
+    private final VirtualScheduler mScheduler;
+    private final Random mRandom;
+
+    // What the bot holds, by characteristic
+    private final Map<UUID, byte[]> mStored = new HashMap<>();
+
+    // Chance of each fault, per answer
+    private float mFailRate;
+    private float mDropRate;
+    private float mDelayRate;
+    private long mMaxDelayMs;
+    // Per write
+    private float mDisconnectRate;
+    // Per notification, and how many extra copies a flood delivers
+    private float mFloodRate;
+    private int mFloodCount;
+
+    private long mConnectCount;
+    private long mFailedCount;
+    private long mDroppedCount;
+    private long mDelayedCount;
+    private long mDisconnectCount;
+    private long mFloodedCount;
+    private long mRefreshCount;
+
+    private Link mLink;
+
+    FakeGattPeripheral(VirtualScheduler scheduler, long seed) {
+        mScheduler = scheduler;
+        mRandom = new Random(seed);
+
+        mStored.put(C_DEVICE_NAME, "Fake Bot".getBytes());
+        mStored.put(C_BATTERY, new byte[] { 87 });
+        mStored.put(C_RGB_LEDS, new byte[] { 0, 0, (byte) 255 });
+        mStored.put(C_MOTORS, new byte[2]);
+        mStored.put(C_SAVE_CHANGES, new byte[1]);
+    }
+
+    void setCallbackFaults(float failRate, float dropRate, float delayRate, long maxDelayMs) {
+        mFailRate = failRate;
+        mDropRate = dropRate;
+        mDelayRate = delayRate;
+        mMaxDelayMs = maxDelayMs;
+    }
+
+    void setDisconnectRate(float disconnectRate) {
+        mDisconnectRate = disconnectRate;
+    }
+
+    void setNotificationFlood(float floodRate, int floodCount) {
+        mFloodRate = floodRate;
+        mFloodCount = floodCount;
+    }
+
+    // Connected, with services discovered
+    boolean isReady() {
+        return mLink != null && mLink.mConnected && mLink.mDiscovered;
+    }
+
+    // What the motors are actually doing, whatever the app was told
+    boolean areMotorsStopped() {
+        byte[] motors = mStored.get(C_MOTORS);
+        return motors[0] == 0 && motors[1] == 0;
+    }
+
+    byte[] getStored(UUID characteristic) {
+        return mStored.get(characteristic);
+    }
+
+    long getConnectCount() {
+        return mConnectCount;
+    }
+
+    String getReport() {
+        return mConnectCount + " connects; faults: " + mFailedCount + " failed, " +
+                mDroppedCount + " dropped, " + mDelayedCount + " delayed, " +
+                mDisconnectCount + " disconnects, " + mFloodedCount + " floods; " +
+                mRefreshCount + " refreshes";
+    }
+
+    @Override
+    public GattLink connect(String address, GattLink.Callback callback) {
+        mConnectCount++;
+        mLink = new Link(address, callback);
+
+        final Link link = mLink;
+        link.post(CONNECT_MS, new Runnable() {
+            @Override
+            public void run() {
+                link.mConnected = true;
+                link.mCallback.onConnectionStateChange(link,
+                        BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+            }
+        });
+        return link;
+    }
+
+    private int decide(boolean canDisconnect) {
+        if (canDisconnect && mRandom.nextFloat() < mDisconnectRate) {
+            mDisconnectCount++;
+            return FATE_DISCONNECT;
+        }
+
+        float roll = mRandom.nextFloat();
+        if (roll < mFailRate) {
+            mFailedCount++;
+            return FATE_FAIL;
+        }
+        roll -= mFailRate;
+        if (roll < mDropRate) {
+            mDroppedCount++;
+            return FATE_DROP;
+        }
+        roll -= mDropRate;
+        if (roll < mDelayRate) {
+            mDelayedCount++;
+            return FATE_DELAY;
+        }
+        return FATE_DELIVER;
+    }
+
+    private interface Answer {
+        void send(int status);
+    }
+
+    private class Link implements GattLink {
+        private final String mAddress;
+        private final GattLink.Callback mCallback;
+        private final List<BluetoothGattService> mServices = new ArrayList<>();
+        private final BluetoothGattCharacteristic mBattery;
+
+        private boolean mConnected;
+        private boolean mDiscovered;
+        private boolean mDisconnecting;
+        private boolean mClosed;
+        private boolean mNotifying;
+
+        // Writes held for a reliable write, null outside of one
+        private Map<UUID, byte[]> mPrepared;
+
+        private final Runnable mNotifyBattery = new Runnable() {
+            @Override
+            public void run() {
+                if (mClosed || ! mConnected || ! mNotifying)
+                    return;
+
+                mBattery.setValue(mStored.get(C_BATTERY).clone());
+
+                int copies = 1;
+                if (mRandom.nextFloat() < mFloodRate) {
+                    mFloodedCount++;
+                    copies += mFloodCount;
+                }
+                for (int i = 0; i < copies; i++) {
+                    mCallback.onCharacteristicChanged(Link.this, mBattery);
+                }
+
+                mScheduler.postDelayed(this, BATTERY_PERIOD_MS);
+            }
+        };
+
+        Link(String address, GattLink.Callback callback) {
+            mAddress = address;
+            mCallback = callback;
+
+            // A fresh GATT table for every link, as the stack builds one
+            mServices.add(service(S_GENERAL_ACCESS, characteristic(C_DEVICE_NAME,
+                    BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE)));
+            mBattery = characteristic(C_BATTERY,
+                    BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY);
+            mBattery.addDescriptor(new BluetoothGattDescriptor(CCCD,
+                    BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+            mServices.add(service(S_BATTERY, mBattery));
+            mServices.add(service(S_RGB_LED, characteristic(C_RGB_LEDS,
+                    BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE)));
+            mServices.add(service(S_MOTORS, characteristic(C_MOTORS,
+                    BluetoothGattCharacteristic.PROPERTY_WRITE)));
+            mServices.add(service(S_SAVE_SETTNGS, characteristic(C_SAVE_CHANGES,
+                    BluetoothGattCharacteristic.PROPERTY_WRITE)));
+        }
+
+        private BluetoothGattCharacteristic characteristic(UUID uuid, int properties) {
+            return new BluetoothGattCharacteristic(uuid, properties,
+                    BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
+        }
+
+        private BluetoothGattService service(UUID uuid, BluetoothGattCharacteristic characteristic) {
+            BluetoothGattService service =
+                    new BluetoothGattService(uuid, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+            service.addCharacteristic(characteristic);
+            return service;
+        }
+
+        // Nothing is delivered once the app closes the link
+        void post(long delayMs, final Runnable task) {
+            mScheduler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (! mClosed) {
+                        task.run();
+                    }
+                }
+            }, delayMs);
+        }
+
+        // Answer an operation after the usual latency, or not, as the faults decide
+        private void answer(boolean canDisconnect, final Answer answer) {
+            long delayMs = OPERATION_MS;
+            int status = BluetoothGatt.GATT_SUCCESS;
+
+            switch (decide(canDisconnect)) {
+                case FATE_FAIL:
+                    status = BluetoothGatt.GATT_FAILURE;
+                    break;
+                case FATE_DROP:
+                    return;
+                case FATE_DELAY:
+                    delayMs += (long) (mRandom.nextFloat() * mMaxDelayMs);
+                    break;
+                case FATE_DISCONNECT:
+                    // The answer is lost along with the link
+                    linkLost(STATUS_LINK_LOST);
+                    return;
+            }
+
+            final int answerStatus = status;
+            post(delayMs, new Runnable() {
+                @Override
+                public void run() {
+                    answer.send(answerStatus);
+                }
+            });
+        }
+
+        private void linkLost(final int status) {
+            if (mDisconnecting)
+                return;
+
+            mDisconnecting = true;
+            post(DISCONNECT_MS, new Runnable() {
+                @Override
+                public void run() {
+                    boolean wasConnected = mConnected;
+                    mConnected = false;
+                    mDiscovered = false;
+                    mNotifying = false;
+                    mPrepared = null;
+                    mScheduler.removeCallbacks(mNotifyBattery);
+
+                    if (wasConnected) {
+                        mCallback.onConnectionStateChange(Link.this, status,
+                                BluetoothProfile.STATE_DISCONNECTED);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public String getAddress() {
+            return mAddress;
+        }
+
+        @Override
+        public List<BluetoothGattService> getServices() {
+            if (! mDiscovered)
+                return Collections.emptyList();
+            return mServices;
+        }
+
+        @Override
+        public boolean discoverServices() {
+            post(OPERATION_MS * 4, new Runnable() {
+                @Override
+                public void run() {
+                    mDiscovered = true;
+                    mCallback.onServicesDiscovered(Link.this, BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean readCharacteristic(final BluetoothGattCharacteristic characteristic) {
+            answer(false, new Answer() {
+                @Override
+                public void send(int status) {
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        characteristic.setValue(mStored.get(characteristic.getUuid()).clone());
+                    }
+                    mCallback.onCharacteristicRead(Link.this, characteristic, status);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean writeCharacteristic(final BluetoothGattCharacteristic characteristic) {
+            // What goes over the air is the value at the time of the write
+            final byte[] value = characteristic.getValue().clone();
+
+            answer(true, new Answer() {
+                @Override
+                public void send(int status) {
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        if (mPrepared != null) {
+                            mPrepared.put(characteristic.getUuid(), value);
+                        } else {
+                            mStored.put(characteristic.getUuid(), value);
+                        }
+                    }
+                    mCallback.onCharacteristicWrite(Link.this, characteristic, status);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean writeDescriptor(final BluetoothGattDescriptor descriptor) {
+            final boolean enable = Arrays.equals(descriptor.getValue(),
+                    BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+
+            answer(false, new Answer() {
+                @Override
+                public void send(int status) {
+                    if (status == BluetoothGatt.GATT_SUCCESS && enable && ! mNotifying) {
+                        mNotifying = true;
+                        mScheduler.postDelayed(mNotifyBattery, BATTERY_PERIOD_MS);
+                    }
+                    mCallback.onDescriptorWrite(Link.this, descriptor, status);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                                     boolean enable) {
+            return true;
+        }
+
+        @Override
+        public boolean readRemoteRssi() {
+            final int rssi = -60 - mRandom.nextInt(20);
+            post(OPERATION_MS, new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onReadRemoteRssi(Link.this, rssi, BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean beginReliableWrite() {
+            mPrepared = new HashMap<>();
+            return true;
+        }
+
+        @Override
+        public boolean executeReliableWrite() {
+            if (mPrepared == null)
+                return false;
+
+            final Map<UUID, byte[]> prepared = mPrepared;
+            answer(false, new Answer() {
+                @Override
+                public void send(int status) {
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        mStored.putAll(prepared);
+                    }
+                    if (mPrepared == prepared) {
+                        mPrepared = null;
+                    }
+                    mCallback.onReliableWriteCompleted(Link.this, status);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public void abortReliableWrite() {
+            mPrepared = null;
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+            return true;
+        }
+
+        @Override
+        public boolean refresh() {
+            mRefreshCount++;
+            return true;
+        }
+
+        @Override
+        public void disconnect() {
+            linkLost(BluetoothGatt.GATT_SUCCESS);
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+            mConnected = false;
+            mScheduler.removeCallbacks(mNotifyBattery);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+
+/**
+ * The service as the app runs it, minus what only the system can do, for tests that drive it
+ * directly. Preferences and files are kept apart from the app's own under a prefix.
+ */
+class ServiceUnderTest extends uBristleBotService {
+    private final String mPrefix;
+
+    ServiceUnderTest(Context context, String prefix) {
+        mPrefix = prefix;
+        attachBaseContext(context);
+    }
+
+    @Override
+    void enterForeground() {}
+
+    @Override
+    void showSessionNotification() {}
+
+    @Override
+    void exitForeground() {}
+
+    @Override
+    public SharedPreferences getSharedPreferences(String name, int mode) {
+        return super.getSharedPreferences(mPrefix + "." + name, mode);
+    }
+
+    @Override
+    public File getFilesDir() {
+        File dir = new File(getCacheDir(), mPrefix);
+        dir.mkdirs();
+        return dir;
+    }
+}
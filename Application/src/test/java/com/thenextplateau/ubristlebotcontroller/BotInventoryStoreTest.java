@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.List;
+
+public class BotInventoryStoreTest extends TestCase {
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = File.createTempFile("inventory", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+        super.tearDown();
+    }
+
+    private static String address(int i) {
+        return String.format("00:00:00:00:%02X:%02X", i / 256, i % 256);
+    }
+
+    private BotInventoryStore loadedStore() {
+        BotInventoryStore store = new BotInventoryStore(mDir);
+        store.load();
+        return store;
+    }
+
+    public void testNothingIsReadUntilLoad() {
+        BotInventoryStore store = loadedStore();
+        store.onConnected(address(1), 1000);
+        store.setName(address(1), "Bristle");
+        store.save();
+
+        BotInventoryStore reopened = new BotInventoryStore(mDir);
+        assertFalse(reopened.isLoaded());
+        assertFalse(reopened.contains(address(1)));
+
+        reopened.load();
+        assertTrue(reopened.isLoaded());
+        assertEquals("Bristle", reopened.get(address(1)).name);
+    }
+
+    public void testSaveWaitsForLoad() {
+        BotInventoryStore store = loadedStore();
+        store.onConnected(address(1), 1000);
+        store.save();
+
+        // Not loaded yet, so saving would lose address(1)
+        BotInventoryStore reopened = new BotInventoryStore(mDir);
+        reopened.onConnected(address(2), 2000);
+        reopened.save();
+        assertTrue(reopened.isDirty());
+
+        reopened.load();
+        reopened.save();
+
+        BotInventoryStore third = loadedStore();
+        assertTrue(third.contains(address(1)));
+        assertTrue(third.contains(address(2)));
+    }
+
+    public void testEditsBeforeLoadWin() {
+        BotInventoryStore store = loadedStore();
+        store.onConnected(address(1), 1000);
+        store.setName(address(1), "Old");
+        store.setBattery(address(1), 80);
+        store.save();
+
+        BotInventoryStore reopened = new BotInventoryStore(mDir);
+        reopened.setName(address(1), "New");
+        reopened.load();
+
+        BotInventoryStore.Bot bot = reopened.get(address(1));
+        assertEquals("New", bot.name);
+        // Filled in from disk
+        assertEquals(80, bot.battery);
+        assertEquals(1000, bot.lastConnectedMs);
+    }
+
+    public void testLeastRecentlyConnectedIsEvicted() {
+        BotInventoryStore store = loadedStore();
+        for (int i = 0; i < BotInventoryStore.MAX_BOTS; i++) {
+            // address(0) is the oldest
+            store.onConnected(address(i), 1000 + i);
+        }
+        store.onConnected(address(0), 5000);
+
+        store.onConnected(address(BotInventoryStore.MAX_BOTS), 6000);
+
+        List<BotInventoryStore.Bot> bots = store.getAll();
+        assertEquals(BotInventoryStore.MAX_BOTS, bots.size());
+        assertTrue(store.contains(address(0)));
+        assertFalse(store.contains(address(1)));
+        assertEquals(address(BotInventoryStore.MAX_BOTS), bots.get(0).address);
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ControlProtocolTest extends TestCase {
+
+    // Records every callback as a short description
+    private final List<String> mEvents = new ArrayList<>();
+    private MotionProgram mProgram;
+
+    private final ControlProtocol.Listener mListener = new ControlProtocol.Listener() {
+        @Override
+        public void onMotors(int[] holdMs, int[] leftPercent, int[] rightPercent) {
+            StringBuilder event = new StringBuilder("motors");
+            for (int i = 0; i < holdMs.length; i++) {
+                event.append(' ').append(holdMs[i]).append(':')
+                        .append(leftPercent[i]).append(',').append(rightPercent[i]);
+            }
+            mEvents.add(event.toString());
+        }
+
+        @Override
+        public void onProgram(MotionProgram program) {
+            mProgram = program;
+            mEvents.add("program");
+        }
+
+        @Override
+        public void onStop() {
+            mEvents.add("stop");
+        }
+
+        @Override
+        public void onSubscribe(int periodMs) {
+            mEvents.add("subscribe " + periodMs);
+        }
+
+        @Override
+        public void onInvalid(byte type, String reason) {
+            mEvents.add("invalid " + type);
+        }
+
+        @Override
+        public void onProtocolError(String reason) {
+            mEvents.add("error");
+        }
+    };
+
+    private ControlProtocol.Decoder mDecoder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDecoder = new ControlProtocol.Decoder(mListener);
+    }
+
+    private static byte[] frame(byte type, int... payload) {
+        byte[] frame = new byte[ControlProtocol.HEADER_SIZE + payload.length];
+        frame[0] = type;
+        frame[1] = (byte) (payload.length >> 8);
+        frame[2] = (byte) payload.length;
+        for (int i = 0; i < payload.length; i++) {
+            frame[ControlProtocol.HEADER_SIZE + i] = (byte) payload[i];
+        }
+        return frame;
+    }
+
+    private static byte[] concat(byte[]... frames) {
+        ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+        for (byte[] frame : frames) {
+            out.put(frame);
+        }
+        byte[] bytes = new byte[out.position()];
+        out.flip();
+        out.get(bytes);
+        return bytes;
+    }
+
+    private void feed(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        mDecoder.feed(in);
+        assertFalse("Decoder left bytes unread", in.hasRemaining() && ! mDecoder.hasFailed());
+    }
+
+    private void assertEvents(String... expected) {
+        assertEquals(Arrays.asList(expected), mEvents);
+    }
+
+    public void testSingleMotorCommand() {
+        feed(frame(ControlProtocol.TYPE_MOTORS, 1, 0, 0, 60, 40));
+        assertEvents("motors 0:60,40");
+    }
+
+    public void testFrameSplitAcrossEveryByte() {
+        byte[] bytes = concat(
+                frame(ControlProtocol.TYPE_MOTORS, 2, 0x01, 0xF4, 100, 0, 0x03, 0xE8, 0, 100),
+                frame(ControlProtocol.TYPE_SUBSCRIBE, 0x01, 0x00));
+
+        for (byte b : bytes) {
+            feed(new byte[]{ b });
+        }
+        assertEvents("motors 500:100,0 1000:0,100", "subscribe 256");
+    }
+
+    public void testHeaderSplitFromPayload() {
+        byte[] bytes = frame(ControlProtocol.TYPE_SUBSCRIBE, 0, 100);
+
+        feed(new byte[]{ bytes[0], bytes[1] });
+        feed(new byte[]{ bytes[2] });
+        assertEvents();
+
+        feed(new byte[]{ bytes[3], bytes[4] });
+        assertEvents("subscribe 100");
+    }
+
+    public void testBatchedFramesInOneRead() {
+        feed(concat(
+                frame(ControlProtocol.TYPE_STOP),
+                frame(ControlProtocol.TYPE_SUBSCRIBE, 0, 50),
+                frame(ControlProtocol.TYPE_PROGRAM, 3, 0, 2, 0, 100, 50, 50, 0, 200, 0, 0),
+                frame(ControlProtocol.TYPE_STOP)));
+
+        assertEvents("stop", "subscribe 50", "program", "stop");
+        assertEquals(3, mProgram.getRepeatCount());
+        assertEquals(2, mProgram.getStepCount());
+        assertEquals(300, mProgram.getDurationMs());
+    }
+
+    public void testPartialFrameWaitsForTheRest() {
+        byte[] bytes = frame(ControlProtocol.TYPE_MOTORS, 1, 0, 0, 60, 40);
+        byte[] head = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, head, 0, head.length);
+
+        feed(head);
+        assertEvents();
+        assertFalse(mDecoder.hasFailed());
+
+        feed(new byte[]{ bytes[bytes.length - 1] });
+        assertEvents("motors 0:60,40");
+    }
+
+    public void testTruncatedPayloadIsInvalidAndDecodingRecovers() {
+        // Two commands declared, only one present
+        feed(concat(
+                frame(ControlProtocol.TYPE_MOTORS, 2, 0, 100, 50, 50),
+                frame(ControlProtocol.TYPE_SUBSCRIBE, 0),
+                frame(ControlProtocol.TYPE_STOP)));
+
+        assertEvents("invalid " + ControlProtocol.TYPE_MOTORS,
+                "invalid " + ControlProtocol.TYPE_SUBSCRIBE,
+                "stop");
+        assertFalse(mDecoder.hasFailed());
+    }
+
+    public void testOutOfRangeValuesAreInvalid() {
+        feed(concat(
+                frame(ControlProtocol.TYPE_MOTORS, 1, 0, 0, 101, 0),
+                frame(ControlProtocol.TYPE_PROGRAM, 1, 0, 1, 0, 0, 50, 50),
+                frame(ControlProtocol.TYPE_PROGRAM, 1, 0, 0),
+                frame(ControlProtocol.TYPE_STOP)));
+
+        // Bad percentage, zero length step, no steps
+        assertEvents("invalid " + ControlProtocol.TYPE_MOTORS,
+                "invalid " + ControlProtocol.TYPE_PROGRAM,
+                "invalid " + ControlProtocol.TYPE_PROGRAM,
+                "stop");
+    }
+
+    public void testUnknownTypeIsSkipped() {
+        feed(concat(
+                frame((byte) 0x7F, 1, 2, 3, 4, 5),
+                frame(ControlProtocol.TYPE_STOP)));
+
+        assertEvents("invalid " + 0x7F, "stop");
+        assertFalse(mDecoder.hasFailed());
+    }
+
+    public void testLargestPayloadIsAccepted() {
+        byte[] bytes = new byte[ControlProtocol.HEADER_SIZE + ControlProtocol.MAX_PAYLOAD];
+        bytes[0] = 0x7F;
+        bytes[1] = (byte) (ControlProtocol.MAX_PAYLOAD >> 8);
+        bytes[2] = (byte) ControlProtocol.MAX_PAYLOAD;
+
+        feed(concat(bytes, frame(ControlProtocol.TYPE_STOP)));
+        assertEvents("invalid " + 0x7F, "stop");
+    }
+
+    public void testOversizedFrameEndsDecoding() {
+        int length = ControlProtocol.MAX_PAYLOAD + 1;
+        byte[] header = { ControlProtocol.TYPE_MOTORS, (byte) (length >> 8), (byte) length };
+
+        ByteBuffer in = ByteBuffer.wrap(concat(header, frame(ControlProtocol.TYPE_STOP)));
+        mDecoder.feed(in);
+        assertTrue(mDecoder.hasFailed());
+        assertEvents("error");
+
+        // Nothing more is decoded, however it arrives
+        mDecoder.feed(ByteBuffer.wrap(frame(ControlProtocol.TYPE_STOP)));
+        assertEvents("error");
+    }
+
+    public void testAckEncoding() {
+        ByteBuffer out = ByteBuffer.allocate(16);
+        ControlProtocol.putAck(out, ControlProtocol.TYPE_STOP, ControlProtocol.STATUS_NOT_CONNECTED);
+
+        assertEquals(5, out.position());
+        assertEquals(ControlProtocol.TYPE_ACK, out.get(0));
+        assertEquals(2, out.getShort(1));
+        assertEquals(ControlProtocol.TYPE_STOP, out.get(3));
+        assertEquals(ControlProtocol.STATUS_NOT_CONNECTED, out.get(4));
+    }
+
+    public void testTelemetryEncodingClampsValues() {
+        ByteBuffer out = ByteBuffer.allocate(16);
+        ControlProtocol.putTelemetry(out, true, -200, 75, -1, 12.34f, true);
+
+        assertEquals(ControlProtocol.HEADER_SIZE + 7, out.position());
+        assertEquals(ControlProtocol.TYPE_TELEMETRY, out.get(0));
+        assertEquals(7, out.getShort(1));
+        assertEquals(1, out.get(3));
+        assertEquals(-128, out.get(4));
+        assertEquals(75, out.get(5));
+        assertEquals((byte) 0xFF, out.get(6));
+        assertEquals(123, out.getShort(7));
+        assertEquals(1, out.get(9));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class GattOperationWatchdogTest extends TestCase {
+
+    private VirtualScheduler mScheduler;
+    private GattOperationWatchdog mWatchdog;
+    private final List<String> mSteps = new ArrayList<>();
+
+    private final GattOperationWatchdog.Recovery mRecovery = new GattOperationWatchdog.Recovery() {
+        @Override
+        public void retry(int op) {
+            mSteps.add("retry " + op);
+        }
+
+        @Override
+        public void cancel(int op) {
+            mSteps.add("cancel " + op);
+        }
+
+        @Override
+        public void refresh() {
+            mSteps.add("refresh");
+        }
+
+        @Override
+        public void reconnect() {
+            mSteps.add("reconnect");
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mScheduler = new VirtualScheduler(0);
+        mWatchdog = new GattOperationWatchdog(mScheduler, mRecovery);
+        mSteps.clear();
+    }
+
+    public void testTimeoutIsRetried() {
+        mWatchdog.onIssued(GattOperationWatchdog.OP_WRITE);
+
+        mScheduler.advanceBy(5000);
+
+        assertEquals("retry " + GattOperationWatchdog.OP_WRITE, mSteps.get(0));
+        assertEquals(1, mWatchdog.getTimeoutCount());
+    }
+
+    public void testLateSuccessCancelsTheBackedOffRetry() {
+        mWatchdog.onIssued(GattOperationWatchdog.OP_WRITE);
+        mWatchdog.onFailed();
+        assertTrue(mWatchdog.isRetryPending());
+
+        // The callback turned up after all, before the retry went out
+        mWatchdog.onSucceeded();
+        mScheduler.advanceBy(5000);
+
+        assertTrue(mSteps.toString(), mSteps.isEmpty());
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    public void testRetriesRunOutThenCancel() {
+        mWatchdog.onIssued(GattOperationWatchdog.OP_READ);
+        for (int i = 0; i <= GattOperationWatchdog.MAX_RETRIES; i++) {
+            mWatchdog.onFailed();
+            mScheduler.advanceBy(1000);
+        }
+
+        assertEquals(GattOperationWatchdog.MAX_RETRIES + 1, mSteps.size());
+        assertEquals("cancel " + GattOperationWatchdog.OP_READ, mSteps.get(mSteps.size() - 1));
+    }
+
+    public void testOperationsRetriedByTheCallerAreOnlyTimedOut() {
+        mWatchdog.onIssuedOnce(GattOperationWatchdog.OP_WRITE);
+
+        mScheduler.advanceBy(5000);
+
+        assertEquals("[cancel " + GattOperationWatchdog.OP_WRITE + "]", mSteps.toString());
+        assertEquals(0, mWatchdog.getRetryCount());
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+}
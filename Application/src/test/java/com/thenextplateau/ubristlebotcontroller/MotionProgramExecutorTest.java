@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class MotionProgramExecutorTest extends TestCase {
+
+    private VirtualScheduler mClock;
+    private MotionProgramExecutor mExecutor;
+
+    // Every setMotors() call as {time, left, right}
+    private final List<long[]> mCommands = new ArrayList<>();
+    private int mCompletions;
+
+    // Delays every post by a fixed amount, like a busy looper
+    private long mLateMs;
+
+    private final Scheduler mLateScheduler = new Scheduler() {
+        @Override
+        public long elapsedRealtime() {
+            return mClock.elapsedRealtime();
+        }
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return mClock.elapsedRealtimeNanos();
+        }
+
+        @Override
+        public void post(Runnable task) {
+            postDelayed(task, 0);
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMs) {
+            mClock.postDelayed(task, delayMs + mLateMs);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            mClock.removeCallbacks(task);
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock = new VirtualScheduler(1000);
+        mExecutor = new MotionProgramExecutor(mLateScheduler, new MotionProgramExecutor.MotorOutput() {
+            @Override
+            public void setMotors(int leftPercent, int rightPercent) {
+                mCommands.add(new long[]{ mClock.elapsedRealtime(), leftPercent, rightPercent });
+            }
+
+            @Override
+            public void onProgramComplete() {
+                mCompletions++;
+            }
+        });
+    }
+
+    private void assertCommand(int index, long timeMs, int left, int right) {
+        long[] command = mCommands.get(index);
+        assertEquals("time of command " + index, timeMs, command[0]);
+        assertEquals("left of command " + index, left, command[1]);
+        assertEquals("right of command " + index, right, command[2]);
+    }
+
+    public void testStepsRunInOrderThenTheMotorsStop() {
+        mExecutor.start(new MotionProgram()
+                .addStep(300, 100, 0)
+                .addStep(200, 0, 100));
+        mClock.advanceBy(1000);
+
+        assertEquals(3, mCommands.size());
+        assertCommand(0, 1000, 100, 0);
+        assertCommand(1, 1300, 0, 100);
+        assertCommand(2, 1500, 0, 0);
+        assertEquals(1, mCompletions);
+        assertFalse(mExecutor.isRunning());
+    }
+
+    public void testLoopsAndRepeatsExpandToEveryStep() {
+        MotionProgram program = new MotionProgram()
+                .beginLoop(3)
+                .addStep(100, 50, 50)
+                .endLoop()
+                .setRepeatCount(2);
+        assertEquals(3, program.getStepCount());
+        assertEquals(300, program.getDurationMs());
+
+        mExecutor.start(program);
+        assertEquals(300, mExecutor.getPassDurationMs());
+        mClock.advanceBy(1000);
+
+        // Six steps, then the stop
+        assertEquals(7, mCommands.size());
+        assertCommand(5, 1500, 50, 50);
+        assertCommand(6, 1600, 0, 0);
+
+        List<MotionProgramExecutor.StepTiming> timings = mExecutor.getTimings();
+        assertEquals(6, timings.size());
+        assertEquals(1, timings.get(5).pass);
+        assertEquals(2, timings.get(5).step);
+    }
+
+    public void testLateStepsDoNotShiftTheRestOfTheProgram() {
+        mLateMs = 30;
+        mExecutor.start(new MotionProgram()
+                .addStep(100, 10, 10)
+                .addStep(100, 20, 20)
+                .addStep(100, 30, 30));
+        mClock.advanceBy(1000);
+
+        // Each step is 30 ms late, but not 30 ms later than the step before
+        List<MotionProgramExecutor.StepTiming> timings = mExecutor.getTimings();
+        assertEquals(3, timings.size());
+        for (int i = 0; i < timings.size(); i++) {
+            assertEquals(i * 100, timings.get(i).plannedStartMs);
+            assertEquals(30, timings.get(i).getLatenessMs());
+        }
+    }
+
+    public void testRepeatingForeverKeepsRunning() {
+        mExecutor.start(new MotionProgram()
+                .addStep(50, 100, 100)
+                .setRepeatCount(MotionProgram.REPEAT_FOREVER));
+        mClock.advanceBy(60 * 60 * 1000);
+
+        assertTrue(mExecutor.isRunning());
+        assertEquals(0, mCompletions);
+        // Only the most recent timings are kept
+        assertTrue(mExecutor.getTimings().size() < mCommands.size());
+    }
+
+    public void testStopStopsTheMotors() {
+        mExecutor.start(new MotionProgram().addStep(1000, 80, 80));
+        mClock.advanceBy(100);
+        mExecutor.stop();
+        mClock.advanceBy(2000);
+
+        assertEquals(2, mCommands.size());
+        assertCommand(1, 1100, 0, 0);
+        assertEquals(0, mCompletions);
+        assertEquals(0, mClock.getPendingCount());
+
+        // Stopping again doesn't send another stop
+        mExecutor.stop();
+        assertEquals(2, mCommands.size());
+    }
+
+    public void testInvalidProgramsAreRejected() {
+        try {
+            mExecutor.start(new MotionProgram());
+            fail("Empty program accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        try {
+            mExecutor.start(new MotionProgram().beginLoop(2).addStep(100, 0, 0));
+            fail("Program with an open loop accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        assertFalse(mExecutor.isRunning());
+        assertTrue(mCommands.isEmpty());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import junit.framework.TestCase;
+
+public class MotorCommandFilterTest extends TestCase {
+
+    private MotorCommandFilter mFilter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFilter = new MotorCommandFilter();
+    }
+
+    private void sendAndAck(int left, int right) {
+        assertTrue(mFilter.filter(left, right));
+        mFilter.onAcked(mFilter.getLeft(), mFilter.getRight());
+    }
+
+    public void testDefaultDeadbandIsWiderThanTheResolution() {
+        assertTrue(MotorCommandFilter.DEFAULT_DEADBAND_PERCENT >
+                MotorCommandFilter.DEFAULT_RESOLUTION_PERCENT);
+    }
+
+    public void testSingleStepChangesAreHeldBack() {
+        sendAndAck(50, 50);
+
+        // One resolution step either way
+        assertFalse(mFilter.filter(55, 50));
+        assertFalse(mFilter.filter(50, 45));
+        // Two steps go through
+        assertTrue(mFilter.filter(60, 50));
+        assertEquals(60, mFilter.getLeft());
+        assertEquals(50, mFilter.getRight());
+    }
+
+    public void testStartingAndStoppingAlwaysGoThrough() {
+        assertTrue(mFilter.filter(1, 0));
+        assertEquals(5, mFilter.getLeft());
+        mFilter.onAcked(5, 0);
+
+        assertTrue(mFilter.filter(0, 0));
+    }
+
+    public void testUnackedCommandIsNotTheBaseline() {
+        sendAndAck(50, 50);
+
+        // Sent, but the write never made it
+        assertTrue(mFilter.filter(70, 70));
+
+        // Back near what the bot actually has, nothing to send
+        assertFalse(mFilter.filter(55, 55));
+        // Still far from it, so the lost command goes out again
+        assertTrue(mFilter.filter(70, 70));
+    }
+
+    public void testBaselineMovesOnAck() {
+        sendAndAck(50, 50);
+        sendAndAck(70, 70);
+
+        assertFalse(mFilter.filter(75, 65));
+        assertTrue(mFilter.filter(50, 50));
+    }
+
+    public void testForcedStopIsComparedOnceAcked() {
+        sendAndAck(50, 50);
+
+        mFilter.forcePassed(0, 0);
+        assertEquals(0, mFilter.getLeft());
+
+        // Not acked yet, so the bot is still running
+        assertTrue(mFilter.filter(0, 0));
+
+        mFilter.onAcked(0, 0);
+        assertFalse(mFilter.filter(0, 0));
+    }
+
+    public void testRestingCommandGoesThroughOnceSettled() {
+        sendAndAck(50, 50);
+
+        // The slider stops one step away
+        assertFalse(mFilter.filter(55, 50));
+        assertTrue(mFilter.isHoldingBack());
+
+        assertTrue(mFilter.settle(55, 50));
+        assertEquals(55, mFilter.getLeft());
+        assertFalse(mFilter.isHoldingBack());
+        mFilter.onAcked(55, 50);
+
+        // Back where the bot already is, nothing left to send
+        assertFalse(mFilter.filter(50, 50));
+        mFilter.onAcked(50, 50);
+        assertFalse(mFilter.settle(50, 50));
+        assertFalse(mFilter.isHoldingBack());
+    }
+}
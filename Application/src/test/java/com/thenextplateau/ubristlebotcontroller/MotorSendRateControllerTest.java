@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import junit.framework.TestCase;
+
+public class MotorSendRateControllerTest extends TestCase {
+
+    private MotorSendRateController mController;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mController = new MotorSendRateController();
+    }
+
+    public void testStartsAtFiveHertz() {
+        assertEquals(5f, mController.getRateHz());
+        assertEquals(200, mController.getIntervalMs());
+    }
+
+    public void testFastAcksIncreaseTheRateAdditively() {
+        mController.onWriteComplete(true, 20, 100);
+        assertEquals(5.5f, mController.getRateHz());
+        mController.onWriteComplete(true, 20, 200);
+        assertEquals(6f, mController.getRateHz());
+    }
+
+    public void testRateNeverExceedsTheCeiling() {
+        for (int i = 0; i < 1000; i++) {
+            mController.onWriteComplete(true, 10, i * 10);
+        }
+        assertEquals(MotorSendRateController.DEFAULT_CEILING_HZ, mController.getRateHz());
+    }
+
+    public void testFailedWriteHalvesTheRate() {
+        for (int i = 0; i < 10; i++) {
+            mController.onWriteComplete(true, 10, i * 10);
+        }
+        assertEquals(10f, mController.getRateHz());
+
+        mController.onWriteComplete(false, 0, 1000);
+        assertEquals(5f, mController.getRateHz());
+    }
+
+    public void testSlowAckBacksOffGently() {
+        mController.onWriteComplete(true, MotorSendRateController.DEFAULT_TARGET_LATENCY_MS + 1, 1000);
+        assertEquals(5f * 0.85f, mController.getRateHz(), 0.001f);
+    }
+
+    public void testOnlyBacksOffOncePerInterval() {
+        mController.onWriteComplete(false, 0, 1000);
+        assertEquals(2.5f, mController.getRateHz());
+
+        // Within the new 400 ms interval, further failures don't compound
+        mController.onWriteComplete(false, 0, 1100);
+        mController.onWriteComplete(false, 0, 1399);
+        assertEquals(2.5f, mController.getRateHz());
+
+        mController.onWriteComplete(false, 0, 1400);
+        assertEquals(MotorSendRateController.DEFAULT_FLOOR_HZ, mController.getRateHz());
+    }
+
+    public void testRateNeverDropsBelowTheFloor() {
+        for (int i = 1; i <= 20; i++) {
+            mController.onWriteComplete(false, 0, i * 1000);
+        }
+        assertEquals(MotorSendRateController.DEFAULT_FLOOR_HZ, mController.getRateHz());
+    }
+
+    public void testSettingLimitsClampsTheCurrentRate() {
+        mController.setLimits(8f, 12f);
+        assertEquals(8f, mController.getRateHz());
+
+        mController.setLimits(1f, 4f);
+        assertEquals(4f, mController.getRateHz());
+    }
+
+    public void testInvalidLimitsAreRejected() {
+        try {
+            mController.setLimits(0f, 10f);
+            fail("Zero floor accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        try {
+            mController.setLimits(10f, 5f);
+            fail("Ceiling below the floor accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testTargetLatencyDecidesWhatIsSlow() {
+        mController.setTargetLatencyMs(20);
+        mController.onWriteComplete(true, 30, 1000);
+        assertTrue(mController.getRateHz() < 5f);
+    }
+
+    public void testHistoryRecordsOnlyChanges() {
+        mController.reset(0);
+        mController.onWriteComplete(true, 10, 100);
+        mController.setLimits(2f, 5.5f);
+        // Already at the ceiling, so this doesn't change anything
+        mController.onWriteComplete(true, 10, 200);
+
+        float[] rates = mController.getRateHistory();
+        long[] times = mController.getRateHistoryTimes();
+        assertEquals(2, rates.length);
+        assertEquals(5f, rates[0]);
+        assertEquals(5.5f, rates[1]);
+        assertEquals(0, times[0]);
+        assertEquals(100, times[1]);
+    }
+
+    public void testHistoryKeepsTheMostRecentSamples() {
+        mController.reset(0);
+        mController.setLimits(1f, 1000f);
+        for (int i = 1; i <= 500; i++) {
+            mController.onWriteComplete(true, 10, i);
+        }
+
+        long[] times = mController.getRateHistoryTimes();
+        assertTrue(times.length < 500);
+        assertEquals(500, times[times.length - 1]);
+        for (int i = 1; i < times.length; i++) {
+            assertEquals(times[i - 1] + 1, times[i]);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class PeriodicSchedulerTest extends TestCase {
+
+    private static final long PERIOD_MS = 200;
+
+    // A looper that's always a bit behind, and now and then badly behind
+    private static class LateScheduler implements Scheduler {
+        final VirtualScheduler clock;
+        long lateMs;
+        long lateOnceMs;
+
+        LateScheduler(VirtualScheduler clock) {
+            this.clock = clock;
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return clock.elapsedRealtime();
+        }
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return clock.elapsedRealtimeNanos();
+        }
+
+        @Override
+        public void post(Runnable task) {
+            postDelayed(task, 0);
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMs) {
+            clock.postDelayed(task, delayMs + lateMs + lateOnceMs);
+            lateOnceMs = 0;
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            clock.removeCallbacks(task);
+        }
+    }
+
+    private VirtualScheduler mClock;
+    private LateScheduler mLate;
+    private final List<Long> mTicks = new ArrayList<>();
+
+    private final Runnable mRecordTick = new Runnable() {
+        @Override
+        public void run() {
+            mTicks.add(mClock.elapsedRealtime());
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock = new VirtualScheduler(1000);
+        mLate = new LateScheduler(mClock);
+        mTicks.clear();
+    }
+
+    public void testTicksLandOnDeadlines() {
+        PeriodicScheduler scheduler = new PeriodicScheduler(mClock, mRecordTick, PERIOD_MS);
+        scheduler.start(0);
+
+        mClock.advanceBy(1000);
+
+        assertEquals("[1000, 1200, 1400, 1600, 1800, 2000]", mTicks.toString());
+        assertEquals(6, scheduler.getTickCount());
+        assertEquals(0f, scheduler.getMaxLatenessMs(), 0f);
+    }
+
+    public void testInitialDelay() {
+        PeriodicScheduler scheduler = new PeriodicScheduler(mClock, mRecordTick, PERIOD_MS);
+        scheduler.start(300);
+
+        mClock.advanceBy(700);
+
+        assertEquals("[1300, 1500, 1700]", mTicks.toString());
+    }
+
+    public void testLatenessDoesNotAddUp() {
+        mLate.lateMs = 7;
+        PeriodicScheduler scheduler = new PeriodicScheduler(mLate, mRecordTick, PERIOD_MS);
+        scheduler.start(0);
+
+        mClock.advanceBy(1000);
+
+        // Every tick is 7 ms late, none is 14
+        assertEquals("[1007, 1207, 1407, 1607, 1807]", mTicks.toString());
+        assertEquals(0, scheduler.getSkippedTickCount());
+        assertEquals(7f, scheduler.getMeanLatenessMs(), 0.01f);
+        assertEquals(7f, scheduler.getMaxLatenessMs(), 0.01f);
+
+        // 7 ms lands in the 5-10 ms bucket
+        long[] histogram = scheduler.getLatenessHistogram();
+        long[] bounds = PeriodicScheduler.getLatenessBucketBoundsMs();
+        assertEquals(bounds.length + 1, histogram.length);
+        assertEquals(5, bounds[2]);
+        assertEquals(5, histogram[3]);
+    }
+
+    public void testMissedDeadlinesAreSkipped() {
+        final PeriodicScheduler scheduler = new PeriodicScheduler(mLate, new Runnable() {
+            @Override
+            public void run() {
+                mTicks.add(mClock.elapsedRealtime());
+                if (mTicks.size() == 1) {
+                    // Hold up the next tick by more than two periods
+                    mLate.lateOnceMs = 450;
+                }
+            }
+        }, PERIOD_MS);
+        scheduler.start(0);
+
+        mClock.advanceBy(1000);
+
+        // 1200 ran at 1650. 1400 and 1600 are skipped instead of bunching up behind it.
+        assertEquals("[1000, 1650, 1800, 2000]", mTicks.toString());
+        assertEquals(2, scheduler.getSkippedTickCount());
+        assertEquals(450f, scheduler.getMaxLatenessMs(), 0.01f);
+    }
+
+    public void testPeriodChangeTakesEffectFromTheNextTick() {
+        final PeriodicScheduler[] scheduler = new PeriodicScheduler[1];
+        scheduler[0] = new PeriodicScheduler(mClock, new Runnable() {
+            @Override
+            public void run() {
+                mTicks.add(mClock.elapsedRealtime());
+                scheduler[0].setPeriodMs(500);
+            }
+        }, PERIOD_MS);
+        scheduler[0].start(0);
+
+        mClock.advanceBy(1000);
+
+        assertEquals("[1000, 1500, 2000]", mTicks.toString());
+        assertEquals(500, scheduler[0].getPeriodMs());
+    }
+
+    public void testTaskCanStopTheScheduler() {
+        final PeriodicScheduler[] scheduler = new PeriodicScheduler[1];
+        scheduler[0] = new PeriodicScheduler(mClock, new Runnable() {
+            @Override
+            public void run() {
+                mTicks.add(mClock.elapsedRealtime());
+                if (mTicks.size() == 3) {
+                    scheduler[0].stop();
+                }
+            }
+        }, PERIOD_MS);
+        scheduler[0].start(0);
+
+        mClock.advanceBy(2000);
+
+        assertEquals("[1000, 1200, 1400]", mTicks.toString());
+        assertFalse(scheduler[0].isRunning());
+        assertEquals(0, mClock.getPendingCount());
+    }
+
+    public void testRestartDropsThePendingTick() {
+        PeriodicScheduler scheduler = new PeriodicScheduler(mClock, mRecordTick, PERIOD_MS);
+        scheduler.start(0);
+        mClock.advanceBy(100);
+
+        scheduler.start(50);
+        mClock.advanceBy(300);
+
+        assertEquals("[1000, 1150, 1350]", mTicks.toString());
+        assertEquals(1, mClock.getPendingCount());
+    }
+
+    public void testHoursOfTicksStayOnTheGrid() {
+        PeriodicScheduler scheduler = new PeriodicScheduler(mClock, mRecordTick, PERIOD_MS);
+        scheduler.start(0);
+
+        long fiveHoursMs = 5 * 60 * 60 * 1000L;
+        mClock.advanceBy(fiveHoursMs);
+
+        assertEquals(fiveHoursMs / PERIOD_MS + 1, scheduler.getTickCount());
+        assertEquals(1000 + fiveHoursMs, (long) mTicks.get(mTicks.size() - 1));
+        assertEquals(0, scheduler.getSkippedTickCount());
+        assertEquals(0f, scheduler.getMaxLatenessMs(), 0f);
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import android.os.Looper;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the service's motor and settings pipelines with random traffic, against a peripheral
+ * that misbehaves, on virtual time.
+ *
+ * Checked throughout: the write queue stays bounded, no GATT operation is retried past the
+ * watchdog's limit, and no motor command waits longer than the watchdog could ever take to get it
+ * out, and nothing piles up on the clock. At the end the motors are stopped and settings saved,
+ * and the bot must be left stopped.
+ *
+ * Runs on the JVM under Robolectric, which supplies the framework classes the service is built
+ * on. Nothing waits on real time, so hours of driving take seconds.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class PipelineSoakTest {
+    private final static String TAG = PipelineSoakTest.class.getSimpleName();
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final long SEED = 1;
+
+    // Motors plus one more: a stop command queued behind the write in flight
+    private static final int MAX_WRITE_QUEUE = 2;
+    // Every timeout, with the longest backoff, plus room for one more late callback
+    private static final long MAX_MOTOR_LATENCY_MS = 8000;
+
+    private static final long SOAK_MS = 30 * 60 * 1000;
+    // Long enough for anything that leaks a little on every reconnect or retry to show
+    private static final long LONG_SOAK_MS = 4 * 60 * 60 * 1000;
+    private static final long TICK_MS = 50;
+    // Time for the final stop and save to play out, faults and all
+    private static final long SETTLE_MS = 10000;
+    // Callbacks waiting on the clock: the service's timers, the watchdog, and answers on their way.
+    //  A handful at any time; more means something is posted and never cancelled.
+    private static final int MAX_PENDING_CALLBACKS = 16;
+
+    private VirtualScheduler mScheduler;
+    private FakeGattPeripheral mPeripheral;
+    private uBristleBotService mService;
+    private final Random mRandom = new Random(SEED);
+
+    private int mLeft;
+    private int mRight;
+    private long mReconnects;
+
+    @Before
+    public void setUp() {
+        mScheduler = new VirtualScheduler(0);
+        mPeripheral = new FakeGattPeripheral(mScheduler, SEED);
+
+        mService = new ServiceUnderTest(RuntimeEnvironment.application, TAG);
+        mService.setScheduler(mScheduler);
+        mService.onCreate();
+        mService.setGattConnector(mPeripheral);
+
+        // The control screen is up, as it is while driving
+        mService.setControlsVisible(true);
+    }
+
+    @After
+    public void tearDown() {
+        mService.setControlsVisible(false);
+        mService.onDestroy();
+        mService.setScheduler(new HandlerScheduler(Looper.getMainLooper()));
+    }
+
+    private String at() {
+        return " at " + mScheduler.elapsedRealtime() + " ms";
+    }
+
+    private void checkBounds(boolean motorsLive) {
+        int queue = mService.getWriteQueueSize();
+        assertTrue("Write queue grew to " + queue + at(), queue <= MAX_WRITE_QUEUE);
+
+        int attempts = mService.getGattAttempts();
+        assertTrue("GATT operation retried " + attempts + " times" + at(),
+                attempts <= GattOperationWatchdog.MAX_RETRIES);
+
+        int pending = mScheduler.getPendingCount();
+        assertTrue(pending + " callbacks pending" + at(), pending <= MAX_PENDING_CALLBACKS);
+
+        // Motors are parked while settings save
+        if (motorsLive) {
+            long latency = mService.getPendingMotorAgeMs();
+            assertTrue("Motor command waited " + latency + " ms" + at(),
+                    latency <= MAX_MOTOR_LATENCY_MS);
+        }
+    }
+
+    private void drive() {
+        int roll = mRandom.nextInt(100);
+        if (roll < 5) {
+            // Let go of the controls
+            mLeft = mRight = 0;
+        } else {
+            mLeft = Math.max(0, Math.min(100, mLeft + mRandom.nextInt(21) - 10));
+            mRight = Math.max(0, Math.min(100, mRight + mRandom.nextInt(21) - 10));
+        }
+        mService.setLeftMotor(mLeft);
+        mService.setRightMotor(mRight);
+
+        if (roll >= 98) {
+            mService.setColorPreview(mRandom.nextInt(256), mRandom.nextInt(256), mRandom.nextInt(256));
+        }
+    }
+
+    private void tick() {
+        mScheduler.advanceBy(TICK_MS);
+        checkBounds(true);
+
+        if (! mService.isConnected()) {
+            // Link dropped, on purpose or not. Get back to driving.
+            if (! mService.isConnecting()) {
+                mReconnects++;
+                mService.connectTo(ADDRESS);
+            }
+        } else if (mPeripheral.isReady()) {
+            drive();
+        }
+    }
+
+    // Drive for a while, then stop and save, the way a session ends
+    private void soak(long durationMs) {
+        mService.connectTo(ADDRESS);
+
+        long endMs = mScheduler.elapsedRealtime() + durationMs;
+        while (mScheduler.elapsedRealtime() < endMs || ! mPeripheral.isReady() ||
+                ! mService.isConnected()) {
+            tick();
+        }
+
+        // A link dropped now leaves stopping to the bot's own failsafe, which can't be checked
+        mPeripheral.setDisconnectRate(0);
+
+        mService.setLeftMotor(0);
+        mService.setRightMotor(0);
+        mService.cancelColorPreview();
+        mService.saveSettingsAndDisconnect();
+
+        long settledMs = mScheduler.elapsedRealtime() + SETTLE_MS;
+        while (mScheduler.elapsedRealtime() < settledMs) {
+            mScheduler.advanceBy(TICK_MS);
+            checkBounds(false);
+        }
+
+        Log.i(TAG, mPeripheral.getReport() + "; " + mReconnects + " reconnects, " +
+                mService.getGattRetryCount() + " retries, " +
+                mService.getGattCancelCount() + " cancels");
+    }
+
+    @Test
+    public void testCleanLinkNeedsNoRecovery() {
+        soak(60 * 1000);
+
+        assertTrue("Last motor frame acknowledged was not a stop", mService.isLastAckedMotorFrameZero());
+        assertTrue("Bot was left running", mPeripheral.areMotorsStopped());
+        assertFalse(mService.isConnected());
+
+        assertEquals(1, mPeripheral.getConnectCount());
+        assertEquals(0, mService.getGattTimeoutCount());
+        assertEquals(0, mService.getGattRetryCount());
+    }
+
+    private void makeLinkFaulty() {
+        mPeripheral.setCallbackFaults(0.05f, 0.02f, 0.1f, 300);
+        mPeripheral.setDisconnectRate(0.0005f);
+        mPeripheral.setNotificationFlood(0.2f, 50);
+    }
+
+    @Test
+    public void testPipelinesHoldUpOnAFaultyLink() {
+        makeLinkFaulty();
+
+        soak(SOAK_MS);
+
+        assertTrue("Last motor frame acknowledged was not a stop", mService.isLastAckedMotorFrameZero());
+        assertTrue("Bot was left running", mPeripheral.areMotorsStopped());
+
+        // Make sure the faults were actually exercised
+        assertTrue(mPeripheral.getConnectCount() > 1);
+        assertTrue(mService.getGattRetryCount() > 0);
+    }
+
+    @Test
+    public void testPipelinesHoldUpForHours() {
+        makeLinkFaulty();
+
+        soak(LONG_SOAK_MS);
+
+        assertTrue("Last motor frame acknowledged was not a stop", mService.isLastAckedMotorFrameZero());
+        assertTrue("Bot was left running", mPeripheral.areMotorsStopped());
+        assertEquals(0, mService.getWriteQueueSize());
+    }
+}
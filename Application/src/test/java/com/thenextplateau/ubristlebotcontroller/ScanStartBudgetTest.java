@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import junit.framework.TestCase;
+
+public class ScanStartBudgetTest extends TestCase {
+
+    private ScanStartBudget mBudget;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBudget = new ScanStartBudget();
+    }
+
+    public void testFirstStartsGoRightAway() {
+        for (int i = 0; i < ScanStartBudget.MAX_STARTS; i++) {
+            assertEquals(0, mBudget.getDelayMs(i * 1000));
+            mBudget.onStarted(i * 1000);
+        }
+    }
+
+    public void testSixthStartWaitsForTheOldestToAgeOut() {
+        for (int i = 0; i < ScanStartBudget.MAX_STARTS; i++) {
+            mBudget.onStarted(1000 + i * 1000);
+        }
+
+        assertEquals(ScanStartBudget.WINDOW_MS - 4000, mBudget.getDelayMs(5000));
+        assertEquals(0, mBudget.getDelayMs(1000 + ScanStartBudget.WINDOW_MS));
+    }
+
+    public void testWindowSlides() {
+        for (int i = 0; i < ScanStartBudget.MAX_STARTS; i++) {
+            mBudget.onStarted(i * 6000);
+        }
+        mBudget.onStarted(30000);
+
+        // The oldest is now the start at 6000
+        assertEquals(6000, mBudget.getDelayMs(30000));
+    }
+
+    public void testBalancedPolicyRestartedOnResumeStaysWithinTheBudget() {
+        // Starts every scan interval, plus a restart from the UI between two of them
+        ScanPolicy policy = ScanPolicy.BALANCED;
+        long now = 0;
+        int started = 0;
+        long[] starts = new long[64];
+        for (int i = 0; i < 20; i++) {
+            long delay = mBudget.getDelayMs(now);
+            now += delay;
+            mBudget.onStarted(now);
+            starts[started++] = now;
+            now += i == 3 ? 1000 : policy.scanIntervalMs;
+        }
+
+        for (int i = ScanStartBudget.MAX_STARTS; i < started; i++) {
+            assertTrue(starts[i] - starts[i - ScanStartBudget.MAX_STARTS] >= ScanStartBudget.WINDOW_MS);
+        }
+    }
+
+    public void testResetForgetsStarts() {
+        for (int i = 0; i < ScanStartBudget.MAX_STARTS; i++) {
+            mBudget.onStarted(0);
+        }
+        mBudget.reset();
+
+        assertEquals(0, mBudget.getDelayMs(0));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import junit.framework.TestCase;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+public class SessionTelemetryStoreTest extends TestCase {
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    private File mDir;
+    private SessionTelemetryStore mStore;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = File.createTempFile("telemetry", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+        mStore = new SessionTelemetryStore(mDir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStore.clear();
+        mDir.delete();
+        super.tearDown();
+    }
+
+    private SessionTelemetryStore.SessionRecord session(long readBacks, long stale, long staleAfterAck,
+                                                        long maxStalenessMs, long meanStalenessMs) {
+        SessionTelemetryStore.Recorder recorder = new SessionTelemetryStore.Recorder();
+        recorder.start(ADDRESS, 1000, 0);
+        recorder.addMotorWrite(true, 20);
+        recorder.setMotorDelivery(readBacks, stale, staleAfterAck, maxStalenessMs, meanStalenessMs);
+        return recorder.finish(60000);
+    }
+
+    public void testMotorDeliveryIsKept() {
+        mStore.append(session(40, 4, 1, 900, 300));
+
+        List<SessionTelemetryStore.SessionRecord> records = mStore.query(ADDRESS, 0);
+        assertEquals(1, records.size());
+
+        SessionTelemetryStore.SessionRecord record = records.get(0);
+        assertEquals(40, record.motorReadBacks);
+        assertEquals(4, record.motorReadBacksStale);
+        assertEquals(1, record.motorReadBacksStaleAfterAck);
+        assertEquals(900, record.motorMaxStalenessMs);
+        assertEquals(300, record.motorMeanStalenessMs);
+        assertEquals(0.1f, record.getMotorStaleRatio(), 0.001f);
+    }
+
+    public void testMotorDeliveryIsSummarized() {
+        mStore.append(session(40, 4, 1, 900, 300));
+        mStore.append(session(60, 12, 0, 500, 100));
+
+        SessionTelemetryStore.SessionRecord summary = mStore.summarize(ADDRESS);
+        assertEquals(2, summary.sessions);
+        assertEquals(100, summary.motorReadBacks);
+        assertEquals(16, summary.motorReadBacksStale);
+        assertEquals(1, summary.motorReadBacksStaleAfterAck);
+        assertEquals(900, summary.motorMaxStalenessMs);
+        // Weighted by stale read-backs: (4 * 300 + 12 * 100) / 16
+        assertEquals(150, summary.motorMeanStalenessMs);
+    }
+
+    public void testVersionOneRecordsStillRead() throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new FileOutputStream(new File(mDir, "session_telemetry.dat")));
+        try {
+            out.writeByte(1);
+            out.writeUTF(ADDRESS);
+            out.writeLong(1000);
+            out.writeInt(1);
+            out.writeLong(59000);
+            out.writeLong(800);
+            out.writeLong(1200);
+            out.writeShort(20);
+            out.writeShort(40);
+            out.writeShort(80);
+            out.writeLong(300);
+            out.writeLong(3);
+            out.writeByte(SessionTelemetryStore.RSSI_BUCKETS.length + 1);
+            for (int i = 0; i <= SessionTelemetryStore.RSSI_BUCKETS.length; i++) {
+                out.writeInt(i);
+            }
+            out.writeShort(2);
+        } finally {
+            out.close();
+        }
+
+        // And new records can follow them
+        mStore.append(session(10, 1, 0, 200, 200));
+
+        List<SessionTelemetryStore.SessionRecord> records = mStore.query(ADDRESS, 0);
+        assertEquals(2, records.size());
+        assertEquals(300, records.get(0).motorWrites);
+        assertEquals(0, records.get(0).motorReadBacks);
+        assertEquals(10, records.get(1).motorReadBacks);
+
+        SessionTelemetryStore.SessionRecord summary = mStore.summarize(ADDRESS);
+        assertEquals(200, summary.motorMeanStalenessMs);
+    }
+}
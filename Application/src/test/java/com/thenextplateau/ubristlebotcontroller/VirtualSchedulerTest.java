@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class VirtualSchedulerTest extends TestCase {
+
+    private VirtualScheduler mScheduler;
+    private final List<String> mRuns = new ArrayList<>();
+
+    private Runnable recorder(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mRuns.add(name + "@" + mScheduler.elapsedRealtime());
+            }
+        };
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mScheduler = new VirtualScheduler(1000);
+        mRuns.clear();
+    }
+
+    public void testStartsAtTheGivenTime() {
+        assertEquals(1000, mScheduler.elapsedRealtime());
+        assertEquals(1000 * 1000000L, mScheduler.elapsedRealtimeNanos());
+        assertEquals(-1, mScheduler.getNextDueMs());
+    }
+
+    public void testRunsTasksInDeadlineOrder() {
+        mScheduler.postDelayed(recorder("c"), 300);
+        mScheduler.postDelayed(recorder("a"), 100);
+        mScheduler.postDelayed(recorder("b"), 200);
+
+        mScheduler.advanceBy(1000);
+
+        assertEquals("[a@1100, b@1200, c@1300]", mRuns.toString());
+        assertEquals(3, mScheduler.getRunCount());
+    }
+
+    public void testTasksDueTogetherRunInPostOrder() {
+        mScheduler.postDelayed(recorder("first"), 50);
+        mScheduler.postDelayed(recorder("second"), 50);
+        mScheduler.post(recorder("now"));
+
+        mScheduler.advanceBy(50);
+
+        assertEquals("[now@1000, first@1050, second@1050]", mRuns.toString());
+    }
+
+    public void testAdvanceStopsAtTheTarget() {
+        mScheduler.postDelayed(recorder("early"), 100);
+        mScheduler.postDelayed(recorder("late"), 500);
+
+        mScheduler.advanceBy(499);
+
+        assertEquals("[early@1100]", mRuns.toString());
+        assertEquals(1499, mScheduler.elapsedRealtime());
+        assertEquals(1, mScheduler.getPendingCount());
+        assertEquals(1500, mScheduler.getNextDueMs());
+
+        mScheduler.advanceTo(1500);
+        assertEquals("[early@1100, late@1500]", mRuns.toString());
+    }
+
+    public void testRunDueDoesNotMoveTheClock() {
+        mScheduler.post(recorder("now"));
+        mScheduler.postDelayed(recorder("later"), 1);
+
+        mScheduler.runDue();
+
+        assertEquals("[now@1000]", mRuns.toString());
+        assertEquals(1000, mScheduler.elapsedRealtime());
+    }
+
+    public void testNegativeDelayRunsNow() {
+        mScheduler.postDelayed(recorder("now"), -50);
+
+        mScheduler.runDue();
+
+        assertEquals("[now@1000]", mRuns.toString());
+    }
+
+    public void testRemoveCallbacksDropsEveryPendingRun() {
+        Runnable task = recorder("removed");
+        mScheduler.postDelayed(task, 10);
+        mScheduler.postDelayed(task, 20);
+        mScheduler.postDelayed(recorder("kept"), 30);
+
+        mScheduler.removeCallbacks(task);
+        mScheduler.advanceBy(100);
+
+        assertEquals("[kept@1030]", mRuns.toString());
+    }
+
+    public void testTasksPostedWhileRunningRunInTheSameAdvance() {
+        mScheduler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                mRuns.add("outer@" + mScheduler.elapsedRealtime());
+                mScheduler.postDelayed(recorder("inner"), 25);
+            }
+        }, 50);
+
+        mScheduler.advanceBy(100);
+
+        assertEquals("[outer@1050, inner@1075]", mRuns.toString());
+        assertEquals(1100, mScheduler.elapsedRealtime());
+    }
+
+    public void testTimeCannotGoBackwards() {
+        mScheduler.advanceBy(10);
+
+        try {
+            mScheduler.advanceTo(1000);
+            fail("Virtual time went backwards");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import android.os.Debug;
+import android.os.Looper;
+import android.test.InstrumentationTestCase;
+import android.util.Printer;
+
+/**
+ * Feeds a LooperMonitor the lines Looper logs, without hooking a real looper.
+ */
+public class LooperMonitorTest extends InstrumentationTestCase {
+
+    private static final int ITERATIONS = 1000;
+
+    private static final String HANDLER = "Handler (android.os.Handler) {41a2b3c4} ";
+
+    private LooperMonitor mMonitor;
+    private Printer mPrinter;
+
+    private final Runnable mNamed = new Runnable() {
+        @Override
+        public void run() {}
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mMonitor = new LooperMonitor(Looper.getMainLooper(), LooperMonitor.DEFAULT_OUTLIER_MS);
+        mPrinter = mMonitor.getPrinter();
+    }
+
+    private void dispatch(String target) {
+        mPrinter.println(">>>>> Dispatching to " + HANDLER + target);
+        mPrinter.println("<<<<< Finished to " + HANDLER + target);
+    }
+
+    // What Looper prints for a Runnable, the way Message.callback is printed
+    private static String callback(Runnable runnable) {
+        return runnable + ": 0";
+    }
+
+    private void assertMessages(String name, int count) {
+        String dump = mMonitor.dump();
+        assertTrue(dump, dump.contains("  " + name + ": " + count + " messages"));
+    }
+
+    public void testCreditsEachKindOfMessage() {
+        mMonitor.name(mNamed, "mNamed");
+
+        dispatch(callback(mNamed));
+        dispatch(callback(mNamed));
+        dispatch("com.example.Foo$1@1f2e3d: 0");
+        dispatch("com.example.Foo$1@4c5b6a: 0");
+        dispatch("null: 7");
+        dispatch("updateRSSI: 0");
+
+        assertMessages("(all)", 6);
+        assertMessages("mNamed", 2);
+        assertMessages("com.example.Foo$1", 2);
+        assertMessages("android.os.Handler what=7", 1);
+        assertMessages("updateRSSI", 1);
+    }
+
+    public void testResetTakesEffectWithTheNextMessage() {
+        dispatch("null: 1");
+        dispatch("null: 1");
+        mMonitor.reset();
+        dispatch("null: 1");
+
+        assertMessages("(all)", 1);
+        assertMessages("android.os.Handler what=1", 1);
+    }
+
+    public void testSeenTargetsDoNotAllocate() {
+        mMonitor.name(mNamed, "mNamed");
+
+        String[] starts = new String[4];
+        String[] ends = new String[4];
+        String[] targets = { callback(mNamed), "com.example.Foo$1@1f2e3d: 0", "null: 7", "updateRSSI: 0" };
+        for (int i = 0; i < targets.length; i++) {
+            starts[i] = ">>>>> Dispatching to " + HANDLER + targets[i];
+            ends[i] = "<<<<< Finished to " + HANDLER + targets[i];
+            // Warm up, so each target is seen once before counting
+            mPrinter.println(starts[i]);
+            mPrinter.println(ends[i]);
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < ITERATIONS; i++) {
+            mPrinter.println(starts[i % starts.length]);
+            mPrinter.println(ends[i % ends.length]);
+        }
+        Debug.stopAllocCounting();
+        int allocations = Debug.getThreadAllocCount();
+
+        assertMessages("(all)", ITERATIONS + targets.length);
+        assertEquals("Objects allocated in " + ITERATIONS + " messages", 0, allocations);
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.os.Debug;
+import android.os.Looper;
+import android.test.InstrumentationTestCase;
+import android.widget.SeekBar;
+
+import java.util.List;
+
+/**
+ * Motor commands are sent several times a second while driving. The path from a SeekBar moving,
+ * through the motor tick, to the characteristic write and its ack must not allocate.
+ *
+ * The service is connected to a FakeGattPeripheral first. While counting, the link holds on to
+ * motor writes and the test acks them itself, and time is kept by a scheduler that doesn't
+ * allocate either, so only the service's own allocations are counted.
+ */
+public class MotorPathAllocationTest extends InstrumentationTestCase {
+    private final static String TAG = MotorPathAllocationTest.class.getSimpleName();
+
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final long SEED = 1;
+
+    private static final int ITERATIONS = 1000;
+    private static final long STEP_MS = 20;
+
+    // A Scheduler in fixed slots, so posting and running tasks doesn't allocate
+    private static class SlotScheduler implements Scheduler {
+        private static final int SLOTS = 32;
+
+        private final Runnable[] mTasks = new Runnable[SLOTS];
+        private final long[] mDueNanos = new long[SLOTS];
+        private final long[] mSequence = new long[SLOTS];
+        private long mNextSequence;
+        private long mNowNanos;
+
+        @Override
+        public long elapsedRealtime() {
+            return mNowNanos / 1000000;
+        }
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return mNowNanos;
+        }
+
+        @Override
+        public void post(Runnable task) {
+            postDelayed(task, 0);
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMs) {
+            for (int i = 0; i < SLOTS; i++) {
+                if (mTasks[i] == null) {
+                    mTasks[i] = task;
+                    mDueNanos[i] = mNowNanos + Math.max(0, delayMs) * 1000000;
+                    mSequence[i] = mNextSequence++;
+                    return;
+                }
+            }
+            throw new IllegalStateException("Out of scheduler slots");
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            for (int i = 0; i < SLOTS; i++) {
+                if (mTasks[i] == task) {
+                    mTasks[i] = null;
+                }
+            }
+        }
+
+        // Run what's due in the next durationMs, in order, like VirtualScheduler
+        void advanceBy(long durationMs) {
+            long targetNanos = mNowNanos + durationMs * 1000000;
+            while (true) {
+                int next = -1;
+                for (int i = 0; i < SLOTS; i++) {
+                    if (mTasks[i] != null && mDueNanos[i] <= targetNanos && (next < 0 ||
+                            mDueNanos[i] < mDueNanos[next] ||
+                            (mDueNanos[i] == mDueNanos[next] && mSequence[i] < mSequence[next]))) {
+                        next = i;
+                    }
+                }
+                if (next < 0)
+                    break;
+
+                Runnable task = mTasks[next];
+                mTasks[next] = null;
+                mNowNanos = mDueNanos[next];
+                task.run();
+            }
+            mNowNanos = targetNanos;
+        }
+    }
+
+    // Links through to the peripheral, until told to hold writes for the test to ack
+    private class HoldingConnector implements GattLink.Connector, GattLink {
+        private GattLink mLink;
+        private GattLink.Callback mCallback;
+
+        boolean holding;
+        BluetoothGattCharacteristic heldWrite;
+        int unexpectedOps;
+
+        @Override
+        public GattLink connect(String address, GattLink.Callback callback) {
+            mCallback = callback;
+            mLink = mPeripheral.connect(address, new GattLink.Callback() {
+                @Override
+                public void onConnectionStateChange(GattLink link, int status, int newState) {
+                    mCallback.onConnectionStateChange(HoldingConnector.this, status, newState);
+                }
+
+                @Override
+                public void onServicesDiscovered(GattLink link, int status) {
+                    mCallback.onServicesDiscovered(HoldingConnector.this, status);
+                }
+
+                @Override
+                public void onCharacteristicRead(GattLink link,
+                                                 BluetoothGattCharacteristic characteristic,
+                                                 int status) {
+                    mCallback.onCharacteristicRead(HoldingConnector.this, characteristic, status);
+                }
+
+                @Override
+                public void onCharacteristicWrite(GattLink link,
+                                                  BluetoothGattCharacteristic characteristic,
+                                                  int status) {
+                    mCallback.onCharacteristicWrite(HoldingConnector.this, characteristic, status);
+                }
+
+                @Override
+                public void onCharacteristicChanged(GattLink link,
+                                                    BluetoothGattCharacteristic characteristic) {
+                    mCallback.onCharacteristicChanged(HoldingConnector.this, characteristic);
+                }
+
+                @Override
+                public void onDescriptorWrite(GattLink link, BluetoothGattDescriptor descriptor,
+                                              int status) {
+                    mCallback.onDescriptorWrite(HoldingConnector.this, descriptor, status);
+                }
+
+                @Override
+                public void onReliableWriteCompleted(GattLink link, int status) {
+                    mCallback.onReliableWriteCompleted(HoldingConnector.this, status);
+                }
+
+                @Override
+                public void onReadRemoteRssi(GattLink link, int rssi, int status) {
+                    mCallback.onReadRemoteRssi(HoldingConnector.this, rssi, status);
+                }
+            });
+            return this;
+        }
+
+        // Deliver the ack for the write being held, if any
+        boolean ackHeldWrite() {
+            if (heldWrite == null)
+                return false;
+
+            BluetoothGattCharacteristic characteristic = heldWrite;
+            heldWrite = null;
+            mCallback.onCharacteristicWrite(this, characteristic, BluetoothGatt.GATT_SUCCESS);
+            return true;
+        }
+
+        @Override
+        public String getAddress() {
+            return mLink.getAddress();
+        }
+
+        @Override
+        public List<BluetoothGattService> getServices() {
+            return mLink.getServices();
+        }
+
+        @Override
+        public boolean discoverServices() {
+            return mLink.discoverServices();
+        }
+
+        @Override
+        public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+            if (holding) {
+                unexpectedOps++;
+                return false;
+            }
+            return mLink.readCharacteristic(characteristic);
+        }
+
+        @Override
+        public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+            if (holding) {
+                heldWrite = characteristic;
+                return true;
+            }
+            return mLink.writeCharacteristic(characteristic);
+        }
+
+        @Override
+        public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+            if (holding) {
+                unexpectedOps++;
+                return false;
+            }
+            return mLink.writeDescriptor(descriptor);
+        }
+
+        @Override
+        public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                                     boolean enable) {
+            return mLink.setCharacteristicNotification(characteristic, enable);
+        }
+
+        // RSSI reads run on their own loop, not the motor path. Left unanswered while holding.
+        @Override
+        public boolean readRemoteRssi() {
+            return holding || mLink.readRemoteRssi();
+        }
+
+        @Override
+        public boolean beginReliableWrite() {
+            return mLink.beginReliableWrite();
+        }
+
+        @Override
+        public boolean executeReliableWrite() {
+            return mLink.executeReliableWrite();
+        }
+
+        @Override
+        public void abortReliableWrite() {
+            mLink.abortReliableWrite();
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+            return mLink.requestConnectionPriority(priority);
+        }
+
+        @Override
+        public boolean refresh() {
+            return mLink.refresh();
+        }
+
+        @Override
+        public void disconnect() {
+            mLink.disconnect();
+        }
+
+        @Override
+        public void close() {
+            mLink.close();
+        }
+    }
+
+    private VirtualScheduler mPeripheralClock;
+    private FakeGattPeripheral mPeripheral;
+    private SlotScheduler mClock;
+    private HoldingConnector mConnector;
+    private uBristleBotService mService;
+    private SeekBar mLeft;
+    private SeekBar mRight;
+
+    private int mAllocations;
+    private int mFramesOut;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mPeripheralClock = new VirtualScheduler(0);
+        mPeripheral = new FakeGattPeripheral(mPeripheralClock, SEED);
+        mClock = new SlotScheduler();
+        mConnector = new HoldingConnector();
+
+        mService = new ServiceUnderTest(getInstrumentation().getTargetContext(), TAG);
+        mService.setScheduler(mClock);
+        mService.onCreate();
+        mService.setGattConnector(mConnector);
+        mService.setControlsVisible(true);
+
+        // Connect and let the device info reads finish, so only driving is left
+        mService.connectTo(ADDRESS);
+        for (int i = 0; i < 500 && ! (mService.isConnected() && mPeripheral.isReady()); i++) {
+            step();
+        }
+        assertTrue("Never connected to the fake peripheral", mService.isConnected());
+        for (int i = 0; i < 200; i++) {
+            step();
+        }
+
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                // Wired up as ControlUIActivity wires its motor sliders
+                mLeft = new SeekBar(getInstrumentation().getTargetContext());
+                mLeft.setOnSeekBarChangeListener(new MotorListener() {
+                    @Override
+                    public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                        mService.setLeftMotor(progress);
+                    }
+                });
+                mRight = new SeekBar(getInstrumentation().getTargetContext());
+                mRight.setOnSeekBarChangeListener(new MotorListener() {
+                    @Override
+                    public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                        mService.setRightMotor(progress);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mConnector.holding = false;
+        mService.setControlsVisible(false);
+        mService.disconnect();
+        mService.onDestroy();
+        // The scheduler is static state, don't leave ours behind for later tests
+        mService.setScheduler(new HandlerScheduler(Looper.getMainLooper()));
+        super.tearDown();
+    }
+
+    private void step() {
+        mPeripheralClock.advanceBy(STEP_MS);
+        mClock.advanceBy(STEP_MS);
+    }
+
+    private abstract static class MotorListener implements SeekBar.OnSeekBarChangeListener {
+        @Override
+        public void onStartTrackingTouch(SeekBar seekBar) {}
+
+        @Override
+        public void onStopTrackingTouch(SeekBar seekBar) {}
+    }
+
+    private void drive(int i) {
+        mLeft.setProgress(i % 101);
+        mRight.setProgress(100 - i % 101);
+
+        // The motor tick picks the command up and writes it
+        mClock.advanceBy(STEP_MS);
+        if (mConnector.ackHeldWrite()) {
+            mFramesOut++;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testSeekBarToMotorWriteDoesNotAllocate() throws Throwable {
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mConnector.holding = true;
+
+                // Warm up, so any lazy class init isn't counted
+                for (int i = 0; i < 101; i++) {
+                    drive(i);
+                }
+                mFramesOut = 0;
+
+                Debug.resetThreadAllocCount();
+                Debug.startAllocCounting();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    drive(i);
+                }
+                Debug.stopAllocCounting();
+                mAllocations = Debug.getThreadAllocCount();
+            }
+        });
+
+        // Make sure frames actually went out and were acked
+        assertTrue(mFramesOut > 0);
+        assertEquals("Unexpected operations on the link", 0, mConnector.unexpectedOps);
+        assertEquals("Objects allocated in " + ITERATIONS + " motor commands", 0, mAllocations);
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.database.DataSetObserver;
+import android.os.IBinder;
+import android.os.Looper;
+import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.ViewTreeObserver;
+import android.widget.ListView;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Floods the scan list with a crowded room of advertisers, and checks it keeps up.
+ *
+ * Synthetic results go into the service the same way real ones do, so the whole path from scan
+ * callback to a drawn list row is covered. Needs a device with BLE, like the app.
+ */
+public class ScanListLoadTest extends ActivityInstrumentationTestCase2<DeviceScanActivity> {
+    private final static String TAG = ScanListLoadTest.class.getSimpleName();
+
+    private static final int ADVERTISERS = 200;
+    private static final long ADVERTISING_INTERVAL_MS = 100;
+    private static final int RSSI_STEP_DB = 3;
+    private static final long RUN_MS = 10000;
+
+    // Generous, so only a real regression fails them
+    private static final long MAX_MEAN_DISPATCH_US = 2000;
+    private static final long MAX_LIST_LATENCY_MS = 1000;
+    private static final float MAX_DROPPED_FRAME_RATIO = 0.25f;
+
+    private uBristleBotService mService;
+    private ScanLoadGenerator mGenerator;
+    private ListView mList;
+
+    // Main thread only. When the oldest result not yet on screen was dispatched, 0 if none.
+    private long mOldestUndrawnResultNs;
+    private boolean mListChanged;
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mService = ((uBristleBotService.LocalBinder) service).getService();
+            mServiceBound.countDown();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mService = null;
+        }
+    };
+    private final CountDownLatch mServiceBound = new CountDownLatch(1);
+
+    private final ScanLoadGenerator.Sink mSink = new ScanLoadGenerator.Sink() {
+        @Override
+        public void onScanResult(String name, String address, int rssi) {
+            if (mOldestUndrawnResultNs == 0) {
+                mOldestUndrawnResultNs = System.nanoTime();
+            }
+            mService.onDeviceFound(name, address, rssi);
+        }
+    };
+
+    private final DataSetObserver mListObserver = new DataSetObserver() {
+        @Override
+        public void onChanged() {
+            mListChanged = true;
+        }
+    };
+
+    private final ViewTreeObserver.OnDrawListener mDrawListener = new ViewTreeObserver.OnDrawListener() {
+        @Override
+        public void onDraw() {
+            if (mListChanged && mOldestUndrawnResultNs != 0) {
+                mGenerator.recordListUpdate(System.nanoTime() - mOldestUndrawnResultNs);
+                mOldestUndrawnResultNs = 0;
+                mListChanged = false;
+            }
+        }
+    };
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mGenerator.recordFrame(frameTimeNanos);
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
+    public ScanListLoadTest() {
+        super(DeviceScanActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        DeviceScanActivity activity = getActivity();
+        mList = (ListView) activity.findViewById(R.id.deviceList);
+
+        Context context = getInstrumentation().getTargetContext();
+        context.bindService(new Intent(context, uBristleBotService.class),
+                mServiceConnection, Context.BIND_AUTO_CREATE);
+        assertTrue("Service didn't bind", mServiceBound.await(5, TimeUnit.SECONDS));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                stopLoad();
+            }
+        });
+        getInstrumentation().getTargetContext().unbindService(mServiceConnection);
+        super.tearDown();
+    }
+
+    private void startLoad() {
+        mGenerator = new ScanLoadGenerator(Looper.getMainLooper(), mSink);
+        mOldestUndrawnResultNs = 0;
+        mListChanged = false;
+
+        mList.getAdapter().registerDataSetObserver(mListObserver);
+        mList.getViewTreeObserver().addOnDrawListener(mDrawListener);
+        Choreographer.getInstance().postFrameCallback(mFrameCallback);
+
+        mGenerator.start(ADVERTISERS, ADVERTISING_INTERVAL_MS, RSSI_STEP_DB);
+    }
+
+    private void stopLoad() {
+        if (mGenerator == null || ! mGenerator.isRunning())
+            return;
+
+        mGenerator.stop();
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+        mList.getViewTreeObserver().removeOnDrawListener(mDrawListener);
+        mList.getAdapter().unregisterDataSetObserver(mListObserver);
+    }
+
+    public void testScanListKeepsUpWithACrowdedRoom() throws InterruptedException {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                startLoad();
+            }
+        });
+
+        Thread.sleep(RUN_MS);
+
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                stopLoad();
+            }
+        });
+        Log.i(TAG, mGenerator.getReport());
+
+        assertTrue("No results dispatched", mGenerator.getResultCount() > 0);
+        assertTrue("List never redrawn", mGenerator.getListUpdateCount() > 0);
+        assertTrue("No frames seen", mGenerator.getFrameCount() > 0);
+
+        assertTrue(mGenerator.getReport(),
+                mGenerator.getMeanDispatchNanos() / 1000 <= MAX_MEAN_DISPATCH_US);
+        assertTrue(mGenerator.getReport(),
+                mGenerator.getMaxListLatencyNanos() / 1000000 <= MAX_LIST_LATENCY_MS);
+        assertTrue(mGenerator.getReport(),
+                mGenerator.getDroppedFrameCount() <= mGenerator.getFrameCount() * MAX_DROPPED_FRAME_RATIO);
+    }
+}
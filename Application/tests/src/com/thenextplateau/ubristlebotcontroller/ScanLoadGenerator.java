@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Floods the scan path with made up advertisers, to see how discovery and the scan list hold up
+ * in a crowded room.
+ *
+ * Every advertiser has its own address and name, advertises at the configured interval plus the
+ * random 0-10 ms delay real advertisers add, and its RSSI takes a random walk. While running it
+ * measures what each result costs to dispatch. The test driving it reports how long until the
+ * list shows a result, and how many UI frames were dropped. See ScanListLoadTest.
+ */
+public class ScanLoadGenerator {
+
+    public static final int MAX_ADVERTISERS = 500;
+
+    // Where synthetic results go, as if the scanner had reported them
+    public interface Sink {
+        void onScanResult(String name, String address, int rssi);
+    }
+
+    private static final long TICK_MS = 5;
+    private static final long ADV_DELAY_MAX_MS = 10;
+    private static final int RSSI_MIN = -100;
+    private static final int RSSI_MAX = -40;
+
+    // Upper bounds of the histogram buckets. The last bucket catches the rest.
+    private static final long[] DISPATCH_BUCKETS_US = { 50, 100, 200, 500, 1000, 2000, 5000 };
+    private static final long[] LIST_LATENCY_BUCKETS_MS = { 5, 10, 20, 50, 100, 200, 500 };
+
+    // One frame at 60 Hz
+    private static final long FRAME_NANOS = 16666667;
+
+    private final Handler mHandler;
+    private final Sink mSink;
+    private final Random mRandom = new Random();
+
+    private boolean mRunning;
+    private long mIntervalMs;
+    private int mRssiStepDb;
+
+    private String[] mNames;
+    private String[] mAddresses;
+    private int[] mRssi;
+    private long[] mNextAdvertisementMs;
+
+    private long mResultCount;
+    private final long[] mDispatchCounts = new long[DISPATCH_BUCKETS_US.length + 1];
+    private long mMaxDispatchNanos;
+    private long mTotalDispatchNanos;
+
+    private long mListUpdateCount;
+    private final long[] mListLatencyCounts = new long[LIST_LATENCY_BUCKETS_MS.length + 1];
+    private long mMaxListLatencyNanos;
+
+    private long mFrameCount;
+    private long mDroppedFrameCount;
+    private long mMaxFrameNanos;
+    private long mLastFrameTimeNanos;
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            if (! mRunning)
+                return;
+
+            long now = SystemClock.elapsedRealtime();
+            for (int i = 0; i < mAddresses.length; i++) {
+                if (now < mNextAdvertisementMs[i])
+                    continue;
+
+                int step = mRandom.nextInt(2 * mRssiStepDb + 1) - mRssiStepDb;
+                mRssi[i] = Math.max(RSSI_MIN, Math.min(RSSI_MAX, mRssi[i] + step));
+
+                long start = System.nanoTime();
+                mSink.onScanResult(mNames[i], mAddresses[i], mRssi[i]);
+                recordDispatch(System.nanoTime() - start);
+
+                mNextAdvertisementMs[i] = now + mIntervalMs + mRandom.nextInt((int) ADV_DELAY_MAX_MS + 1);
+            }
+
+            mHandler.postDelayed(this, TICK_MS);
+        }
+    };
+
+    public ScanLoadGenerator(Looper looper, Sink sink) {
+        mHandler = new Handler(looper);
+        mSink = sink;
+    }
+
+    public void start(int advertisers, long intervalMs, int rssiStepDb) {
+        if (advertisers < 1 || advertisers > MAX_ADVERTISERS) {
+            throw new IllegalArgumentException("Invalid advertiser count: " + advertisers);
+        }
+        if (intervalMs < TICK_MS || rssiStepDb < 0) {
+            throw new IllegalArgumentException("Invalid advertising interval " + intervalMs +
+                    " ms or RSSI step " + rssiStepDb + " dB");
+        }
+
+        stop();
+        resetStats();
+
+        mIntervalMs = intervalMs;
+        mRssiStepDb = rssiStepDb;
+
+        mNames = new String[advertisers];
+        mAddresses = new String[advertisers];
+        mRssi = new int[advertisers];
+        mNextAdvertisementMs = new long[advertisers];
+
+        long now = SystemClock.elapsedRealtime();
+        for (int i = 0; i < advertisers; i++) {
+            mNames[i] = String.format(Locale.US, "LoadBot %03d", i);
+            // Locally administered addresses, so they can't clash with a real bot
+            mAddresses[i] = String.format(Locale.US, "02:00:00:00:%02X:%02X", i >> 8, i & 0xFF);
+            mRssi[i] = RSSI_MIN + mRandom.nextInt(RSSI_MAX - RSSI_MIN + 1);
+            // Spread the first advertisements out over an interval
+            mNextAdvertisementMs[i] = now + mRandom.nextInt((int) intervalMs);
+        }
+
+        mRunning = true;
+        mHandler.post(mTick);
+    }
+
+    public void stop() {
+        mRunning = false;
+        mHandler.removeCallbacks(mTick);
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public void resetStats() {
+        mResultCount = 0;
+        clear(mDispatchCounts);
+        mMaxDispatchNanos = 0;
+        mTotalDispatchNanos = 0;
+
+        mListUpdateCount = 0;
+        clear(mListLatencyCounts);
+        mMaxListLatencyNanos = 0;
+
+        mFrameCount = 0;
+        mDroppedFrameCount = 0;
+        mMaxFrameNanos = 0;
+        mLastFrameTimeNanos = 0;
+    }
+
+    // Time taken by the scan path to hand a result off to the UI
+    private void recordDispatch(long nanos) {
+        mResultCount++;
+        mTotalDispatchNanos += nanos;
+        mMaxDispatchNanos = Math.max(mMaxDispatchNanos, nanos);
+        mDispatchCounts[bucket(DISPATCH_BUCKETS_US, nanos / 1000)]++;
+    }
+
+    //
+    // Measurements, reported by the test
+    //
+    // Time from a result being handed off to the list drawing it
+    public void recordListUpdate(long nanos) {
+        mListUpdateCount++;
+        mMaxListLatencyNanos = Math.max(mMaxListLatencyNanos, nanos);
+        mListLatencyCounts[bucket(LIST_LATENCY_BUCKETS_MS, nanos / 1000000)]++;
+    }
+
+    // Called with the Choreographer frame time of every frame while the list is up
+    public void recordFrame(long frameTimeNanos) {
+        if (mLastFrameTimeNanos != 0) {
+            long interval = frameTimeNanos - mLastFrameTimeNanos;
+
+            mFrameCount++;
+            mMaxFrameNanos = Math.max(mMaxFrameNanos, interval);
+            // Round to the nearest whole frame
+            mDroppedFrameCount += Math.max(0, (interval + FRAME_NANOS / 2) / FRAME_NANOS - 1);
+        }
+        mLastFrameTimeNanos = frameTimeNanos;
+    }
+
+    public long getResultCount() {
+        return mResultCount;
+    }
+
+    public long getMeanDispatchNanos() {
+        return mResultCount == 0 ? 0 : mTotalDispatchNanos / mResultCount;
+    }
+
+    public long getMaxDispatchNanos() {
+        return mMaxDispatchNanos;
+    }
+
+    public long[] getDispatchHistogram() {
+        return mDispatchCounts.clone();
+    }
+
+    public long[] getDispatchHistogramBucketsUs() {
+        return DISPATCH_BUCKETS_US.clone();
+    }
+
+    public long getListUpdateCount() {
+        return mListUpdateCount;
+    }
+
+    public long getMaxListLatencyNanos() {
+        return mMaxListLatencyNanos;
+    }
+
+    public long[] getListLatencyHistogram() {
+        return mListLatencyCounts.clone();
+    }
+
+    public long[] getListLatencyHistogramBucketsMs() {
+        return LIST_LATENCY_BUCKETS_MS.clone();
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    public long getMaxFrameNanos() {
+        return mMaxFrameNanos;
+    }
+
+    public String getReport() {
+        return String.format(Locale.US,
+                "%d results, dispatch mean %d us max %d us; " +
+                "%d list updates, max latency %d ms; " +
+                "%d frames, %d dropped, longest %d ms",
+                mResultCount, getMeanDispatchNanos() / 1000, mMaxDispatchNanos / 1000,
+                mListUpdateCount, mMaxListLatencyNanos / 1000000,
+                mFrameCount, mDroppedFrameCount, mMaxFrameNanos / 1000000);
+    }
+
+    private static int bucket(long[] buckets, long value) {
+        int bucket = 0;
+        while (bucket < buckets.length && value > buckets[bucket]) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    private static void clear(long[] counts) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+    }
+}
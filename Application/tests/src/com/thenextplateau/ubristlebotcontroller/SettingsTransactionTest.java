@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thenextplateau.ubristlebotcontroller;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+public class SettingsTransactionTest extends TestCase {
+
+    private VirtualScheduler mScheduler;
+    private BluetoothGattCharacteristic mName;
+    private BluetoothGattCharacteristic mSave;
+
+    private BluetoothGattCharacteristic mLeds;
+
+    private final List<Long> mWriteTimes = new ArrayList<>();
+    private int mResult = -1;
+    private boolean mReliableSupported;
+    private int mReliableWritesBegun;
+    private int mReliableWritesAborted;
+
+    private final SettingsTransaction.Callbacks mCallbacks = new SettingsTransaction.Callbacks() {
+        @Override
+        public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+            mWriteTimes.add(mScheduler.elapsedRealtime());
+            return true;
+        }
+
+        @Override
+        public boolean beginReliableWrite() {
+            if (mReliableSupported) {
+                mReliableWritesBegun++;
+            }
+            return mReliableSupported;
+        }
+
+        @Override
+        public boolean executeReliableWrite() {
+            return false;
+        }
+
+        @Override
+        public void abortReliableWrite() {
+            mReliableWritesAborted++;
+        }
+
+        @Override
+        public void onComplete(int result, int retries) {
+            mResult = result;
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mScheduler = new VirtualScheduler(0);
+        mName = new BluetoothGattCharacteristic(UUID.randomUUID(),
+                BluetoothGattCharacteristic.PROPERTY_WRITE, BluetoothGattCharacteristic.PERMISSION_WRITE);
+        mSave = new BluetoothGattCharacteristic(UUID.randomUUID(),
+                BluetoothGattCharacteristic.PROPERTY_WRITE, BluetoothGattCharacteristic.PERMISSION_WRITE);
+        mLeds = new BluetoothGattCharacteristic(UUID.randomUUID(),
+                BluetoothGattCharacteristic.PROPERTY_WRITE, BluetoothGattCharacteristic.PERMISSION_WRITE);
+        mWriteTimes.clear();
+        mResult = -1;
+        mReliableSupported = false;
+        mReliableWritesBegun = 0;
+        mReliableWritesAborted = 0;
+    }
+
+    private SettingsTransaction startWithNameChange() {
+        mName.setValue("new".getBytes());
+        SettingsTransaction transaction = new SettingsTransaction(mSave, false, mScheduler, mCallbacks);
+        transaction.addIfChanged(mName, "old".getBytes());
+        transaction.start();
+        return transaction;
+    }
+
+    public void testFailedWriteIsNotRetriedImmediately() {
+        SettingsTransaction transaction = startWithNameChange();
+        assertEquals(1, mWriteTimes.size());
+
+        transaction.onCharacteristicWrite(mName, BluetoothGatt.GATT_FAILURE);
+
+        // The retry waits for its backoff
+        assertEquals(1, mWriteTimes.size());
+        assertEquals(1, mScheduler.getPendingCount());
+
+        mScheduler.advanceBy(1000);
+        assertEquals(2, mWriteTimes.size());
+    }
+
+    public void testRetriesBackOffWithinTheWatchdogsBounds() {
+        SettingsTransaction transaction = startWithNameChange();
+
+        for (int i = 1; i <= GattOperationWatchdog.MAX_RETRIES; i++) {
+            long failedAt = mScheduler.elapsedRealtime();
+            transaction.onCharacteristicWrite(mName, BluetoothGatt.GATT_FAILURE);
+            mScheduler.advanceBy(1000);
+
+            assertEquals(1 + i, mWriteTimes.size());
+            long backoff = mWriteTimes.get(i) - failedAt;
+            assertTrue("Retry " + i + " after " + backoff + " ms", backoff <= 500);
+        }
+
+        // Out of retries
+        transaction.onCharacteristicWrite(mName, BluetoothGatt.GATT_FAILURE);
+        assertEquals(SettingsTransaction.RESULT_FAILED, mResult);
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    public void testSuccessMovesOnToSave() {
+        SettingsTransaction transaction = startWithNameChange();
+
+        transaction.onCharacteristicWrite(mName, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(2, mWriteTimes.size());
+
+        transaction.onCharacteristicWrite(mSave, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(SettingsTransaction.RESULT_SAVED, mResult);
+    }
+
+    public void testCancelDropsThePendingRetry() {
+        SettingsTransaction transaction = startWithNameChange();
+        transaction.onCharacteristicWrite(mName, BluetoothGatt.GATT_FAILURE);
+
+        transaction.cancel();
+        mScheduler.advanceBy(1000);
+
+        assertEquals(1, mWriteTimes.size());
+        assertEquals(-1, mResult);
+    }
+
+    public void testBackoffIsCapped() {
+        Random random = new Random(1);
+        for (int attempt = 1; attempt < 40; attempt++) {
+            long backoff = GattOperationWatchdog.backoffMs(attempt, random);
+            assertTrue(backoff >= 0 && backoff <= 500);
+        }
+    }
+
+    public void testFailedPreparedWriteRestartsTheReliableWrite() {
+        mReliableSupported = true;
+        mName.setValue("new".getBytes());
+        mLeds.setValue(new byte[] { 1, 2, 3 });
+        SettingsTransaction transaction = new SettingsTransaction(mSave, true, mScheduler, mCallbacks);
+        transaction.addIfChanged(mName, "old".getBytes());
+        transaction.addIfChanged(mLeds, new byte[] { 0, 0, 0 });
+        transaction.start();
+        assertEquals(1, mReliableWritesBegun);
+
+        transaction.onCharacteristicWrite(mName, BluetoothGatt.GATT_SUCCESS);
+        transaction.onCharacteristicWrite(mLeds, BluetoothGatt.GATT_FAILURE);
+
+        // Aborted before anything else goes out, then begun again from the first write
+        assertEquals(1, mReliableWritesAborted);
+        assertEquals(2, mWriteTimes.size());
+        mScheduler.advanceBy(1000);
+        assertEquals(2, mReliableWritesBegun);
+        assertEquals(3, mWriteTimes.size());
+    }
+
+    public void testReliableWriteRestartsAreBounded() {
+        mReliableSupported = true;
+        mName.setValue("new".getBytes());
+        mLeds.setValue(new byte[] { 1, 2, 3 });
+        SettingsTransaction transaction = new SettingsTransaction(mSave, true, mScheduler, mCallbacks);
+        transaction.addIfChanged(mName, "old".getBytes());
+        transaction.addIfChanged(mLeds, new byte[] { 0, 0, 0 });
+        transaction.start();
+
+        // The first write always makes it, the second never does
+        for (int i = 0; i <= GattOperationWatchdog.MAX_RETRIES; i++) {
+            transaction.onCharacteristicWrite(mName, BluetoothGatt.GATT_SUCCESS);
+            transaction.onCharacteristicWrite(mLeds, BluetoothGatt.GATT_FAILURE);
+            mScheduler.advanceBy(1000);
+        }
+
+        // Out of restarts, so it carries on with plain writes
+        assertEquals(1 + GattOperationWatchdog.MAX_RETRIES, mReliableWritesBegun);
+        assertEquals(1 + GattOperationWatchdog.MAX_RETRIES, mReliableWritesAborted);
+    }
+}